@@ -0,0 +1,81 @@
+/* class Affine
+ * An affine transformation: the first three rows of a 4x4 matrix whose
+ * last row is (0,0,0,1), kept in plain fields, for mapping rays into the
+ * coordinates of objects in one step
+ */
+import javax.vecmath.*;
+
+class Affine
+{
+    double m00, m01, m02, m03;
+    double m10, m11, m12, m13;
+    double m20, m21, m22, m23;
+
+    //------------------------------------------------------------------------
+
+    /** the identity */
+    public Affine()
+    {
+        m00 = m11 = m22 = 1.0;
+    }
+
+    /** the transformation of m (whose last row is ignored) */
+    public Affine(Matrix4d m)
+    {
+        set(m);
+    }
+
+    /** copy the first three rows of m */
+    public void set(Matrix4d m)
+    {
+        m00 = m.m00; m01 = m.m01; m02 = m.m02; m03 = m.m03;
+        m10 = m.m10; m11 = m.m11; m12 = m.m12; m13 = m.m13;
+        m20 = m.m20; m21 = m.m21; m22 = m.m22; m23 = m.m23;
+    }
+
+    /** the transformation as a 4x4 matrix, into m */
+    public void get(Matrix4d m)
+    {
+        m.m00 = m00; m.m01 = m01; m.m02 = m02; m.m03 = m03;
+        m.m10 = m10; m.m11 = m11; m.m12 = m12; m.m13 = m13;
+        m.m20 = m20; m.m21 = m21; m.m22 = m22; m.m23 = m23;
+        m.m30 = 0.0; m.m31 = 0.0; m.m32 = 0.0; m.m33 = 1.0;
+    }
+
+    //------------------------------------------------------------------------
+
+    /** transform normal n by the transpose of this transformation (for
+     *  the inverse of M, this takes normals to the coordinates of M --
+     *  see Tools.transformNormal())
+     */
+    public void transformNormal(Vector3d n)
+    {
+        double x = m00 * n.x + m10 * n.y + m20 * n.z;
+        double y = m01 * n.x + m11 * n.y + m21 * n.z;
+        n.z      = m02 * n.x + m12 * n.y + m22 * n.z;
+        n.x = x;
+        n.y = y;
+    }
+
+    /** transform ray r into result (the direction is not normalized, so
+     *  t values stay those of r), and cache the inverse length of its
+     *  direction
+     */
+    public void transform(Ray r, Ray result)
+    {
+        Point3d  p = r.origin;
+        Vector3d d = r.direction;
+        double px = p.x, py = p.y, pz = p.z;
+        double dx = d.x, dy = d.y, dz = d.z;
+
+        double qx = m00*dx + m01*dy + m02*dz;
+        double qy = m10*dx + m11*dy + m12*dz;
+        double qz = m20*dx + m21*dy + m22*dz;
+
+        result.origin.set(m00*px + m01*py + m02*pz + m03,
+                          m10*px + m11*py + m12*pz + m13,
+                          m20*px + m21*py + m22*pz + m23);
+        result.direction.set(qx, qy, qz);
+        result.invLength = 1.0 / Math.sqrt(qx*qx + qy*qy + qz*qz);
+    }
+}
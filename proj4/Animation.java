@@ -0,0 +1,345 @@
+/* class Animation
+ * A sequence of frames of a scene, given by keyframes of the camera and
+ * of the transformations of named objects (read from an animation file)
+ *
+ * The values of the keyframes are interpolated linearly between the
+ * frames they are given for (and held before the first and after the
+ * last), so a camera path or the motion of an object is given by as
+ * many keyframes as it needs
+ */
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+import javax.vecmath.*;
+
+class Animation
+{
+    /** a keyframe: the frame it is for, and values that are read as
+     *  the parameters of an object of the scene file */
+    static abstract class Key extends RaytracerObject
+    {
+        static final ParamSpec<?, ?>[] paramSpecs =
+            specs(RaytracerObject.paramSpecs,
+                  ParamSpec.of("frame", Parser::readDouble, Key::setFrame));
+
+        int frame = 0;
+
+        protected Key(StreamTokenizer tokenizer) { super(tokenizer); }
+
+        public void setFrame(Double newVal) { frame = newVal.intValue(); }
+    }
+
+    /** a keyframe of the camera (the values not given are those of the
+     *  camera of the scene) */
+    static class CameraKey extends Key
+    {
+        public static String keyword = "camera";
+
+        static final ParamSpec<?, ?>[] paramSpecs =
+            specs(Key.paramSpecs,
+                  ParamSpec.of("eye",   Parser::readPoint3d,  CameraKey::setEye),
+                  ParamSpec.of("look",  Parser::readVector3d, CameraKey::setLook),
+                  ParamSpec.of("up",    Parser::readVector3d, CameraKey::setUp),
+                  ParamSpec.of("fovy",  Parser::readDouble,   CameraKey::setFovy));
+
+        Point3d  eye   = null;
+        Vector3d look  = null;
+        Vector3d up    = null;
+        Double   fovy  = null;
+
+        public CameraKey(StreamTokenizer tokenizer)
+            throws ParseException, IOException
+        {
+            super(tokenizer);
+            read(tokenizer);
+        }
+
+        ParamSpec<?, ?>[] getParamSpecs() { return paramSpecs; }
+
+        public void setEye(Point3d newVal)   { eye   = newVal; }
+        public void setLook(Vector3d newVal) { look  = newVal; }
+        public void setUp(Vector3d newVal)   { up    = newVal; }
+        public void setFovy(Double newVal)   { fovy  = newVal; }
+    }
+
+    /** a keyframe of the transformation of the objects with a name: the
+     *  transformation (scale, then rotation about x, y and z in degrees,
+     *  both around center, then translation) is applied in world
+     *  coordinates after the one given in the scene file, and moves the
+     *  children of the objects with them
+     */
+    static class MoveKey extends Key
+    {
+        public static String keyword = "move";
+
+        static final ParamSpec<?, ?>[] paramSpecs =
+            specs(Key.paramSpecs,
+                  ParamSpec.of("translate", Parser::readVector3d, MoveKey::setTranslate),
+                  ParamSpec.of("rotate",    Parser::readVector3d, MoveKey::setRotate),
+                  ParamSpec.of("scale",     Parser::readVector3d, MoveKey::setScale),
+                  ParamSpec.of("center",    Parser::readVector3d, MoveKey::setCenter));
+
+        Vector3d translate = new Vector3d(0.0, 0.0, 0.0);
+        Vector3d rotate    = new Vector3d(0.0, 0.0, 0.0);
+        Vector3d scale     = new Vector3d(1.0, 1.0, 1.0);
+        Vector3d center    = new Vector3d(0.0, 0.0, 0.0);
+
+        public MoveKey(StreamTokenizer tokenizer)
+            throws ParseException, IOException
+        {
+            super(tokenizer);
+            read(tokenizer);
+        }
+
+        ParamSpec<?, ?>[] getParamSpecs() { return paramSpecs; }
+
+        public void setTranslate(Vector3d newVal) { translate.set(newVal); }
+        public void setRotate(Vector3d newVal)    { rotate.set(newVal); }
+        public void setScale(Vector3d newVal)     { scale.set(newVal); }
+        public void setCenter(Vector3d newVal)    { center.set(newVal); }
+    }
+
+    /** the objects with one name, their keyframes, and the
+     *  transformation of the current frame */
+    static class Target
+    {
+        String          name;
+        Vector<MoveKey> keys      = new Vector<MoveKey>();
+        Matrix4d        transform = null;
+
+        // Top level objects that hold (or are) an object with this name
+        Set<Shape>      tops = Collections.newSetFromMap(
+                                   new IdentityHashMap<Shape, Boolean>());
+
+        Target(String name) { this.name = name; }
+    }
+
+    Vector<CameraKey>   cameraKeys = new Vector<CameraKey>();
+    Map<String, Target> targets    = new LinkedHashMap<String, Target>();
+
+    // Number of frames (one more than the last keyframe)
+    int frames = 1;
+
+    // Camera of the scene, and the transformations given in the scene
+    // file (set by bind())
+    Camera                 baseCamera = null;
+    Map<Shape, Matrix4d>   baseMatrix = new IdentityHashMap<Shape, Matrix4d>();
+
+    //------------------------------------------------------------------------
+
+    /** read the animation file fileName */
+    public Animation(String fileName) throws ParseException, IOException
+    {
+        Reader input = new BufferedReader(new FileReader(fileName));
+        try {
+            StreamTokenizer tokenizer = Parser.newTokenizer(input);
+            while (tokenizer.nextToken() != StreamTokenizer.TT_EOF) {
+                if (tokenizer.ttype != StreamTokenizer.TT_WORD)
+                    throw new ParseException("Keyword expected",
+                                             tokenizer.lineno());
+
+                if (tokenizer.sval.equals(CameraKey.keyword)) {
+                    CameraKey k = new CameraKey(tokenizer);
+                    cameraKeys.addElement(k);
+                    frames = Math.max(frames, k.frame + 1);
+                } else if (tokenizer.sval.equals(MoveKey.keyword)) {
+                    MoveKey k = new MoveKey(tokenizer);
+                    if (k.name.length() == 0)
+                        throw new ParseException("move without a name",
+                                                 tokenizer.lineno());
+                    Target t = targets.get(k.name);
+                    if (t == null) {
+                        t = new Target(k.name);
+                        targets.put(k.name, t);
+                    }
+                    t.keys.addElement(k);
+                    frames = Math.max(frames, k.frame + 1);
+                } else {
+                    throw new ParseException("Unknown keyword " +
+                                             tokenizer.sval,
+                                             tokenizer.lineno());
+                }
+            }
+        } finally {
+            input.close();
+        }
+
+        Comparator<Key> byFrame = Comparator.comparingInt(k -> k.frame);
+        cameraKeys.sort(byFrame);
+        for (Target t : targets.values())
+            t.keys.sort(byFrame);
+    }
+
+    public int getFrames() { return frames; }
+
+    /** find the objects that move in scene s (which is set up), and keep
+     *  its camera and their transformations as the base of each frame
+     */
+    public void bind(Scene s)
+    {
+        baseCamera = new Camera();
+        baseCamera.setEye(s.camera.getEye());
+        baseCamera.setLook(s.camera.getLook());
+        baseCamera.setUp(s.camera.getUp());
+        baseCamera.setFovy(s.camera.getFovy());
+
+        for (Shape top : s.objects)
+            bind(top, top);
+
+        for (Target t : targets.values())
+            if (t.tops.isEmpty())
+                throw new RuntimeException("Undefined object " + t.name);
+    }
+
+    /** bind() for shape and its descendants (below top level object top) */
+    private void bind(Shape shape, Shape top)
+    {
+        baseMatrix.put(shape, new Matrix4d(shape.getMatrix()));
+
+        Target t = targets.get(shape.name);
+        if (t != null)
+            t.tops.add(top);
+
+        if (shape.childArray != null)
+            for (Shape c : shape.childArray)
+                bind(c, top);
+    }
+
+    //------------------------------------------------------------------------
+
+    /** set up scene s (given to bind()) for frame 'frame': place the
+     *  camera, and move the objects whose transformation changed since
+     *  the previous frame (updating the scene hierarchy for them only)
+     */
+    public void apply(Scene s, int frame)
+    {
+        if (!cameraKeys.isEmpty())
+            placeCamera(s.camera, frame);
+
+        Set<Shape> moved = Collections.newSetFromMap(
+                               new IdentityHashMap<Shape, Boolean>());
+        for (Target t : targets.values()) {
+            Matrix4d m = transform(t, frame);
+            if (t.transform == null || !m.equals(t.transform)) {
+                t.transform = m;
+                moved.addAll(t.tops);
+            }
+        }
+        if (moved.isEmpty())
+            return;
+
+        Matrix4d identity = new Matrix4d();
+        identity.setIdentity();
+        for (Shape top : moved)
+            move(top, identity);
+
+        s.refit(moved);
+    }
+
+    /** set the transformation of shape and its descendants, where
+     *  parentMove is the motion of the objects above it
+     */
+    private void move(Shape shape, Matrix4d parentMove)
+    {
+        Matrix4d m = parentMove;
+        Target t = targets.get(shape.name);
+        if (t != null) {
+            m = new Matrix4d();
+            m.mul(parentMove, t.transform);
+        }
+
+        Matrix4d placed = new Matrix4d();
+        placed.mul(m, baseMatrix.get(shape));
+        shape.setMatrix(placed);
+
+        if (shape.childArray != null)
+            for (Shape c : shape.childArray)
+                move(c, m);
+    }
+
+    /** the index of the last of keys (sorted by frame) at or before
+     *  frame (0 if there is none), and the interpolation weight of the
+     *  key after it in weight[0]
+     */
+    private static int findKey(Vector<? extends Key> keys, int frame,
+                               double[] weight)
+    {
+        int i = 0;
+        while (i + 1 < keys.size() && keys.elementAt(i + 1).frame <= frame)
+            i++;
+
+        weight[0] = 0.0;
+        int f0 = keys.elementAt(i).frame;
+        if (i + 1 < keys.size() && f0 < frame)
+            weight[0] = (double)(frame - f0) /
+                        (keys.elementAt(i + 1).frame - f0);
+        return i;
+    }
+
+    /** interpolate the camera keys for frame, and set camera c to it */
+    private void placeCamera(Camera c, int frame)
+    {
+        double[] w = new double[1];
+        int i = findKey(cameraKeys, frame, w);
+        CameraKey a = cameraKeys.elementAt(i);
+        CameraKey b = cameraKeys.elementAt(Math.min(i + 1, cameraKeys.size() - 1));
+
+        Point3d eye = new Point3d();
+        eye.interpolate(a.eye  != null ? a.eye  : baseCamera.getEye(),
+                        b.eye  != null ? b.eye  : baseCamera.getEye(), w[0]);
+        Vector3d look = new Vector3d();
+        look.interpolate(a.look != null ? a.look : baseCamera.getLook(),
+                         b.look != null ? b.look : baseCamera.getLook(), w[0]);
+        Vector3d up = new Vector3d();
+        up.interpolate(a.up   != null ? a.up   : baseCamera.getUp(),
+                       b.up   != null ? b.up   : baseCamera.getUp(), w[0]);
+        double fa = a.fovy != null ? a.fovy : baseCamera.getFovy();
+        double fb = b.fovy != null ? b.fovy : baseCamera.getFovy();
+
+        c.setEye(eye);
+        c.setLook(look);
+        c.setUp(up);
+        c.setFovy(fa + w[0]*(fb - fa));
+    }
+
+    /** the transformation of the objects of target t at frame */
+    private static Matrix4d transform(Target t, int frame)
+    {
+        double[] w = new double[1];
+        int i = findKey(t.keys, frame, w);
+        MoveKey a = t.keys.elementAt(i);
+        MoveKey b = t.keys.elementAt(Math.min(i + 1, t.keys.size() - 1));
+
+        Vector3d translate = new Vector3d(), rotate = new Vector3d(),
+                 scale = new Vector3d(), center = new Vector3d();
+        translate.interpolate(a.translate, b.translate, w[0]);
+        rotate.interpolate(a.rotate, b.rotate, w[0]);
+        scale.interpolate(a.scale, b.scale, w[0]);
+        center.interpolate(a.center, b.center, w[0]);
+
+        // translate * center * Rz * Ry * Rx * scale * -center
+        Matrix4d m = new Matrix4d(), step = new Matrix4d();
+        m.setIdentity();
+        m.setTranslation(translate);
+        step.setIdentity();
+        step.setTranslation(center);
+        m.mul(step);
+        step.setIdentity();
+        step.setRotation(new AxisAngle4d(0, 0, 1, rotate.z * Math.PI / 180));
+        m.mul(step);
+        step.setRotation(new AxisAngle4d(0, 1, 0, rotate.y * Math.PI / 180));
+        m.mul(step);
+        step.setRotation(new AxisAngle4d(1, 0, 0, rotate.x * Math.PI / 180));
+        m.mul(step);
+        step.setIdentity();
+        step.setElement(0, 0, scale.x);
+        step.setElement(1, 1, scale.y);
+        step.setElement(2, 2, scale.z);
+        m.mul(step);
+        step.setIdentity();
+        center.negate();
+        step.setTranslation(center);
+        m.mul(step);
+        return m;
+    }
+}
@@ -0,0 +1,469 @@
+/* class BVH
+ * Bounding volume hierarchy over a set of primitives that are given by
+ * their axis-aligned bounds (built using the surface area heuristic)
+ */
+import javax.vecmath.*;
+
+class BVH
+{
+    /** callback for the primitives stored in the leaves reached by a ray */
+    interface Visitor
+    {
+        /** test primitives prims[first] .. prims[first+count-1] against
+         *  the ray and return the new maximum t value (the traversal
+         *  ends once this falls below the minimum t)
+         */
+        double visit(int[] prims, int first, int count, double tMax);
+    }
+
+    // Largest number of primitives in a leaf
+    static final int maxLeafSize   = 4;
+
+    // Number of bins used when evaluating the surface area heuristic
+    static final int bins          = 16;
+
+    // Cost of a box test relative to the cost of a primitive test
+    static final double boxCost    = 0.5;
+
+    // ------
+
+    // Node bounds (min x,y,z then max x,y,z -- 6 values per node)
+    double[] nodeBounds;
+
+    // For leaves, the position of the first primitive in prims; for
+    // interior nodes the index of the second child (the first child
+    // always directly follows its parent)
+    int[] nodeOffset;
+
+    // Number of primitives in a leaf (0 for interior nodes)
+    int[] nodeCount;
+
+    // Split axis of interior nodes (decides traversal order)
+    byte[] nodeAxis;
+
+    int nodes = 0;
+
+    // Primitive indices, in leaf order
+    int[] prims;
+
+    // Depth of the tree (size of the traversal stack)
+    int depth = 0;
+
+    // Bounds of the primitives, and the bins of the split search (only
+    // used while building)
+    private double[] primBounds;
+    private int[]    binCount;
+    private double[] binBounds;
+    private double[] rightArea = new double[bins];
+    private double[] acc       = new double[6];
+
+    //------------------------------------------------------------------------
+
+    /** build a hierarchy over count primitives, where primitive i has
+     *  bounds bounds[6*i] .. bounds[6*i+5]
+     */
+    public BVH(double[] bounds, int count)
+    {
+        primBounds = bounds;
+
+        prims = new int[count];
+        for (int i = 0; i < count; i++)
+            prims[i] = i;
+
+        int capacity = Math.max(1, 2*count);
+        nodeBounds = new double[6*capacity];
+        nodeOffset = new int[capacity];
+        nodeCount  = new int[capacity];
+        nodeAxis   = new byte[capacity];
+
+        binCount  = new int[3*bins];
+        binBounds = new double[6*3*bins];
+        if (count > 0)
+            build(0, count, 0);
+
+        primBounds = null;
+        binCount   = null;
+        binBounds  = null;
+        rightArea  = null;
+        acc        = null;
+    }
+
+    /** a hierarchy given its arrays (as built by the constructor above,
+     *  e.g. read from a compiled scene)
+     */
+    public BVH(double[] nodeBounds, int[] nodeOffset, int[] nodeCount,
+               byte[] nodeAxis, int[] prims, int depth)
+    {
+        this.nodeBounds = nodeBounds;
+        this.nodeOffset = nodeOffset;
+        this.nodeCount  = nodeCount;
+        this.nodeAxis   = nodeAxis;
+        this.nodes      = nodeCount.length;
+        this.prims      = prims;
+        this.depth      = depth;
+    }
+
+    /** bounds of the whole hierarchy (empty if there are no primitives) */
+    public void getBounds(double[] b)
+    {
+        if (nodes == 0) {
+            emptyBounds(b, 0);
+        } else {
+            System.arraycopy(nodeBounds, 0, b, 0, 6);
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // Construction
+
+    /** build the subtree for prims[start..end-1] and return its root */
+    private int build(int start, int end, int level)
+    {
+        int node = nodes++;
+        depth = Math.max(depth, level);
+
+        int nb = 6*node;
+        emptyBounds(nodeBounds, nb);
+        double[] cb = new double[6];
+        emptyBounds(cb, 0);
+        for (int k = start; k < end; k++) {
+            int p = 6*prims[k];
+            for (int a = 0; a < 3; a++) {
+                double lo = primBounds[p+a], hi = primBounds[p+a+3];
+                double c = 0.5*(lo + hi);
+                nodeBounds[nb+a]   = Math.min(nodeBounds[nb+a], lo);
+                nodeBounds[nb+a+3] = Math.max(nodeBounds[nb+a+3], hi);
+                cb[a]   = Math.min(cb[a], c);
+                cb[a+3] = Math.max(cb[a+3], c);
+            }
+        }
+
+        int count = end - start;
+        if (count <= 1)
+            return makeLeaf(node, start, count);
+
+        // Find the cheapest binned split (costs are scaled by node area)
+        double leafCost = count * area(nodeBounds, nb);
+        double bestCost = Double.MAX_VALUE;
+        int bestAxis = -1, bestBin = -1;
+
+        // Fill the bins of all three axes in one pass over the primitives
+        for (int b = 0; b < 3*bins; b++) {
+            binCount[b] = 0;
+            emptyBounds(binBounds, 6*b);
+        }
+        for (int k = start; k < end; k++) {
+            int p = prims[k];
+            for (int a = 0; a < 3; a++) {
+                double extent = cb[a+3] - cb[a];
+                if (!(extent > 0))
+                    continue;
+                int b = a*bins + bin(p, a, cb[a], extent);
+                binCount[b]++;
+                grow(binBounds, 6*b, primBounds, 6*p);
+            }
+        }
+
+        for (int a = 0; a < 3; a++) {
+            double extent = cb[a+3] - cb[a];
+            if (!(extent > 0))
+                continue;
+
+            // Sweep from the right, then evaluate splits from the left
+            int first = a*bins;
+            emptyBounds(acc, 0);
+            for (int b = bins-1; b > 0; b--) {
+                grow(acc, 0, binBounds, 6*(first + b));
+                rightArea[b] = area(acc, 0);
+            }
+            emptyBounds(acc, 0);
+            int left = 0;
+            for (int b = 0; b < bins-1; b++) {
+                grow(acc, 0, binBounds, 6*(first + b));
+                left += binCount[first + b];
+                int right = count - left;
+                if (left == 0 || right == 0)
+                    continue;
+
+                double cost = boxCost * area(nodeBounds, nb) +
+                    left * area(acc, 0) + right * rightArea[b+1];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = a;
+                    bestBin  = b;
+                }
+            }
+        }
+
+        int mid;
+        if (bestAxis < 0) {
+            // All centroids coincide: split arbitrarily if too large
+            if (count <= maxLeafSize)
+                return makeLeaf(node, start, count);
+            mid = (start + end) / 2;
+            bestAxis = 0;
+        } else {
+            if (bestCost >= leafCost && count <= maxLeafSize)
+                return makeLeaf(node, start, count);
+
+            // Partition primitives on either side of the split
+            double lo = cb[bestAxis], extent = cb[bestAxis+3] - lo;
+            int i = start, j = end - 1;
+            while (i <= j) {
+                if (bin(prims[i], bestAxis, lo, extent) <= bestBin) {
+                    i++;
+                } else {
+                    int t = prims[i]; prims[i] = prims[j]; prims[j] = t;
+                    j--;
+                }
+            }
+            mid = i;
+            if (mid == start || mid == end)
+                mid = (start + end) / 2;
+        }
+
+        nodeAxis[node] = (byte)bestAxis;
+        build(start, mid, level+1);
+        nodeOffset[node] = build(mid, end, level+1);
+        nodeCount[node]  = 0;
+
+        return node;
+    }
+
+    private int makeLeaf(int node, int start, int count)
+    {
+        nodeOffset[node] = start;
+        nodeCount[node]  = count;
+        return node;
+    }
+
+    /** bin (along axis a) that the centroid of primitive p falls in */
+    private int bin(int p, int a, double lo, double extent)
+    {
+        double c = 0.5*(primBounds[6*p+a] + primBounds[6*p+a+3]);
+        int b = (int)(bins * (c - lo) / extent);
+        return b < 0 ? 0 : (b >= bins ? bins-1 : b);
+    }
+
+    /** recompute the bounds of all nodes from new primitive bounds (given
+     *  as to the constructor), keeping the structure of the tree
+     *
+     * This is much faster than building a new hierarchy, but the tree
+     * gets worse the further the primitives move from where they were
+     * when it was built
+     */
+    public void refit(double[] bounds)
+    {
+        // (children always come after their parent)
+        for (int node = nodes - 1; node >= 0; node--) {
+            int b = 6*node;
+            if (nodeCount[node] > 0) {
+                emptyBounds(nodeBounds, b);
+                int first = nodeOffset[node];
+                for (int k = first; k < first + nodeCount[node]; k++)
+                    grow(nodeBounds, b, bounds, 6*prims[k]);
+            } else {
+                System.arraycopy(nodeBounds, b + 6, nodeBounds, b, 6);
+                grow(nodeBounds, b, nodeBounds, 6*nodeOffset[node]);
+            }
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // Bounds helpers
+
+    static void emptyBounds(double[] b, int o)
+    {
+        b[o]   = b[o+1] = b[o+2] =  Double.MAX_VALUE;
+        b[o+3] = b[o+4] = b[o+5] = -Double.MAX_VALUE;
+    }
+
+    /** grow bounds b (at offset o) to contain bounds c (at offset p) */
+    static void grow(double[] b, int o, double[] c, int p)
+    {
+        for (int a = 0; a < 3; a++) {
+            if (c[p+a]   < b[o+a])   b[o+a]   = c[p+a];
+            if (c[p+a+3] > b[o+a+3]) b[o+a+3] = c[p+a+3];
+        }
+    }
+
+    /** half of the surface area of bounds b (at offset o) */
+    static double area(double[] b, int o)
+    {
+        double x = b[o+3] - b[o], y = b[o+4] - b[o+1], z = b[o+5] - b[o+2];
+        if (x < 0 || y < 0 || z < 0)
+            return 0;
+        return x*y + y*z + z*x;
+    }
+
+    /** transform object-space bounds ob by m, and store the bounds of the
+     *  result in b
+     */
+    static void transformBounds(Matrix4d m, double[] ob, double[] b)
+    {
+        emptyBounds(b, 0);
+        Point3d corner = new Point3d();
+        for (int k = 0; k < 8; k++) {
+            corner.set((k & 1) == 0 ? ob[0] : ob[3],
+                       (k & 2) == 0 ? ob[1] : ob[4],
+                       (k & 4) == 0 ? ob[2] : ob[5]);
+            m.transform(corner);
+
+            b[0] = Math.min(b[0], corner.x);
+            b[1] = Math.min(b[1], corner.y);
+            b[2] = Math.min(b[2], corner.z);
+            b[3] = Math.max(b[3], corner.x);
+            b[4] = Math.max(b[4], corner.y);
+            b[5] = Math.max(b[5], corner.z);
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // Traversal
+
+    /** visit the leaves whose bounds are hit by ray r between tMin and
+     *  tMax, nearest child first
+     */
+    public void traverse(Ray r, double tMin, double tMax, Visitor v)
+    {
+        traverse(r, tMin, tMax, v, new int[depth + 1]);
+    }
+
+    /** traverse (as above) using the given stack, which must have room
+     *  for depth+1 entries
+     */
+    public void traverse(Ray r, double tMin, double tMax, Visitor v,
+                         int[] stack)
+    {
+        if (nodes == 0)
+            return;
+
+        Point3d  o = r.getPoint();
+        Vector3d d = r.getDirection();
+        double ix = 1.0 / d.x, iy = 1.0 / d.y, iz = 1.0 / d.z;
+
+        int sp = 0, node = 0;
+
+        while (true) {
+            if (hitBox(node, o.x, o.y, o.z, ix, iy, iz, tMin, tMax)) {
+                if (nodeCount[node] > 0) {
+                    tMax = v.visit(prims, nodeOffset[node], nodeCount[node],
+                                   tMax);
+                    if (tMax < tMin)
+                        return;
+                } else {
+                    int axis = nodeAxis[node];
+                    boolean negative =
+                        (axis == 0 ? ix : (axis == 1 ? iy : iz)) < 0;
+                    if (negative) {
+                        stack[sp++] = node + 1;
+                        node = nodeOffset[node];
+                    } else {
+                        stack[sp++] = nodeOffset[node];
+                        node = node + 1;
+                    }
+                    continue;
+                }
+            }
+            if (sp == 0)
+                return;
+            node = stack[--sp];
+        }
+    }
+
+    /** traverse() for the queries of a Group: the same loop, kept apart
+     *  so that it only ever calls the two visitor classes of Group,
+     *  whose visit() the JIT compiler then inlines (the loop shared
+     *  with the scene and the meshes calls too many to be inlined)
+     */
+    public void traverseGroup(Ray r, double tMin, double tMax, Visitor v,
+                              int[] stack)
+    {
+        if (nodes == 0)
+            return;
+
+        Point3d  o = r.getPoint();
+        Vector3d d = r.getDirection();
+        double ix = 1.0 / d.x, iy = 1.0 / d.y, iz = 1.0 / d.z;
+
+        int sp = 0, node = 0;
+
+        while (true) {
+            if (hitBox(node, o.x, o.y, o.z, ix, iy, iz, tMin, tMax)) {
+                if (nodeCount[node] > 0) {
+                    tMax = v.visit(prims, nodeOffset[node], nodeCount[node],
+                                   tMax);
+                    if (tMax < tMin)
+                        return;
+                } else {
+                    int axis = nodeAxis[node];
+                    boolean negative =
+                        (axis == 0 ? ix : (axis == 1 ? iy : iz)) < 0;
+                    if (negative) {
+                        stack[sp++] = node + 1;
+                        node = nodeOffset[node];
+                    } else {
+                        stack[sp++] = nodeOffset[node];
+                        node = node + 1;
+                    }
+                    continue;
+                }
+            }
+            if (sp == 0)
+                return;
+            node = stack[--sp];
+        }
+    }
+
+    /** slab test of a ray against the bounds of a node */
+    private boolean hitBox(int node, double ox, double oy, double oz,
+                           double ix, double iy, double iz,
+                           double tNear, double tFar)
+    {
+        return hitBox(nodeBounds, 6*node, ox, oy, oz, ix, iy, iz,
+                      tNear, tFar);
+    }
+
+    /** whether ray r hits bounds b (at offset o) between tMin and tMax */
+    static boolean hitBounds(double[] b, int o, Ray r, double tMin,
+                             double tMax)
+    {
+        Point3d  p = r.getPoint();
+        Vector3d d = r.getDirection();
+        return hitBox(b, o, p.x, p.y, p.z, 1.0 / d.x, 1.0 / d.y, 1.0 / d.z,
+                      tMin, tMax);
+    }
+
+    /** slab test of a ray (origin o, inverse direction i) against bounds
+     *  nodeBounds at offset b
+     */
+    static boolean hitBox(double[] nodeBounds, int b,
+                                  double ox, double oy, double oz,
+                                  double ix, double iy, double iz,
+                                  double tNear, double tFar)
+    {
+        double t1, t2, t;
+
+        // (NaN values from 0 * infinity fail the comparisons and are
+        // ignored)
+        t1 = (nodeBounds[b]   - ox) * ix;
+        t2 = (nodeBounds[b+3] - ox) * ix;
+        if (t1 > t2) { t = t1; t1 = t2; t2 = t; }
+        if (t1 > tNear) tNear = t1;
+        if (t2 < tFar)  tFar  = t2;
+
+        t1 = (nodeBounds[b+1] - oy) * iy;
+        t2 = (nodeBounds[b+4] - oy) * iy;
+        if (t1 > t2) { t = t1; t1 = t2; t2 = t; }
+        if (t1 > tNear) tNear = t1;
+        if (t2 < tFar)  tFar  = t2;
+
+        t1 = (nodeBounds[b+2] - oz) * iz;
+        t2 = (nodeBounds[b+5] - oz) * iz;
+        if (t1 > t2) { t = t1; t1 = t2; t2 = t; }
+        if (t1 > tNear) tNear = t1;
+        if (t2 < tFar)  tFar  = t2;
+
+        return tNear <= tFar;
+    }
+}
@@ -6,21 +6,28 @@
 import java.io.*;
 import javax.vecmath.*;
 import java.text.ParseException;
-import java.lang.reflect.*;
 
 class Box extends Shape
 {
     public static String keyword = "box";
 
+    static final int statsKind = RenderStats.shapeKind(Box.class);
+
     public Box( StreamTokenizer tokenizer )
-	throws ParseException, IOException, NoSuchMethodException,
-	       ClassNotFoundException,IllegalAccessException,
-	       InvocationTargetException
+	throws ParseException, IOException
     {
 	super(tokenizer);
 	read(tokenizer);
     }
 
+    /** constructor for the shapes of compiled scenes (see SceneCache) */
+    Box()
+    {
+	super(null);
+    }
+
+    int getStatsKind() { return statsKind; }
+
     // -----------------------------------------------------------------------
 
     /** computes the ray intersection point of a cube centered on the
@@ -28,88 +35,90 @@ class Box extends Shape
      */
     boolean hit(Ray r, ISect intersection, boolean all, double minT)
     {
-	double rayLength = r.getDirection().length();
-	r.getDirection().normalize();
-	minT *= rayLength;
+	// (the direction is used as it is, so t values are those of r)
 	boolean objHit = false;
        
-	double[] rayPos = new double[3];
-	r.getPoint().get( rayPos);
-	double[] rayDir = new double[3];
-	r.getDirection().get( rayDir);
+	Point3d  rayPos = r.getPoint();
+	Vector3d rayDir = r.getDirection();
        
 	double t1, t2;
        
-	for (int i = 0; i < rayDir.length; i++) {
+	for (int i = 0; i < 3; i++) {
 	    int i1 = (i+1) % 3;
 	    int i2 = (i+2) % 3;
 	    double left = -1.0;
 	    double right = 1.0;
-	    double dir = rayDir[i];
-	    double pos = rayPos[i];
+	    double dir = Tools.get(rayDir, i);
+	    double pos = Tools.get(rayPos, i);
 	   
 	    if (dir != 0.0) {
 		t1 = (left - pos) / dir;
-		if (t1 >= minT && (!objHit || t1 < intersection.t)) {
-		    Point3d iPoint = new Point3d((Tuple3d)r.getDirection());
-		    iPoint.scaleAdd(t1, r.getPoint());
-		   
-		    double[] temp = new double[3];
-		    iPoint.get(temp);
-		    if (!(temp[i1] < left || temp[i1] > right ||
-			  temp[i2] < left || temp[i2] > right)) {
-		       
-			objHit = true;
-			intersection.t = t1;
-			intersection.setHitPoint(iPoint);
-			if (all) {
-			    intersection.getNormal().set(0,0,0);
-			    double[] nVector = new double[3];
-			    intersection.getNormal().get(nVector);
-			    nVector[i] = -1.0;
-			    intersection.getNormal().set(nVector);
-			    uvPlane(intersection, i1, i2);
-			}
+		if (t1 >= minT && (!objHit || t1 < intersection.t) &&
+		    hitFace(r, t1, i1, i2, left, right)) {
+		    objHit = true;
+		    intersection.t = t1;
+		    setHitPoint(intersection, r, t1);
+		    if (all) {
+			setNormal(intersection, i, -1.0);
+			uvPlane(intersection, i1, i2);
 		    }
 		}
 		t2 = (right - pos) / dir;
-		if (t2 >= minT && (!objHit || t2 < intersection.t)) {
-		    Point3d iPoint = new Point3d((Tuple3d)r.getDirection());
-		    iPoint.scaleAdd(t2, r.getPoint());
-		    double[] temp = new double[3];
-		    iPoint.get(temp);
-		    if (!(temp[i1] < left || temp[i1] > right ||
-			  temp[i2] < left || temp[i2] > right)) {
-			objHit = true;
-			intersection.setHitPoint(iPoint);
-			intersection.t = t2;
-			if (all) {
-			    intersection.getNormal().set(0,0,0);
-			    double[] nVector = new double[3];
-			    intersection.getNormal().get(nVector);
-			    nVector[i] = 1.0;
-			    intersection.getNormal().set(nVector);
-			    uvPlane(intersection, i1, i2);
-			}
+		if (t2 >= minT && (!objHit || t2 < intersection.t) &&
+		    hitFace(r, t2, i1, i2, left, right)) {
+		    objHit = true;
+		    setHitPoint(intersection, r, t2);
+		    intersection.t = t2;
+		    if (all) {
+			setNormal(intersection, i, 1.0);
+			uvPlane(intersection, i1, i2);
 		    }
 		}
 	    }
 	}
 
-	if (objHit) {
-	    intersection.t /= rayLength;
+	if (objHit)
 	    intersection.setHitObject(this);
-	}
 	return objHit;
     }
+
+    /** check if the point at t along r lies within the face spanned by
+     *  axes x and y
+     */
+    private boolean hitFace(Ray r, double t, int x, int y,
+			    double left, double right)
+    {
+	Point3d  p = r.getPoint();
+	Vector3d d = r.getDirection();
+	double px = t * Tools.get(d, x) + Tools.get(p, x);
+	double py = t * Tools.get(d, y) + Tools.get(p, y);
+
+	return !(px < left || px > right || py < left || py > right);
+    }
+
+    private void setHitPoint(ISect intersection, Ray r, double t)
+    {
+	Point3d  p = r.getPoint();
+	Vector3d d = r.getDirection();
+	intersection.getHitPoint().set(t * d.x + p.x,
+				       t * d.y + p.y,
+				       t * d.z + p.z);
+    }
+
+    /** normal along axis i, pointing in direction sign */
+    private void setNormal(ISect intersection, int i, double sign)
+    {
+	intersection.getNormal().set(i == 0 ? sign : 0,
+				     i == 1 ? sign : 0,
+				     i == 2 ? sign : 0);
+    }
     
     private void uvPlane(ISect intersection, int x, int y)
     {
-	double[] ipoint = new double[3];
-	intersection.getHitPoint().get(ipoint);
+	Point3d ipoint = intersection.getHitPoint();
 	
-	intersection.setU((ipoint[x]+1.0)/2);
-	intersection.setV((ipoint[y]+1.0)/2);
+	intersection.setU((Tools.get(ipoint, x)+1.0)/2);
+	intersection.setV((Tools.get(ipoint, y)+1.0)/2);
 	
 	intersection.getDpDu().set(x == 0 ? 1 : 0,
 				   x == 1 ? 1 : 0,
@@ -117,5 +126,7 @@ class Box extends Shape
 	intersection.getDpDv().set(y == 0 ? 1 : 0,
 				   y == 1 ? 1 : 0,
 				   y == 2 ? 1 : 0);
+	intersection.dPdULength = 2.0;
+	intersection.dPdVLength = 2.0;
     }
 }
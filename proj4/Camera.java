@@ -4,7 +4,6 @@
  * Doug DeCarlo
  */
 import java.io.*;
-import java.lang.reflect.*;
 import java.text.ParseException;
 import javax.vecmath.*;
 
@@ -12,6 +11,14 @@ class Camera extends RaytracerObject
 {
     public static String keyword = "camera";
 
+    static final ParamSpec<?, ?>[] paramSpecs =
+        specs(RaytracerObject.paramSpecs,
+              ParamSpec.of("eye",  Parser::readPoint3d,  Camera::setEye),
+              ParamSpec.of("look", Parser::readVector3d, Camera::setLook),
+              ParamSpec.of("up",   Parser::readVector3d, Camera::setUp),
+              ParamSpec.of("fovy", Parser::readDouble,   Camera::setFovy),
+              ParamSpec.of("near", Parser::readDouble,   Camera::setNear));
+
     /** Specification of camera: position, look and up direction */
     Point3d  eye  = new Point3d(0.0, 0.0, 0.0);
     Vector3d look = new Vector3d(0.0, 0.0, -1.0);
@@ -27,6 +34,9 @@ class Camera extends RaytracerObject
 
     /** aspect ratio (width/height) */
     double aspect;
+
+    /** distance between neighboring pixel rays at unit distance */
+    double pixelSpread;
     
     /** Camera coordinate system (u, v are scaled based on image size) */
     Vector3d u, v, n;
@@ -36,36 +46,29 @@ class Camera extends RaytracerObject
     /** if the camera is specified by default values, pass a null as tokenizer
      */
     public Camera(StreamTokenizer tokenizer)
-        throws ParseException, IOException, NoSuchMethodException,
-        ClassNotFoundException,IllegalAccessException,
-        InvocationTargetException
+        throws ParseException, IOException
     {
         super(tokenizer);
 
-        // add parameters
-        addSpec("eye",    "setEye",    eye.getClass().getName());
-        addSpec("look",   "setLook",   look.getClass().getName());
-        addSpec("up",     "setUp",     up.getClass().getName());
-        addSpec("fovy",   "setFovy",   "java.lang.Double");
-        addSpec("near",   "setNear",   "java.lang.Double");
-
         read(tokenizer);
     }
 
     public Camera()
-        throws ParseException, IOException, NoSuchMethodException,
-        ClassNotFoundException,IllegalAccessException,
-        InvocationTargetException
     {
         super(null);
     }
 
+    ParamSpec<?, ?>[] getParamSpecs() { return paramSpecs; }
+
     /** Set up camera */
     public void setup(int width, int height)
     {
         aspect = (double)width / height;
 
         computeUVN();
+
+        // (pixel centers span [-1, 1] in v, which has length H/near)
+        pixelSpread = 2 * v.length() / near / Math.max(height - 1, 1);
     }
 
     //-----------------------------------------------------------------------
@@ -77,6 +80,7 @@ class Camera extends RaytracerObject
     public double   getFovy()   { return fovy; }
     public double   getAspect() { return aspect; }
     public double   getNear()   { return near; }
+    public double   getPixelSpread() { return pixelSpread; }
     
     public void setEye(Point3d newVal)   { eye.set(newVal); }
     public void setLook(Vector3d newVal) { look.set(newVal); }
@@ -128,26 +132,26 @@ class Camera extends RaytracerObject
      */
     public Ray pixelRay(double x, double y)
     {
-       	// Create and compute ray through pixel
-    	Vector3d uX = new Vector3d(u);
-    	Vector3d vY = new Vector3d(v);
-    	Vector3d nNear = new Vector3d(n);
-    
-    	
-    	uX.scale(x);
-    	vY.scale(y);
-    	nNear.scale(near);
-	Vector3d result = new Vector3d(uX);
-    	result.add(vY);
-    	result.sub(nNear);
-	result.normalize();
-	
-	Vector3d origin = new Vector3d(eye);
-	origin.add(uX,vY);
-	origin.sub(nNear);
-	Point3d o = new Point3d(origin.x,origin.y,origin.z); 
-	
-        return new Ray(o,result);
+        Ray r = new Ray();
+        pixelRay(x, y, r);
+        return r;
+    }
+
+    /** construct the ray through pixel (x,y) in r (without allocating) */
+    public void pixelRay(double x, double y, Ray r)
+    {
+        // uX = u * x, vY = v * y, nNear = n * near
+        double uXx = u.x * x,    uXy = u.y * x,    uXz = u.z * x;
+        double vYx = v.x * y,    vYy = v.y * y,    vYz = v.z * y;
+        double nNx = n.x * near, nNy = n.y * near, nNz = n.z * near;
+
+        Vector3d result = r.getDirection();
+        result.set(uXx + vYx - nNx, uXy + vYy - nNy, uXz + vYz - nNz);
+
+        // origin = uX + vY - nNear
+        r.getPoint().set(result);
+
+        result.normalize();
     }
 
     public void print(PrintStream out)
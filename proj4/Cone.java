@@ -6,23 +6,39 @@
 import java.io.*;
 import javax.vecmath.*;
 import java.text.ParseException;
-import java.lang.reflect.*;
 
 class Cone extends Shape
 {
     public static String keyword = "cone";
 
+    static final int statsKind = RenderStats.shapeKind(Cone.class);
+
     /** constructor from tokenizer */
     public Cone(StreamTokenizer tokenizer)
-	throws ParseException, IOException, NoSuchMethodException,
-	       ClassNotFoundException,IllegalAccessException,
-	       InvocationTargetException
-	       
+	throws ParseException, IOException
     {
 	super(tokenizer);
 	read(tokenizer);
     }
 
+    /** constructor for the shapes of compiled scenes (see SceneCache) */
+    Cone()
+    {
+	super(null);
+    }
+
+    int getStatsKind() { return statsKind; }
+
+    // -----------------------------------------------------------------------
+
+    /** the cone fits in x, y from -1 to 1 and z from 0 to 1 */
+    void getObjectBounds(double[] b)
+    {
+	b[0] = b[1] = -1.0;
+	b[2] = 0.0;
+	b[3] = b[4] = b[5] = 1.0;
+    }
+
     // -----------------------------------------------------------------------
 
     /** computes the ray intersection point of a cone with base radius 1
@@ -30,16 +46,26 @@ class Cone extends Shape
      */
     boolean hit(Ray r, ISect intersection, boolean all, double minT)
     {
-	ISect icone = new ISect(), icap1 = new ISect();
 	boolean hit_cone, hit_cap1;
-
-	hit_cone = hitConeCap(r, icone, all, minT);
-	hit_cap1 = hitCap1(r, icap1, all, minT);
-
-	if (hit_cone && (!hit_cap1 || icone.t < icap1.t)) {
-	    intersection.set(icone);
-	} else if (hit_cap1 && (!hit_cone || icap1.t < icone.t)) {
-	    intersection.set(icap1);
+	double tcone = 0.0, tcap1 = 0.0;
+
+	// Find the t value of each part first, and only compute the other
+	// fields for the closest one
+	hit_cone = hitConeCap(r, intersection, false, minT);
+	if (hit_cone)
+	    tcone = intersection.t;
+	hit_cap1 = hitCap1(r, intersection, false, minT);
+	if (hit_cap1)
+	    tcap1 = intersection.t;
+
+	if (hit_cone && (!hit_cap1 || tcone < tcap1)) {
+	    if (all)
+		hitConeCap(r, intersection, true, minT);
+	    intersection.t = tcone;
+	} else if (hit_cap1 && (!hit_cone || tcap1 < tcone)) {
+	    if (all)
+		hitCap1(r, intersection, true, minT);
+	    intersection.t = tcap1;
 	} else {
 	    return false;
 	}
@@ -53,25 +79,28 @@ class Cone extends Shape
     private boolean hitConeCap(Ray r, ISect intersection, boolean all,
 			       double minT)
     {
-	double dlen, a, b, c, d, t1, t2, z1, z2;
+	double a, b, c, d, t1, t2, z1, z2;
 	boolean t1bad, t2bad;
 	double epsilon = 1e-6;
 
 	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
+	Vector3d dir = r.getDirection();
+
+	// Normalized ray direction (with the cached 1/|dir|; t values are
+	// scaled back at the end)
+	double s = r.getInvLength();
+	double rdx = dir.x * s, rdy = dir.y * s, rdz = dir.z * s;
 
-	minT *= dlen;
+	minT /= s;
 
- 	a = rd.x * rd.x + rd.y * rd.y - rd.z * rd.z;
-	b = rd.x * rp.x + rd.y * rp.y - rd.z * rp.z;
+ 	a = rdx * rdx + rdy * rdy - rdz * rdz;
+	b = rdx * rp.x + rdy * rp.y - rdz * rp.z;
 	c = rp.x * rp.x + rp.y * rp.y - rp.z * rp.z;
 
 	if (Math.abs(a) < epsilon) {
 	    /* One intersection point */
 	    t1 = -0.5*c / b;
-	    z1 = rp.z + t1 * rd.z;
+	    z1 = rp.z + t1 * rdz;
 
 	    if (t1 < minT || z1 < 0 || z1 > 1)
 	      return false;
@@ -87,8 +116,8 @@ class Cone extends Shape
 	    t1 = (-b + d) / a;
 	    t2 = (-b - d) / a;
 
-	    z1 = rp.z + t1 * rd.z;
-	    z2 = rp.z + t2 * rd.z;
+	    z1 = rp.z + t1 * rdz;
+	    z2 = rp.z + t2 * rdz;
 
 	    t1bad = (t1 < minT || z1 < 0.0 || z1 > 1.0);
 	    t2bad = (t2 < minT || z2 < 0.0 || z2 > 1.0);
@@ -108,19 +137,20 @@ class Cone extends Shape
 	    Point3d ipoint = intersection.getHitPoint();
 	    Vector3d inorm = intersection.getNormal();
 
-	    ipoint.scale(intersection.t, rd);
-	    ipoint.add(rp);
+	    ipoint.set(intersection.t * rdx + rp.x,
+	               intersection.t * rdy + rp.y,
+	               intersection.t * rdz + rp.z);
 
-	    Vector3d ipv = new Vector3d(ipoint);
-
-	    inorm.cross(ipv, new Vector3d(0,0,1));
-	    inorm.cross(ipv, inorm);
+	    // inorm = ipoint x (ipoint x (0,0,1))
+	    Tools.cross(inorm, ipoint.x, ipoint.y, ipoint.z, 0, 0, 1);
+	    Tools.cross(inorm, ipoint.x, ipoint.y, ipoint.z,
+			inorm.x, inorm.y, inorm.z);
 	    inorm.normalize();
 
 	    uvConeCap(intersection);
 	}
 
-	intersection.t /= dlen;
+	intersection.t *= s;
 
 	return true;
     }
@@ -149,21 +179,28 @@ class Cone extends Shape
 
 	intersection.getDpDv().set(ipoint);
 	intersection.getDpDv().normalize();
+
+	// (the radius at height z is z, and the side has slope 1)
+	intersection.dPdULength = 2*Math.PI * Math.abs(ipoint.z);
+	intersection.dPdVLength = Math.sqrt(2.0);
     }
 
     private boolean hitCap1(Ray r, ISect intersection, boolean all, 
 			    double minT)
     {
-	double pz, dz, t, dlen;
+	double pz, dz, t;
 	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
+	Vector3d dir = r.getDirection();
 
-	minT *= dlen;
+	// Normalized ray direction (with the cached 1/|dir|; t values are
+	// scaled back at the end)
+	double s = r.getInvLength();
+	double rdx = dir.x * s, rdy = dir.y * s, rdz = dir.z * s;
+
+	minT /= s;
 
 	pz = rp.z;
-	dz = rd.z;
+	dz = rdz;
 
 	if (dz == 0.0)
 	  return false;
@@ -174,11 +211,12 @@ class Cone extends Shape
 	  return false;
 
 	Point3d ipoint = intersection.getHitPoint();
-	ipoint.scale(t, rd);
-	ipoint.add(rp);
+	ipoint.set(t * rdx + rp.x,
+	           t * rdy + rp.y,
+	           t * rdz + rp.z);
 
 	if (ipoint.x * ipoint.x + ipoint.y * ipoint.y <= 1.0) {
-	    intersection.t = t / dlen;
+	    intersection.t = t * s;
 
 	    if (all) {
 		intersection.getNormal().set(0, 0, 1);
@@ -194,11 +232,10 @@ class Cone extends Shape
 
     private void uvPlane(ISect intersection, int x, int y)
     {
-	double[] ipoint = new double[3];
-	intersection.getHitPoint().get(ipoint);
+	Point3d ipoint = intersection.getHitPoint();
 	
-	intersection.setU((ipoint[x]+1.0)/2);
-	intersection.setV((ipoint[y]+1.0)/2);
+	intersection.setU((Tools.get(ipoint, x)+1.0)/2);
+	intersection.setV((Tools.get(ipoint, y)+1.0)/2);
 	
 	intersection.getDpDu().set(x == 0 ? 1 : 0,
 				   x == 1 ? 1 : 0,
@@ -206,5 +243,7 @@ class Cone extends Shape
 	intersection.getDpDv().set(y == 0 ? 1 : 0,
 				   y == 1 ? 1 : 0,
 				   y == 2 ? 1 : 0);
+	intersection.dPdULength = 2.0;
+	intersection.dPdVLength = 2.0;
     }
 }
@@ -7,23 +7,39 @@ import java.io.*;
 import javax.vecmath.*;
 import java.text.ParseException;
 import java.lang.*;
-import java.lang.reflect.*;
 
 class Cylinder extends Shape
 {
     public static String keyword = "cylinder";
 
+    static final int statsKind = RenderStats.shapeKind(Cylinder.class);
+
     /** constructor from tokenizer */
     public Cylinder(StreamTokenizer tokenizer)
-	throws ParseException, IOException, NoSuchMethodException,
-	       ClassNotFoundException,IllegalAccessException,
-	       InvocationTargetException
-	       
+	throws ParseException, IOException
     {
 	super(tokenizer);
 	read(tokenizer);
     }
 
+    /** constructor for the shapes of compiled scenes (see SceneCache) */
+    Cylinder()
+    {
+	super(null);
+    }
+
+    int getStatsKind() { return statsKind; }
+
+    // -----------------------------------------------------------------------
+
+    /** the cylinder fits in x, y from -1 to 1 and z from 0 to 1 */
+    void getObjectBounds(double[] b)
+    {
+	b[0] = b[1] = -1.0;
+	b[2] = 0.0;
+	b[3] = b[4] = b[5] = 1.0;
+    }
+
     // -----------------------------------------------------------------------
 
     /** computes the ray intersection point of a cylinder of radius 1
@@ -31,25 +47,39 @@ class Cylinder extends Shape
      */
     boolean hit(Ray r, ISect intersection, boolean all, double minT)
     {
-	ISect itube = new ISect(), icap0 = new ISect(), icap1 = new ISect();
 	boolean hit_tube, hit_cap0, hit_cap1;
-
-	hit_tube = hitTube(r, itube, all, minT);
-	hit_cap0 = hitCap0(r, icap0, all, minT);
-	hit_cap1 = hitCap1(r, icap1, all, minT);
+	double ttube = 0.0, tcap0 = 0.0, tcap1 = 0.0;
+
+	// Find the t value of each part first, and only compute the other
+	// fields for the closest one
+	hit_tube = hitTube(r, intersection, false, minT);
+	if (hit_tube)
+	    ttube = intersection.t;
+	hit_cap0 = hitCap0(r, intersection, false, minT);
+	if (hit_cap0)
+	    tcap0 = intersection.t;
+	hit_cap1 = hitCap1(r, intersection, false, minT);
+	if (hit_cap1)
+	    tcap1 = intersection.t;
 
 	if (hit_tube && 
-	    (!hit_cap0 || itube.t < icap0.t) && 
-	    (!hit_cap1 || itube.t < icap1.t)) {
-	    intersection.set(itube);
+	    (!hit_cap0 || ttube < tcap0) && 
+	    (!hit_cap1 || ttube < tcap1)) {
+	    if (all)
+		hitTube(r, intersection, true, minT);
+	    intersection.t = ttube;
 	} else if (hit_cap0 && 
-		   (!hit_tube || icap0.t < itube.t) && 
-		   (!hit_cap1 || icap0.t < icap1.t)) {
-	    intersection.set(icap0);
+		   (!hit_tube || tcap0 < ttube) && 
+		   (!hit_cap1 || tcap0 < tcap1)) {
+	    if (all)
+		hitCap0(r, intersection, true, minT);
+	    intersection.t = tcap0;
 	} else if (hit_cap1 && 
-		   (!hit_tube || icap1.t < itube.t) && 
-		   (!hit_cap0 || icap1.t < icap0.t)) {
-	    intersection.set(icap1);
+		   (!hit_tube || tcap1 < ttube) && 
+		   (!hit_cap0 || tcap1 < tcap0)) {
+	    if (all)
+		hitCap1(r, intersection, true, minT);
+	    intersection.t = tcap1;
 	} else {
 	    return false;
 	}
@@ -62,22 +92,25 @@ class Cylinder extends Shape
     private boolean hitTube(Ray r, ISect intersection, boolean all,
 			    double minT)
     {
-	double dlen, a, b, c, d, t1, t2, z1, z2;
+	double a, b, c, d, t1, t2, z1, z2;
 	boolean t1bad, t2bad;
 	double epsilon = 1e-6;
 
 	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
+	Vector3d dir = r.getDirection();
+
+	// Normalized ray direction (with the cached 1/|dir|; t values are
+	// scaled back at the end)
+	double s = r.getInvLength();
+	double rdx = dir.x * s, rdy = dir.y * s, rdz = dir.z * s;
 
-	minT *= dlen;
+	minT /= s;
 
-	a = rd.x * rd.x + rd.y * rd.y;
+	a = rdx * rdx + rdy * rdy;
 	if (a < epsilon * epsilon)
 	  return false;
 
-	b = rd.x * rp.x + rd.y * rp.y;
+	b = rdx * rp.x + rdy * rp.y;
 	c = rp.x * rp.x + rp.y * rp.y - 1;
 	d = b*b - a*c;
 
@@ -91,8 +124,8 @@ class Cylinder extends Shape
 	if (t1 < minT && t2 < minT)
 	  return false;
 
-	z1 = rp.z + t1 * rd.z;
-	z2 = rp.z + t2 * rd.z;
+	z1 = rp.z + t1 * rdz;
+	z2 = rp.z + t2 * rdz;
 
 	t1bad = (t1 < minT || z1 < 0.0 || z1 > 1.0);
 	t2bad = (t2 < minT || z2 < 0.0 || z2 > 1.0);
@@ -111,8 +144,9 @@ class Cylinder extends Shape
 	    Point3d ipoint = intersection.getHitPoint();
 	    Vector3d inorm = intersection.getNormal();
 
-	    ipoint.scale(intersection.t, rd);
-	    ipoint.add(rp);
+	    ipoint.set(intersection.t * rdx + rp.x,
+	               intersection.t * rdy + rp.y,
+	               intersection.t * rdz + rp.z);
 
 	    inorm.set(ipoint.x, ipoint.y, 0);
 	    inorm.normalize();
@@ -120,7 +154,7 @@ class Cylinder extends Shape
 	    uvTube(intersection);
 	}
 
-	intersection.t /= dlen;
+	intersection.t *= s;
 
 	return true;
     }
@@ -146,22 +180,28 @@ class Cylinder extends Shape
 	intersection.getDpDu().normalize();
 
 	intersection.getDpDv().set(0, 0, 1);
+
+	intersection.dPdULength = 2*Math.PI;
+	intersection.dPdVLength = 1.0;
     }
 
 
     private boolean hitCap0(Ray r, ISect intersection, boolean all,
 			    double minT)
     {
-	double pz, dz, t, dlen;
+	double pz, dz, t;
 	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
+	Vector3d dir = r.getDirection();
+
+	// Normalized ray direction (with the cached 1/|dir|; t values are
+	// scaled back at the end)
+	double s = r.getInvLength();
+	double rdx = dir.x * s, rdy = dir.y * s, rdz = dir.z * s;
 
-	minT *= dlen;
+	minT /= s;
 
 	pz = rp.z;
-	dz = rd.z;
+	dz = rdz;
 
 	if (dz == 0.0)
 	  return false;
@@ -172,11 +212,12 @@ class Cylinder extends Shape
 	  return false;
 
 	Point3d ipoint = intersection.getHitPoint();
-	ipoint.scale(t, rd);
-	ipoint.add(rp);
+	ipoint.set(t * rdx + rp.x,
+	           t * rdy + rp.y,
+	           t * rdz + rp.z);
 
 	if (ipoint.x * ipoint.x + ipoint.y * ipoint.y <= 1.0) {
-	    intersection.t = t / dlen;
+	    intersection.t = t * s;
 
 	    if (all) {
 		intersection.getNormal().set(0, 0, -1);
@@ -193,16 +234,19 @@ class Cylinder extends Shape
     private boolean hitCap1(Ray r, ISect intersection, boolean all, 
 			    double minT)
     {
-	double pz, dz, t, dlen;
+	double pz, dz, t;
 	Point3d rp = r.getPoint();
-	Vector3d rd = new Vector3d(r.getDirection());
-	dlen = rd.length();
-	rd.normalize();
+	Vector3d dir = r.getDirection();
 
-	minT *= dlen;
+	// Normalized ray direction (with the cached 1/|dir|; t values are
+	// scaled back at the end)
+	double s = r.getInvLength();
+	double rdx = dir.x * s, rdy = dir.y * s, rdz = dir.z * s;
+
+	minT /= s;
 
 	pz = rp.z;
-	dz = rd.z;
+	dz = rdz;
 
 	if (dz == 0.0)
 	  return false;
@@ -213,11 +257,12 @@ class Cylinder extends Shape
 	  return false;
 
 	Point3d ipoint = intersection.getHitPoint();
-	ipoint.scale(t, rd);
-	ipoint.add(rp);
+	ipoint.set(t * rdx + rp.x,
+	           t * rdy + rp.y,
+	           t * rdz + rp.z);
 
 	if (ipoint.x * ipoint.x + ipoint.y * ipoint.y <= 1.0) {
-	    intersection.t = t / dlen;
+	    intersection.t = t * s;
 
 	    if (all) {
 		intersection.getNormal().set(0, 0, 1);
@@ -233,11 +278,10 @@ class Cylinder extends Shape
 
     private void uvPlane(ISect intersection, int x, int y)
     {
-	double[] ipoint = new double[3];
-	intersection.getHitPoint().get(ipoint);
+	Point3d ipoint = intersection.getHitPoint();
 	
-	intersection.setU((ipoint[x]+1.0)/2);
-	intersection.setV((ipoint[y]+1.0)/2);
+	intersection.setU((Tools.get(ipoint, x)+1.0)/2);
+	intersection.setV((Tools.get(ipoint, y)+1.0)/2);
 	
 	intersection.getDpDu().set(x == 0 ? 1 : 0,
 				   x == 1 ? 1 : 0,
@@ -245,5 +289,7 @@ class Cylinder extends Shape
 	intersection.getDpDv().set(y == 0 ? 1 : 0,
 				   y == 1 ? 1 : 0,
 				   y == 2 ? 1 : 0);
+	intersection.dPdULength = 2.0;
+	intersection.dPdVLength = 2.0;
     }
 }
@@ -0,0 +1,218 @@
+/* class Group
+ * A named set of shapes (given between define {} and end {} in the
+ * scene file) with its own bounding volume hierarchy; the shapes are
+ * stored once and placed in the scene by any number of instances
+ *
+ * The transformations of the shapes are relative to the group (the
+ * matrix stack is reset to the identity by define {})
+ */
+import java.util.*;
+import javax.vecmath.*;
+
+class Group
+{
+    String name;
+
+    // The shapes (while the group is being defined), then as an array
+    Vector<Shape> shapes = new Vector<Shape>();
+    Shape[] shapeArray = new Shape[0];
+
+    BVH bvh;
+
+    // Closest hit and shadow queries of each render thread
+    private final ThreadLocal<ClosestHit> queries =
+        ThreadLocal.withInitial(ClosestHit::new);
+    private final ThreadLocal<TintHit> tintQueries =
+        ThreadLocal.withInitial(TintHit::new);
+
+    //------------------------------------------------------------------------
+
+    public Group(String name)
+    {
+        this.name = name;
+    }
+
+    public String getName() { return name; }
+
+    /** add a shape (with its transformation relative to the group) */
+    public void addShape(Shape s)
+    {
+        shapes.addElement(s);
+    }
+
+    /** build the hierarchy (when the definition is complete) */
+    public void setup()
+    {
+        shapeArray = shapes.toArray(new Shape[shapes.size()]);
+
+        double[] bounds = new double[6*shapeArray.length];
+        double[] b = new double[6];
+        for (int i = 0; i < shapeArray.length; i++) {
+            shapeArray[i].getWorldBounds(b);
+            System.arraycopy(b, 0, bounds, 6*i, 6);
+        }
+        bvh = new BVH(bounds, shapeArray.length);
+    }
+
+    /** bounds of the shapes (a point at the origin if there are none) */
+    public void getBounds(double[] b)
+    {
+        if (shapeArray.length == 0) {
+            Arrays.fill(b, 0, 6, 0.0);
+        } else {
+            bvh.getBounds(b);
+        }
+    }
+
+    //------------------------------------------------------------------------
+
+    /** computes the closest intersection (between minT and maxT) of ray
+     *  r, given in the coordinates of the group, with its shapes, and
+     *  stores it in intersection (whose point, normal and derivatives
+     *  are then also in the coordinates of the group, if all is true)
+     */
+    public boolean hit(Ray r, ISect intersection, boolean all, double minT,
+                       double maxT)
+    {
+        ClosestHit query = queries.get();
+        query.ray          = r;
+        query.minT         = minT;
+        query.closest      = null;
+        query.closestT     = maxT;
+
+        bvh.traverseGroup(r, minT, maxT, query,
+                     query.stack(bvh.depth + 1));
+
+        Shape s = query.closest;
+        query.ray = null;
+        if (s == null)
+            return false;
+
+        // Only the closest shape computes the rest of the intersection
+        s.getInverse().transform(r, query.shapeRay);
+        s.hit(query.shapeRay, intersection, all, minT, maxT);
+        intersection.setT(query.closestT);
+
+        if (all) {
+            // From the coordinates of the shape to those of the group
+            Matrix4d m = s.getMatrix();
+            m.transform(intersection.getHitPoint());
+            s.getInverse().transformNormal(intersection.getNormal());
+
+            Vector3d dPdU = intersection.getDpDu(), dPdV = intersection.getDpDv();
+            m.transform(dPdU);
+            m.transform(dPdV);
+            intersection.dPdULength *= dPdU.length();
+            intersection.dPdVLength *= dPdV.length();
+            dPdU.normalize();
+            dPdV.normalize();
+        }
+
+        return true;
+    }
+
+    /** multiply tint by the Kt of every shape hit by ray r (given in the
+     *  coordinates of the group) between minT and maxT, stopping once no
+     *  light is left, and return whether any shape was hit (the last
+     *  shape hit is then in intersection)
+     */
+    public boolean tint(Ray r, ISect intersection, double minT, double maxT,
+                        Vector3d tint)
+    {
+        TintHit query = tintQueries.get();
+        query.ray          = r;
+        query.intersection = intersection;
+        query.minT         = minT;
+        query.maxT         = maxT;
+        query.tint         = tint;
+        query.any          = false;
+
+        bvh.traverseGroup(r, minT, maxT, query, query.stack(bvh.depth + 1));
+
+        query.ray = null;
+        query.intersection = null;
+        query.tint = null;
+        return query.any;
+    }
+
+    /** closest hit query: the BVH visitor used by hit() (each thread has
+     *  its own, so that the scratch objects are not shared)
+     */
+    class ClosestHit implements BVH.Visitor
+    {
+        Ray     ray;
+        double  minT;
+
+        // Shape and distance of the closest hit so far (null if none)
+        Shape   closest;
+        double  closestT;
+
+        Ray     shapeRay = new Ray();
+        ISect   temp     = new ISect();
+        int[]   stack    = new int[0];
+
+        int[] stack(int size)
+        {
+            if (stack.length < size)
+                stack = new int[size];
+            return stack;
+        }
+
+        public double visit(int[] prims, int first, int count, double tMax)
+        {
+            for (int k = first; k < first + count; k++) {
+                Shape s = shapeArray[prims[k]];
+
+                s.getInverse().transform(ray, shapeRay);
+
+                if (s.hit(shapeRay, temp, false, minT, tMax) &&
+                    temp.getT() < closestT) {
+                    closestT = temp.getT();
+                    closest = s;
+                }
+            }
+            return closestT;
+        }
+    }
+
+    /** all hits query: the BVH visitor used by tint() */
+    class TintHit implements BVH.Visitor
+    {
+        Ray      ray;
+        ISect    intersection;
+        double   minT, maxT;
+        Vector3d tint;
+
+        // Whether any shape was hit
+        boolean  any;
+
+        Ray      shapeRay = new Ray();
+        ISect    temp     = new ISect();
+        int[]    stack    = new int[0];
+
+        int[] stack(int size)
+        {
+            if (stack.length < size)
+                stack = new int[size];
+            return stack;
+        }
+
+        public double visit(int[] prims, int first, int count, double tMax)
+        {
+            for (int k = first; k < first + count; k++) {
+                Shape s = shapeArray[prims[k]];
+
+                s.getInverse().transform(ray, shapeRay);
+
+                if (s.tint(shapeRay, temp, minT, maxT, tint)) {
+                    intersection.set(temp);
+                    any = true;
+                    if (tint.x == 0.0 && tint.y == 0.0 && tint.z == 0.0)
+                        return -1;
+                }
+            }
+            // (every shape hit before maxT counts, so the range stays)
+            return tMax;
+        }
+    }
+}
@@ -10,6 +10,11 @@ public class ISect
     // reference to the intersected object (null if none)
     Shape hitObject = null;
 
+    // the object of the scene whose coordinates the hit point, normal
+    // and derivatives are in: the hit object, or the instance that
+    // contains it
+    Shape sceneObject = null;
+
     // intersection t value (measures distance from ray origin along ray
     // if ray direction normalized)
     double t = 0.0;
@@ -28,11 +33,21 @@ public class ISect
     Vector3d dPdU = new Vector3d();
     Vector3d dPdV = new Vector3d();
 
+    // lengths of the surface derivatives (dPdU and dPdV are normalized):
+    // the object space distance covered by a unit change of u or v
+    double dPdULength = 1.0;
+    double dPdVLength = 1.0;
+
+    // width (in world space) of the area seen through one pixel at the
+    // intersection, along the path of the ray (0 if unknown)
+    double footprint = 0.0;
+
     //------------------------------------------------------------------------
     // accessors
 
     double    getT()         { return t; }
     Shape     getHitObject() { return hitObject; }
+    Shape     getSceneObject() { return sceneObject; }
     Point3d   getHitPoint()  { return hitPoint; }
     Vector3d  getNormal()    { return normal; }
     double    getU()         { return u; }
@@ -41,7 +56,7 @@ public class ISect
     Vector3d  getDpDv()      { return dPdV; }
     
     void setT(double newT)           { t = newT; }
-    void setHitObject(Shape obj)     { hitObject = obj; }
+    void setHitObject(Shape obj)     { hitObject = sceneObject = obj; }
     void setHitPoint (Point3d point) { hitPoint.set(point); }
     void setU(double newU)           { u = newU; }
     void setV(double newV)           { v = newV; }
@@ -50,6 +65,7 @@ public class ISect
     void set(ISect other)
     {
         hitObject = other.hitObject;
+        sceneObject = other.sceneObject;
         t = other.t;
 
         hitPoint.set(other.hitPoint);
@@ -60,6 +76,10 @@ public class ISect
 
         dPdU.set(other.dPdU);
         dPdV.set(other.dPdV);
+        dPdULength = other.dPdULength;
+        dPdVLength = other.dPdVLength;
+
+        footprint = other.footprint;
     }
 
     public String toString()
@@ -0,0 +1,96 @@
+/* class Instance
+ * A copy of a group of shapes (see Group), placed by its own
+ * transformation: the ray is transformed into the group once, rather
+ * than once for each of the shapes
+ */
+import java.io.*;
+import javax.vecmath.*;
+
+class Instance extends Shape
+{
+    static final int statsKind = RenderStats.shapeKind(Instance.class);
+
+    Group group;
+
+    /** an instance of group g */
+    public Instance(Group g)
+    {
+	super(null);
+
+	group = g;
+	name = g.getName();
+    }
+
+    int getStatsKind() { return statsKind; }
+
+    // -----------------------------------------------------------------------
+
+    /** the bounds of the shapes of the group */
+    void getObjectBounds(double[] b)
+    {
+	group.getBounds(b);
+    }
+
+    /** bounds after applying m: the union of the bounds of the shapes
+     *  placed by m (tighter than transforming the bounds of the group
+     *  when it is rotated)
+     */
+    void getBounds(Matrix4d m, double[] b)
+    {
+	BVH.emptyBounds(b, 0);
+
+	Matrix4d sm = new Matrix4d();
+	double[] sb = new double[6];
+	for (Shape s : group.shapeArray) {
+	    sm.mul(m, s.getMatrix());
+	    s.getBounds(sm, sb);
+	    BVH.grow(b, 0, sb, 0);
+	}
+	if (group.shapeArray.length == 0)
+	    super.getBounds(m, b);
+    }
+
+    /** computes the closest intersection of the ray with the shapes of
+     *  the group
+     *
+     * The hit object of the intersection is the shape of the group that
+     * was hit (which supplies the material), while the point, normal
+     * and derivatives are in the coordinates of this instance
+     */
+    boolean hit(Ray r, ISect intersection, boolean all, double minT)
+    {
+	return hit(r, intersection, all, minT, Double.MAX_VALUE);
+    }
+
+    /** hit(), only looking at the shapes whose bounds are hit before
+     *  maxT */
+    boolean hit(Ray r, ISect intersection, boolean all, double minT,
+		double maxT)
+    {
+	if (!group.hit(r, intersection, all, minT, maxT))
+	    return false;
+
+	intersection.sceneObject = this;
+	return true;
+    }
+
+    /** tint by every shape of the group hit between minT and maxT (as
+     *  would the shapes if they were not instanced) */
+    boolean tint(Ray r, ISect intersection, double minT, double maxT,
+		 Vector3d tint)
+    {
+	if (!group.tint(r, intersection, minT, maxT, tint))
+	    return false;
+
+	intersection.sceneObject = this;
+	return true;
+    }
+
+    public void print(PrintStream out)
+    {
+	super.print(out);
+
+	out.println("Group    : " + group.getName() + " (" +
+		    group.shapeArray.length + " shapes)");
+    }
+}
@@ -5,12 +5,18 @@
  */
 import java.io.*;
 import java.text.ParseException;
-import java.lang.reflect.*;
 import javax.vecmath.*;
 
 class Light extends RaytracerObject
 {
     final public static String keyword = "light";
+
+    static final ParamSpec<?, ?>[] paramSpecs =
+        specs(RaytracerObject.paramSpecs,
+              ParamSpec.of("position",    Parser::readPoint3d,  Light::setPosition),
+              ParamSpec.of("direction",   Parser::readVector3d, Light::setDirection),
+              ParamSpec.of("color",       Parser::readVector3d, Light::setColor),
+              ParamSpec.of("attenuation", Parser::readVector3d, Light::setAttenuation));
     
     /** parameters of the light source */
 
@@ -32,26 +38,22 @@ class Light extends RaytracerObject
 	
     /** constructor that reads the content of the object from the tokenizer */
     public Light(StreamTokenizer tokenizer)
-        throws ParseException, IOException, NoSuchMethodException,
-        ClassNotFoundException,IllegalAccessException,
-        InvocationTargetException
+        throws ParseException, IOException
     {
         super(tokenizer);
 
-        // add the parameters
-        addSpec("position",     "setPosition",
-                position.getClass().getName());
-        addSpec("direction",    "setDirection", 
-                (new Vector3d()).getClass().getName());
-        addSpec("color",        "setColor",
-                color.getClass().getName());
-        addSpec("attenuation",  "setAttenuation",
-                attenuation.getClass().getName());
-
         // read the content of this object
         read(tokenizer);
     }
 
+    /** constructor for the lights of compiled scenes (see SceneCache) */
+    Light()
+    {
+        super(null);
+    }
+
+    ParamSpec<?, ?>[] getParamSpecs() { return paramSpecs; }
+
     /** transform light location given matrix m */
     public void transform(Matrix4d m)
     {
@@ -114,13 +116,18 @@ class Light extends RaytracerObject
 
     //------------------------------------------------------------------------
 
-	public double a(Vector3d Li)
-	{
-		double length = Li.length();
-		Vector3d atten = getAttenuation();
-		double factor = 1.0/(atten.x+atten.y*length+atten.z*length*length);
-		return factor;
-	}
+    /** attenuation factor for light vector Li */
+    public double a(Vector3d Li)
+    {
+	return a(Li.x, Li.y, Li.z);
+    }
+
+    public double a(double lx, double ly, double lz)
+    {
+	double length = Math.sqrt(lx*lx + ly*ly + lz*lz);
+	Vector3d atten = getAttenuation();
+	return 1.0/(atten.x+atten.y*length+atten.z*length*length);
+    }
 
     /** compute the resulting color at an intersection point for
      *  _this_ light, which has been tinted (from shadowing), and given
@@ -141,82 +148,145 @@ class Light extends RaytracerObject
      */
     Vector3d compute(ISect intersection, Vector3d tint, Ray r)
     {
-        // Material for this object
-        Material mat = intersection.getHitObject().getMaterialRef();
-        Vector3d Li = null;
-        Point3d pos = getPosition();
-        if(pos == null)
-        {
-        	Li = getDirection();
-        }
-        else
-        {
-		Li = new Vector3d(getPosition());
-		Li.sub(intersection.getHitPoint());
+	Vector3d result = new Vector3d();
+	compute(intersection, tint, r, result);
+	return result;
+    }
+
+    /** compute the color for this light (as above) into result, without
+     *  allocating
+     */
+    void compute(ISect intersection, Vector3d tint, Ray r, Vector3d result)
+    {
+	shade(intersection, tint, r, result, true, true, false);
+    }
+
+    /** the ambient part of compute() (the part that shadows do not
+     *  affect) into result
+     */
+    void ambient(ISect intersection, Vector3d result)
+    {
+	shade(intersection, null, null, result, true, false, false);
+    }
+
+    /** the diffuse and specular part of compute() into result, for a
+     *  light sampled from the light tree: unlike in compute(), a point
+     *  light is attenuated by its distance (as the tree expects)
+     */
+    void direct(ISect intersection, Vector3d tint, Ray r, Vector3d result)
+    {
+	shade(intersection, tint, r, result, false, true, true);
+    }
+
+    /** compute() with the ambient term and/or the diffuse and specular
+     *  terms, attenuating point lights by their distance if byDistance
+     */
+    private void shade(ISect intersection, Vector3d tint, Ray r,
+		       Vector3d result, boolean withAmbient,
+		       boolean withDirect, boolean byDistance)
+    {
+	// Material for this object
+	Material mat = intersection.getHitObject().getMaterialRef();
+	Point3d pos = getPosition();
+
+	double shine = mat.getShiny();
+
+	// Texture color (result is free to use as scratch space until the
+	// end)
+	boolean textured = mat.hasTexture();
+	double tx = 1.0, ty = 1.0, tz = 1.0;
+	if (textured) {
+	    Vector3d tex = mat.getTextureColor(intersection, result);
+	    tx = tex.x;
+	    ty = tex.y;
+	    tz = tex.z;
+	}
+
+	// first light term (ambient)
+	double ax = 0.0, ay = 0.0, az = 0.0;
+	if (withAmbient) {
+	    Vector3d ka = mat.getKa();
+	    ax = color.x * ka.x;
+	    ay = color.y * ka.y;
+	    az = color.z * ka.z;
+	    if (textured) {
+		ax *= tx;
+		ay *= ty;
+		az *= tz;
+	    }
+	}
+	if (!withDirect) {
+	    result.set(ax, ay, az);
+	    return;
+	}
+
+	// Normalized light vector Li
+	double lx, ly, lz;
+	if (pos == null) {
+	    lx = direction.x;
+	    ly = direction.y;
+	    lz = direction.z;
+	} else {
+	    Point3d p = intersection.getHitPoint();
+	    lx = pos.x - p.x;
+	    ly = pos.y - p.y;
+	    lz = pos.z - p.z;
+	}
+
+	// Point lights are attenuated by their distance (if byDistance),
+	// directional lights by a unit distance
+	double atten = pos != null && byDistance ? a(lx, ly, lz) : 1.0;
+
+	double s = 1.0/Math.sqrt(lx*lx + ly*ly + lz*lz);
+	lx *= s;
+	ly *= s;
+	lz *= s;
+
+	if (pos == null)
+	    atten = a(lx, ly, lz);
+
+	// second light term (diffuse)
+	double dx = color.x * atten, dy = color.y * atten, dz = color.z * atten;
+	Vector3d kd = mat.getKd();
+	dx = dx * tint.x * kd.x;
+	dy = dy * tint.y * kd.y;
+	dz = dz * tint.z * kd.z;
+	if (textured) {
+	    dx *= tx;
+	    dy *= ty;
+	    dz *= tz;
+	}
+
+	Vector3d norm = intersection.getNormal();
+	norm.normalize();
+	double nDotl = norm.x*lx + norm.y*ly + norm.z*lz;
+	double diffuse = Math.max(0, nDotl);
+
+	result.set(ax + dx*diffuse, ay + dy*diffuse, az + dz*diffuse);
+
+	// third light term (specular)
+	if (nDotl >= 0) {
+	    // Ri = reflection of Li around the normal
+	    double k = 2 * nDotl;
+	    double rx = norm.x*k - lx, ry = norm.y*k - ly, rz = norm.z*k - lz;
+	    s = 1.0/Math.sqrt(rx*rx + ry*ry + rz*rz);
+	    rx *= s;
+	    ry *= s;
+	    rz *= s;
+
+	    // v = -(normalized ray direction)
+	    Vector3d d = r.getDirection();
+	    s = 1.0/Math.sqrt(d.x*d.x + d.y*d.y + d.z*d.z);
+	    double vx = d.x*s*-1.0, vy = d.y*s*-1.0, vz = d.z*s*-1.0;
+
+	    double rDotv = rx*vx + ry*vy + rz*vz;
+
+	    double sx = color.x * atten, sy = color.y * atten, sz = color.z * atten;
+	    Vector3d ks = mat.getKs();
+	    double specular = Math.pow(Math.max(0,rDotv),shine);
+	    result.x += sx * tint.x * ks.x * specular;
+	    result.y += sy * tint.y * ks.y * specular;
+	    result.z += sz * tint.z * ks.z * specular;
 	}
-		
-		Li.normalize();
-		
-        // Compute color
-        	double shine = mat.getShiny();
-        	//first light term
-		Vector3d firstTerm = new Vector3d(color);
-		Tools.termwiseMul3d(firstTerm, mat.getKa());
-		if(mat.hasTexture())
-		{
-			Tools.termwiseMul3d(firstTerm, mat.getTextureColor(intersection.getU(), intersection.getV()));
-		}
-		
-		//second light term
-		Vector3d secondTerm = new Vector3d(color);
-		
-			if(pos == null)
-			{
-				secondTerm.scale(a(Li));
-			}
-			
-		
-		Tools.termwiseMul3d(secondTerm, tint);
-		Tools.termwiseMul3d(secondTerm, mat.getKd());
-		if(mat.hasTexture())
-		{
-			Tools.termwiseMul3d(secondTerm, mat.getTextureColor(intersection.getU(), intersection.getV()));
-		}
-		
-		
-		Vector3d norm = intersection.getNormal();
-		norm.normalize();
-		double nDotl = norm.dot(Li);
-		secondTerm.scale(Math.max(0,nDotl));
-		
-		//third light term
-		Vector3d thirdTerm = null;
-			
-		Vector3d result = new Vector3d();
-		result.add(firstTerm,secondTerm);
-		if(nDotl >= 0)
-		{
-			Vector3d Ri = new Vector3d();
-			Vector3d v = new Vector3d(r.getDirection());
-			v.normalize();
-			v.scale(-1.0);
-			Tools.reflect(Ri,Li,norm);
-			Ri.normalize();
-			double rDotv = Ri.dot(v);
-			thirdTerm = new Vector3d(color);
-			
-			if(pos == null)
-			{
-				thirdTerm.scale(a(Li));
-			}
-			
-			Tools.termwiseMul3d(thirdTerm, tint);
-			Tools.termwiseMul3d(thirdTerm, mat.getKs());
-			double specular = Math.pow(Math.max(0,rDotv),shine);
-			thirdTerm.scale(specular);
-			result.add(thirdTerm);
-		}
-		//System.out.println("x "+ result.x+" y "+result.y+" z "+ result.z);
-		return result;
     }
 }
@@ -0,0 +1,188 @@
+/* class LightTree
+ * A hierarchy over the point lights of a scene, for choosing the lights
+ * that light a point at random, each with a probability that follows how
+ * much it may add there
+ *
+ * Every node keeps the bounds of the positions of its lights, their
+ * total intensity (the sum of the color channels), and the smallest of
+ * each of their attenuation coefficients.  The importance of a node at a
+ * point is its intensity, times its attenuation at the closest distance
+ * to its bounds (which no light of the node exceeds), or 0 if its bounds
+ * are entirely behind the surface there.  A light is picked by walking
+ * down from the root, choosing each child with a probability in
+ * proportion to its importance; the probability of the light is the
+ * product of those choices
+ */
+import java.util.*;
+import javax.vecmath.*;
+
+class LightTree
+{
+    // Nodes: bounds (6 per node), intensity, smallest attenuation
+    // coefficients (3 per node), and the first child (the second is at
+    // child+1) or, for a leaf, -1 - the index of its light in the scene
+    double[] bounds;
+    double[] intensity;
+    double[] attenuation;
+    int[]    child;
+
+    int nodes = 0;
+
+    //------------------------------------------------------------------------
+
+    /** a tree over the point lights among lights (null if there are none) */
+    static LightTree build(Vector<Light> lights)
+    {
+        List<Integer> points = new ArrayList<Integer>();
+        for (int l = 0; l < lights.size(); l++)
+            if (!lights.elementAt(l).isDirectional())
+                points.add(l);
+        if (points.isEmpty())
+            return null;
+
+        LightTree t = new LightTree(2*points.size() - 1);
+        int[] indices = new int[points.size()];
+        for (int k = 0; k < indices.length; k++)
+            indices[k] = points.get(k);
+
+        t.nodes = 1;
+        t.build(0, lights, indices, 0, indices.length);
+        return t;
+    }
+
+    private LightTree(int size)
+    {
+        bounds      = new double[6*size];
+        intensity   = new double[size];
+        attenuation = new double[3*size];
+        child       = new int[size];
+    }
+
+    /** fill node 'node' with the lights indices[first, last), splitting
+     *  them in half along the longest axis of their bounds
+     */
+    private void build(int node, Vector<Light> lights, int[] indices,
+                       int first, int last)
+    {
+        BVH.emptyBounds(bounds, 6*node);
+        intensity[node] = 0.0;
+        Arrays.fill(attenuation, 3*node, 3*node + 3, Double.MAX_VALUE);
+
+        for (int k = first; k < last; k++) {
+            Light l = lights.elementAt(indices[k]);
+            Point3d p = l.getPosition();
+            double[] c = { p.x, p.y, p.z };
+            for (int a = 0; a < 3; a++) {
+                bounds[6*node+a]   = Math.min(bounds[6*node+a],   c[a]);
+                bounds[6*node+a+3] = Math.max(bounds[6*node+a+3], c[a]);
+            }
+            Vector3d col = l.getColor();
+            intensity[node] += Math.max(col.x, 0.0) + Math.max(col.y, 0.0) +
+                               Math.max(col.z, 0.0);
+            Vector3d att = l.getAttenuation();
+            attenuation[3*node]   = Math.min(attenuation[3*node],   att.x);
+            attenuation[3*node+1] = Math.min(attenuation[3*node+1], att.y);
+            attenuation[3*node+2] = Math.min(attenuation[3*node+2], att.z);
+        }
+
+        if (last - first == 1) {
+            child[node] = -1 - indices[first];
+            return;
+        }
+
+        // Longest axis, and the lights sorted along it
+        int axis = 0;
+        for (int a = 1; a < 3; a++)
+            if (bounds[6*node+a+3] - bounds[6*node+a] >
+                bounds[6*node+axis+3] - bounds[6*node+axis])
+                axis = a;
+
+        final int ax = axis;
+        Integer[] sorted = new Integer[last - first];
+        for (int k = first; k < last; k++)
+            sorted[k - first] = indices[k];
+        Arrays.sort(sorted, Comparator.comparingDouble(
+            i -> Tools.get(lights.elementAt(i).getPosition(), ax)));
+        for (int k = first; k < last; k++)
+            indices[k] = sorted[k - first];
+
+        int left = nodes;
+        nodes += 2;
+        child[node] = left;
+
+        int middle = (first + last) / 2;
+        build(left,     lights, indices, first,  middle);
+        build(left + 1, lights, indices, middle, last);
+    }
+
+    //------------------------------------------------------------------------
+
+    /** the importance of node at point p with normal n (see above) */
+    double importance(int node, Point3d p, Vector3d n)
+    {
+        int b = 6*node;
+
+        // Closest distance to the bounds
+        double dx = Math.max(0.0, Math.max(bounds[b]   - p.x, p.x - bounds[b+3]));
+        double dy = Math.max(0.0, Math.max(bounds[b+1] - p.y, p.y - bounds[b+4]));
+        double dz = Math.max(0.0, Math.max(bounds[b+2] - p.z, p.z - bounds[b+5]));
+        double d = Math.sqrt(dx*dx + dy*dy + dz*dz);
+
+        // (lights behind the surface only add ambient light, which is
+        // not sampled)
+        boolean front = false;
+        for (int c = 0; c < 8 && !front; c++) {
+            double cx = ((c & 1) == 0 ? bounds[b]   : bounds[b+3]) - p.x;
+            double cy = ((c & 2) == 0 ? bounds[b+1] : bounds[b+4]) - p.y;
+            double cz = ((c & 4) == 0 ? bounds[b+2] : bounds[b+5]) - p.z;
+            front = n.x*cx + n.y*cy + n.z*cz >= 0.0;
+        }
+        if (!front)
+            return 0.0;
+
+        int a = 3*node;
+        double falloff = attenuation[a] + attenuation[a+1]*d +
+                         attenuation[a+2]*d*d;
+        return intensity[node] / Math.max(falloff, 1e-12);
+    }
+
+    /** pick a light for point p with normal n, given a random number u in
+     *  [0, 1): returns the index of the light in the scene, and its
+     *  probability in probability[0] (-1 if no light adds anything at p)
+     */
+    int sample(Point3d p, Vector3d n, double u, double[] probability)
+    {
+        int node = 0;
+        double pr = 1.0;
+        if (importance(0, p, n) <= 0.0) {
+            probability[0] = 0.0;
+            return -1;
+        }
+
+        while (child[node] >= 0) {
+            int left = child[node];
+            double il = importance(left, p, n);
+            double ir = importance(left + 1, p, n);
+            if (il + ir <= 0.0) {
+                probability[0] = 0.0;
+                return -1;
+            }
+            double pl = il / (il + ir);
+
+            // (u is reused: it is rescaled to [0, 1) within the choice)
+            if (u < pl) {
+                node = left;
+                pr *= pl;
+                u = u / pl;
+            } else {
+                node = left + 1;
+                pr *= 1.0 - pl;
+                u = (u - pl) / (1.0 - pl);
+            }
+            u = Math.min(u, Math.nextDown(1.0));
+        }
+
+        probability[0] = pr;
+        return -1 - child[node];
+    }
+}
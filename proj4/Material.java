@@ -5,13 +5,25 @@
  */
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
 import javax.vecmath.*;
 import java.text.ParseException;
 
 class Material extends RaytracerObject
 {
     final public static String keyword = "material";
+
+    static final ParamSpec<?, ?>[] paramSpecs =
+	specs(RaytracerObject.paramSpecs,
+	      ParamSpec.of("ka", Parser::readVector3d, Material::setKa),
+	      ParamSpec.of("kd", Parser::readVector3d, Material::setKd),
+	      ParamSpec.of("ks", Parser::readVector3d, Material::setKs),
+	      ParamSpec.of("kt", Parser::readVector3d, Material::setKt),
+	      ParamSpec.of("index", Parser::readDouble, Material::setIndex),
+	      ParamSpec.of("shiny", Parser::readDouble, Material::setShiny),
+	      ParamSpec.of("texture", Material::readTextureSpec,
+			   Material::setTextureSpec),
+	      ParamSpec.of("checker", Material::readCheckerSpec,
+			   Material::setCheckerSpec));
     
     // Ka (R, G, B)
     Vector3d ambient     = new Vector3d();
@@ -34,6 +46,7 @@ class Material extends RaytracerObject
     // Texture image specification
     String textureFileName     = null;
     RGBImage textureImage      = null;
+    MipMap texture             = null;
 
     // Texture repeating factors
     double textureScaleU       = 1.0;
@@ -48,8 +61,7 @@ class Material extends RaytracerObject
     /** Steps for adding a custom material:
      *   - add class variables for specifying material
      *   - write a setXXXSpec() and readXXXSpec() method, and
-     *     pass it, along with the material name XXX to addSpecSpecial()
-     *     in the Material(tokenizer) constructor
+     *     add them, along with the material name XXX, to paramSpecs
      *   - add a check (using ||) in hasTexture()
      *   - put in another check in getTextureColor() that will call
      *     getXXXColor(u,v)
@@ -59,9 +71,6 @@ class Material extends RaytracerObject
 
     /** constructor for default material */
     public Material(String matName)
-           throws ParseException, IOException, NoSuchMethodException,
-                  ClassNotFoundException,IllegalAccessException,
-                  InvocationTargetException
     {
 	super(null);
 
@@ -72,27 +81,16 @@ class Material extends RaytracerObject
 
     /** constructor that reads the content of the object from the tokenizer */
     public Material(StreamTokenizer tokenizer)
-           throws ParseException, IOException, NoSuchMethodException,
-                  ClassNotFoundException,IllegalAccessException,
-                  InvocationTargetException
+           throws ParseException, IOException
     {
 	super(tokenizer);
 
-	// add the parameters
-	addSpec("ka", "setKa", ambient.getClass().getName());
-	addSpec("kd", "setKd", diffuse.getClass().getName());
-	addSpec("ks", "setKs", specular.getClass().getName());
-	addSpec("kt", "setKt", transparent.getClass().getName());
-	addSpec("index", "setIndex", "java.lang.Double");
-	addSpec("shiny", "setShiny", "java.lang.Double");
-
-	addSpecSpecial("texture", "setTextureSpec", "readTextureSpec");
-	addSpecSpecial("checker", "setCheckerSpec", "readCheckerSpec");
-
 	// read the content of this object
 	read(tokenizer);
     }
 
+    ParamSpec<?, ?>[] getParamSpecs() { return paramSpecs; }
+
     /** Set up materials (read in textures) */
     public void setup(boolean verbose)
     {
@@ -102,10 +100,12 @@ class Material extends RaytracerObject
 		if (verbose)
 		  System.out.println("Loading texture " + textureFileName);
 
-                textureImage = new RGBImage(textureFileName);
+                texture = MipMap.get(textureFileName);
+                textureImage = texture.getImage();
             } catch (IOException E) {
                 System.err.println("Error while reading file " + 
 				   textureFileName);
+                texture = null;
                 textureImage = null;
                 textureFileName = null;
             }
@@ -131,8 +131,13 @@ class Material extends RaytracerObject
     //------------------------------------------------------------------------
 
     // properties
-    public boolean isMatte()    { return specular.equals(new Vector3d()); }
-    public boolean isOpaque()   { return transparent.equals(new Vector3d()); }
+    public boolean isMatte()    { return isZero(specular); }
+    public boolean isOpaque()   { return isZero(transparent); }
+
+    private static boolean isZero(Vector3d c)
+    {
+	return c.x == 0.0 && c.y == 0.0 && c.z == 0.0;
+    }
 
     //------------------------------------------------------------------------
 
@@ -144,11 +149,20 @@ class Material extends RaytracerObject
 
     /** returns the texture color corresponding to the u, v coordinates */
     public Vector3d getTextureColor(double u, double v)
+    {
+	return getTextureColor(u, v, new Vector3d());
+    }
+
+    /** returns the texture color corresponding to the u, v coordinates;
+     *  result may be used to hold it (the returned vector must not be
+     *  modified)
+     */
+    public Vector3d getTextureColor(double u, double v, Vector3d result)
     {
 	if (checkerColor1 != null) {
 	    return getCheckerColor(u,v);
 	} else if (textureImage != null) {
-	    return getTextureImageColor(u,v);
+	    return getTextureImageColor(u,v,result);
 	} else {
 	    // Illegal texture specification
 	    System.err.println("Unknown texture specification");
@@ -156,6 +170,18 @@ class Material extends RaytracerObject
 	}
     }
 
+    /** returns the texture color at an intersection (image textures
+     *  are filtered according to its footprint); result may be used to
+     *  hold it (the returned vector must not be modified)
+     */
+    public Vector3d getTextureColor(ISect intersection, Vector3d result)
+    {
+	if (checkerColor1 == null && textureImage != null)
+	    return getTextureImageColor(intersection, result);
+	return getTextureColor(intersection.getU(), intersection.getV(),
+			       result);
+    }
+
     //------------------------------------------------------------------------
     // Texture image
 
@@ -183,8 +209,56 @@ class Material extends RaytracerObject
     /** returns the image color corresponding to the u, v coordinates */
     public Vector3d getTextureImageColor(double u, double v)
     {
-	return textureImage.getSubPixel((u * textureScaleU) % 1,
-					(v * textureScaleV) % 1);
+	return getTextureImageColor(u, v, new Vector3d());
+    }
+
+    public Vector3d getTextureImageColor(double u, double v, Vector3d result)
+    {
+	textureImage.getSubPixel((u * textureScaleU) % 1,
+				 (v * textureScaleV) % 1, result);
+	return result;
+    }
+
+    /** image color at an intersection, taken from the mip-map level
+     *  whose texels match the size of the footprint there
+     */
+    public Vector3d getTextureImageColor(ISect intersection, Vector3d result)
+    {
+	double u = (intersection.getU() * textureScaleU) % 1;
+	double v = (intersection.getV() * textureScaleV) % 1;
+
+	double level = 0.0;
+	if (intersection.footprint > 0.0) {
+	    // World space length of one repeat of the image along u and v
+	    Matrix4d m = intersection.getSceneObject().getMatrix();
+	    double lu = length(m, intersection.getDpDu()) *
+		intersection.dPdULength / textureScaleU;
+	    double lv = length(m, intersection.getDpDv()) *
+		intersection.dPdVLength / textureScaleV;
+
+	    // Number of texels the footprint covers (a zero length means
+	    // the coordinate is degenerate at this point)
+	    double texels = 0.0;
+	    if (lu > 0.0)
+		texels = intersection.footprint * textureImage.getWidth() / lu;
+	    if (lv > 0.0)
+		texels = Math.max(texels, intersection.footprint *
+				  textureImage.getHeight() / lv);
+
+	    level = texture.level(texels);
+	}
+
+	texture.getColor(u, v, level, result);
+	return result;
+    }
+
+    /** length of direction d transformed by m */
+    private static double length(Matrix4d m, Vector3d d)
+    {
+	double x = m.m00 * d.x + m.m01 * d.y + m.m02 * d.z;
+	double y = m.m10 * d.x + m.m11 * d.y + m.m12 * d.z;
+	double z = m.m20 * d.x + m.m21 * d.y + m.m22 * d.z;
+	return Math.sqrt(x*x + y*y + z*z);
     }
 
     //------------------------------------------------------------------------
@@ -46,6 +46,13 @@ class MatrixStack
 	s.pop();
     }
     
+    /** number of matrices on the stack (one more than the pushes not yet
+        popped) */
+    public int size()
+    {
+	return s.size();
+    }
+
     /** returns a reference to the top matrix */
     public Matrix4d peek()
 	throws EmptyStackException
@@ -0,0 +1,94 @@
+/* class Mesh
+ * Ray-object intersections for a triangle mesh read from an OBJ file
+ */
+import java.io.*;
+import javax.vecmath.*;
+import java.text.ParseException;
+
+class Mesh extends Shape
+{
+    public static String keyword = "mesh";
+
+    static final ParamSpec<?, ?>[] paramSpecs =
+	specs(Shape.paramSpecs,
+	      ParamSpec.of("file", Parser::readString, Mesh::setFileName));
+
+    static final int statsKind = RenderStats.shapeKind(Mesh.class);
+
+    // Name of the OBJ file, and its triangles
+    String fileName = null;
+    TriangleMesh mesh;
+
+    /** constructor from tokenizer */
+    public Mesh(StreamTokenizer tokenizer)
+	throws ParseException, IOException
+    {
+	super(tokenizer);
+	read(tokenizer);
+
+	if (fileName == null)
+	    throw new ParseException("mesh without a file",
+				     tokenizer.lineno());
+	try {
+	    mesh = TriangleMesh.get(fileName);
+	} catch (IOException e) {
+	    throw new ParseException("Cannot read mesh " + fileName + ": " +
+				     e.getMessage(), tokenizer.lineno());
+	}
+    }
+
+    /** constructor for the meshes of compiled scenes (see SceneCache) */
+    Mesh(String fileName, TriangleMesh mesh)
+    {
+	super(null);
+
+	this.fileName = fileName;
+	this.mesh = mesh;
+    }
+
+    ParamSpec<?, ?>[] getParamSpecs() { return paramSpecs; }
+    int getStatsKind() { return statsKind; }
+
+    public void setFileName(String newName) { fileName = newName; }
+
+    // -----------------------------------------------------------------------
+
+    /** the bounds of the triangles */
+    void getObjectBounds(double[] b)
+    {
+	mesh.getBounds(b);
+    }
+
+    /** computes the closest intersection of the ray with the triangles
+     *  of the mesh
+     */
+    boolean hit(Ray r, ISect intersection, boolean all, double minT)
+    {
+	return hit(r, intersection, all, minT, Double.MAX_VALUE);
+    }
+
+    /** hit(), only looking at the triangles whose bounds are hit before
+     *  maxT */
+    boolean hit(Ray r, ISect intersection, boolean all, double minT,
+		double maxT)
+    {
+	TriangleMesh.Hit hit = mesh.intersect(r, minT, maxT);
+	if (hit == null)
+	    return false;
+
+	intersection.t = hit.t;
+	intersection.setHitObject(this);
+	if (all)
+	    mesh.setFields(r, hit, intersection);
+
+	return true;
+    }
+
+    public void print(PrintStream out)
+    {
+	super.print(out);
+
+	out.println("File     : " + fileName + " (" + mesh.getTriangles() +
+		    " triangles)");
+    }
+}
@@ -0,0 +1,123 @@
+/* class MipMap
+ * A texture image together with successively halved (box filtered)
+ * copies of it, down to a single pixel; lookups blend the two levels
+ * whose resolution best matches the area covered by a ray
+ *
+ * Pyramids are cached by the content of the file (its SHA-256 hash), so
+ * materials that use the same texture share one pyramid, and a texture
+ * file that changed is read again (by a render server, see RenderServer).
+ * Only the maxCached most recently used pyramids are kept: the pyramids
+ * of old versions of a file, or of scenes no longer rendered, are
+ * dropped (materials that still use one keep it)
+ */
+import java.io.*;
+import java.util.*;
+import javax.vecmath.*;
+
+class MipMap
+{
+    // Pyramids of the texture files read so far (by hash of the content,
+    // least recently used first), and the largest number kept
+    static int maxCached = 32;
+    private static final LinkedHashMap<String, MipMap> cache =
+        new LinkedHashMap<String, MipMap>(16, 0.75f, true);
+
+    // levels[0] is the full resolution image; each level is half the
+    // size of the previous one (rounded down, but at least 1)
+    RGBImage[] levels;
+
+    //------------------------------------------------------------------------
+
+    /** the pyramid of texture file fileName (read and built only once
+     *  for each content) */
+    public static MipMap get(String fileName) throws IOException
+    {
+        String key = SceneCache.hex(SceneCache.key(fileName));
+
+        synchronized (cache) {
+            MipMap m = cache.get(key);
+            if (m == null) {
+                m = new MipMap(PPMReader.read(fileName));
+                cache.put(key, m);
+
+                Iterator<MipMap> oldest = cache.values().iterator();
+                while (cache.size() > maxCached) {
+                    oldest.next();
+                    oldest.remove();
+                }
+            }
+            return m;
+        }
+    }
+
+    /** build the pyramid of image */
+    public MipMap(RGBImage image)
+    {
+        Vector<RGBImage> v = new Vector<RGBImage>();
+        v.addElement(image);
+        while (image.getWidth() > 1 || image.getHeight() > 1) {
+            image = downsample(image);
+            v.addElement(image);
+        }
+        levels = v.toArray(new RGBImage[v.size()]);
+    }
+
+    /** image of half the size of image (each pixel averages a 2x2 block,
+     *  or the remaining row or column at odd edges)
+     */
+    private static RGBImage downsample(RGBImage image)
+    {
+        int w = image.getWidth(), h = image.getHeight();
+        RGBImage half = new RGBImage(Math.max(w/2, 1), Math.max(h/2, 1));
+        float[] src = image.getData(), dst = half.getData();
+
+        for (int j = 0; j < half.getHeight(); j++) {
+            int j0 = Math.min(2*j, h-1), j1 = Math.min(2*j+1, h-1);
+            for (int i = 0; i < half.getWidth(); i++) {
+                int i0 = Math.min(2*i, w-1), i1 = Math.min(2*i+1, w-1);
+                int a = image.index(i0, j0), b = image.index(i1, j0);
+                int c = image.index(i0, j1), d = image.index(i1, j1);
+                int k = half.index(i, j);
+                for (int n = 0; n < 3; n++)
+                    dst[k+n] = 0.25f * (src[a+n] + src[b+n] +
+                                        src[c+n] + src[d+n]);
+            }
+        }
+
+        return half;
+    }
+
+    //------------------------------------------------------------------------
+
+    public RGBImage getImage()      { return levels[0]; }
+    public int      getLevels()     { return levels.length; }
+
+    /** the level whose pixels are as large as 'texels' pixels of the full
+     *  resolution image (fractional, in [0, getLevels()-1])
+     */
+    public double level(double texels)
+    {
+        if (!(texels > 1.0))
+            return 0.0;
+        return Math.min(Math.log(texels) / Math.log(2.0), levels.length - 1);
+    }
+
+    /** color at (u,v) (both in [0,1]) for the given (fractional) level
+     *  into p: bi-linear interpolation in the two nearest levels, blended
+     *  linearly
+     */
+    public void getColor(double u, double v, double level, Vector3d p)
+    {
+        int l0 = (int)level;
+        double alpha = level - l0;
+
+        levels[l0].getSubPixel(u, v, p);
+        if (alpha > 0.0 && l0 + 1 < levels.length) {
+            double x = p.x, y = p.y, z = p.z;
+            levels[l0 + 1].getSubPixel(u, v, p);
+            p.x = (1-alpha) * x + alpha * p.x;
+            p.y = (1-alpha) * y + alpha * p.y;
+            p.z = (1-alpha) * z + alpha * p.z;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/* class OBJReader
+ * Reads the geometry of Wavefront OBJ files (vertices, texture
+ * coordinates, normals and polygonal faces) into a TriangleMesh; faces
+ * with more than three corners are split into fans of triangles, and
+ * everything else in the file (groups, materials, ...) is ignored
+ */
+import java.io.*;
+import java.util.*;
+
+class OBJReader
+{
+    String fileName;
+    int lineNumber = 0;
+
+    // Values read so far (3 per vertex and normal, 2 per texture
+    // coordinate) -- the arrays grow as needed
+    float[] vertices  = new float[3*1024];
+    float[] normals   = new float[0];
+    float[] uvs       = new float[0];
+    int vertexCount = 0, normalCount = 0, uvCount = 0;
+
+    // Vertex, texture coordinate and normal indices of the triangle
+    // corners (-1 where a corner has none)
+    int[] corners  = new int[3*1024];
+    int[] cornerUV = new int[3*1024];
+    int[] cornerN  = new int[3*1024];
+    int cornerCount = 0;
+
+    // Whether any corner has a texture coordinate, or a normal
+    boolean anyUV = false, anyN = false;
+
+    //------------------------------------------------------------------------
+
+    /** read the mesh in file fileName */
+    public static TriangleMesh read(String fileName) throws IOException
+    {
+        return new OBJReader(fileName).read();
+    }
+
+    private OBJReader(String fileName)
+    {
+        this.fileName = fileName;
+    }
+
+    private TriangleMesh read() throws IOException
+    {
+        BufferedReader in = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                parseLine(line);
+            }
+        } finally {
+            in.close();
+        }
+
+        int triangles = cornerCount / 3;
+        return new TriangleMesh(Arrays.copyOf(vertices, 3*vertexCount),
+                                Arrays.copyOf(corners, cornerCount),
+                                anyN  ? Arrays.copyOf(normals, 3*normalCount) : null,
+                                anyN  ? Arrays.copyOf(cornerN, cornerCount)   : null,
+                                anyUV ? Arrays.copyOf(uvs, 2*uvCount)         : null,
+                                anyUV ? Arrays.copyOf(cornerUV, cornerCount)  : null,
+                                triangles);
+    }
+
+    //------------------------------------------------------------------------
+    // Lines
+
+    // Fields of the current line
+    private String[] fields = new String[16];
+    private int fieldCount;
+
+    // Corners of the current face
+    private int[] faceV = new int[16], faceT = new int[16], faceN = new int[16];
+
+    private void parseLine(String line) throws IOException
+    {
+        split(line);
+        if (fieldCount == 0)
+            return;
+
+        String kind = fields[0];
+        if (kind.equals("v")) {
+            vertices = grow(vertices, 3*vertexCount + 3);
+            readFloats(vertices, 3*vertexCount, 3);
+            vertexCount++;
+        } else if (kind.equals("vt")) {
+            uvs = grow(uvs, 2*uvCount + 2);
+            readFloats(uvs, 2*uvCount, 2);
+            uvCount++;
+        } else if (kind.equals("vn")) {
+            normals = grow(normals, 3*normalCount + 3);
+            readFloats(normals, 3*normalCount, 3);
+            normalCount++;
+        } else if (kind.equals("f")) {
+            readFace();
+        }
+    }
+
+    /** split line into fields (separated by whitespace) */
+    private void split(String line)
+    {
+        fieldCount = 0;
+        int n = line.length(), i = 0;
+        while (true) {
+            while (i < n && Character.isWhitespace(line.charAt(i)))
+                i++;
+            if (i == n || line.charAt(i) == '#')
+                return;
+
+            int start = i;
+            while (i < n && !Character.isWhitespace(line.charAt(i)))
+                i++;
+            if (fieldCount == fields.length)
+                fields = Arrays.copyOf(fields, 2*fields.length);
+            fields[fieldCount++] = line.substring(start, i);
+        }
+    }
+
+    /** read count numbers (fields 1 onwards) into a[offset..] */
+    private void readFloats(float[] a, int offset, int count)
+        throws IOException
+    {
+        if (fieldCount < count + 1)
+            throw error(count + " numbers expected");
+        try {
+            for (int k = 0; k < count; k++)
+                a[offset + k] = Float.parseFloat(fields[k + 1]);
+        } catch (NumberFormatException e) {
+            throw error("number expected");
+        }
+    }
+
+    /** read the corners of a face (v, v/vt, v//vn or v/vt/vn), and add
+     *  it as a fan of triangles around the first corner
+     */
+    private void readFace() throws IOException
+    {
+        int n = fieldCount - 1;
+        if (n < 3)
+            throw error("face with fewer than 3 corners");
+        if (n > faceV.length) {
+            faceV = new int[n];
+            faceT = new int[n];
+            faceN = new int[n];
+        }
+
+        for (int k = 0; k < n; k++) {
+            String corner = fields[k + 1];
+            int s1 = corner.indexOf('/');
+            int s2 = s1 < 0 ? -1 : corner.indexOf('/', s1 + 1);
+
+            faceV[k] = index(s1 < 0 ? corner : corner.substring(0, s1),
+                             vertexCount);
+            faceT[k] = -1;
+            faceN[k] = -1;
+            if (s1 >= 0) {
+                String t = s2 < 0 ? corner.substring(s1 + 1)
+                                  : corner.substring(s1 + 1, s2);
+                if (t.length() > 0)
+                    faceT[k] = index(t, uvCount);
+                if (s2 >= 0 && s2 + 1 < corner.length())
+                    faceN[k] = index(corner.substring(s2 + 1), normalCount);
+            }
+        }
+
+        for (int k = 1; k + 1 < n; k++) {
+            addCorner(0);
+            addCorner(k);
+            addCorner(k + 1);
+        }
+    }
+
+    private void addCorner(int k)
+    {
+        if (cornerCount == corners.length) {
+            corners  = Arrays.copyOf(corners,  2*cornerCount);
+            cornerUV = Arrays.copyOf(cornerUV, 2*cornerCount);
+            cornerN  = Arrays.copyOf(cornerN,  2*cornerCount);
+        }
+        corners[cornerCount]  = faceV[k];
+        cornerUV[cornerCount] = faceT[k];
+        cornerN[cornerCount]  = faceN[k];
+        cornerCount++;
+
+        anyUV |= faceT[k] >= 0;
+        anyN  |= faceN[k] >= 0;
+    }
+
+    /** the (0-based) position of a 1-based index, or of a negative index
+     *  counted back from the last of count values read so far
+     */
+    private int index(String s, int count) throws IOException
+    {
+        int i;
+        try {
+            i = Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            throw error("index expected");
+        }
+
+        int k = i > 0 ? i - 1 : count + i;
+        if (i == 0 || k < 0 || k >= count)
+            throw error("index " + i + " out of range");
+        return k;
+    }
+
+    //------------------------------------------------------------------------
+
+    private static float[] grow(float[] a, int size)
+    {
+        if (size <= a.length)
+            return a;
+        return Arrays.copyOf(a, Math.max(size, 2*a.length));
+    }
+
+    private IOException error(String message)
+    {
+        return new IOException(fileName + ":" + lineNumber + ": " + message);
+    }
+}
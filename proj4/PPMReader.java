@@ -0,0 +1,156 @@
+/* class PPMReader
+ * Reads PPM images (binary P6 or text P3) straight into the packed pixel
+ * array of an RGBImage: the file is memory mapped, and the values are
+ * decoded without creating any objects per pixel
+ */
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+class PPMReader
+{
+    MappedByteBuffer buffer;
+    String fileName;
+
+    // Position of the next byte to scan in buffer
+    int position = 0;
+
+    //------------------------------------------------------------------------
+
+    /** read the image in file fileName */
+    public static RGBImage read(String fileName) throws IOException
+    {
+        return new PPMReader(fileName).read();
+    }
+
+    private PPMReader(String fileName) throws IOException
+    {
+        this.fileName = fileName;
+
+        FileChannel channel = FileChannel.open(Paths.get(fileName),
+                                               StandardOpenOption.READ);
+        try {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException(fileName + ": file too large");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                 channel.size());
+        } finally {
+            // (the mapping stays valid after the channel is closed)
+            channel.close();
+        }
+    }
+
+    private RGBImage read() throws IOException
+    {
+        boolean raw;
+        int magic = next();
+        int type  = next();
+        if (magic == 'P' && type == '6')
+          raw = true;
+        else if (magic == 'P' && type == '3')
+          raw = false;
+        else
+          throw new IOException(fileName + ": not a PPM file");
+
+        int width  = readInt();
+        int height = readInt();
+        int max    = readInt();
+        if (width <= 0 || height <= 0 || max <= 0 ||
+            3L * width * height > Integer.MAX_VALUE)
+            throw new IOException(fileName + ": bad PPM header");
+
+        RGBImage image = new RGBImage(width, height);
+        float[] data = image.getData();
+
+        if (raw) {
+            // A single whitespace character separates the header and
+            // the pixels
+            position++;
+            if (max < 256) {
+                decodeBytes(data, max);
+            } else {
+                decodeShorts(data, max);
+            }
+        } else {
+            for (int k = 0; k < data.length; k++)
+                data[k] = (float)(readInt()/(double)max);
+        }
+
+        return image;
+    }
+
+    //------------------------------------------------------------------------
+    // Binary pixels
+
+    /** decode one byte per value */
+    private void decodeBytes(float[] data, int max) throws IOException
+    {
+        if (buffer.limit() - position < data.length)
+            throw new IOException(fileName + ": file is truncated");
+
+        // (there are only 256 possible values)
+        float[] value = new float[256];
+        for (int b = 0; b < 256; b++)
+            value[b] = (float)(b/(double)max);
+
+        for (int k = 0, p = position; k < data.length; k++, p++)
+            data[k] = value[buffer.get(p) & 0xff];
+    }
+
+    /** decode two bytes (most significant first) per value */
+    private void decodeShorts(float[] data, int max) throws IOException
+    {
+        if ((buffer.limit() - position) / 2 < data.length)
+            throw new IOException(fileName + ": file is truncated");
+
+        for (int k = 0, p = position; k < data.length; k++, p += 2)
+            data[k] = (float)((buffer.getShort(p) & 0xffff)/(double)max);
+    }
+
+    //------------------------------------------------------------------------
+    // Text scanning
+
+    /** next byte in the file */
+    private int next() throws IOException
+    {
+        if (position >= buffer.limit())
+            throw new IOException(fileName + ": unexpected end of file");
+        return buffer.get(position++) & 0xff;
+    }
+
+    /** read a non-negative decimal number, skipping whitespace and
+     *  comments (from '#' to the end of the line) before it
+     */
+    private int readInt() throws IOException
+    {
+        int c = next();
+        while (true) {
+            if (c == '#') {
+                while (c != '\n' && c != '\r')
+                    c = next();
+            } else if (c == ' ' || c == '\t' || c == '\n' || c == '\r' ||
+                       c == '\f' || c == 0x0b) {
+                c = next();
+            } else {
+                break;
+            }
+        }
+
+        if (c < '0' || c > '9')
+            throw new IOException(fileName + ": number expected");
+
+        int n = 0;
+        while (c >= '0' && c <= '9') {
+            n = 10*n + (c - '0');
+            if (n > 65535)
+                throw new IOException(fileName + ": number too large");
+            if (position >= buffer.limit())
+                return n;
+            c = next();
+        }
+        // (leave the character after the number unread)
+        position--;
+        return n;
+    }
+}
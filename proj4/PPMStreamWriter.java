@@ -0,0 +1,96 @@
+/* class PPMStreamWriter
+ * Writes an image to a binary (P6) PPM file while it is being rendered:
+ * the header is written when the file is opened, and each tile is
+ * written at its final position in the file as soon as it is finished
+ * (so the file can be looked at during the render, and holds all the
+ * tiles finished so far if the render is interrupted)
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+class PPMStreamWriter
+{
+    String fileName;
+    FileChannel channel;
+
+    int width;
+    int height;
+
+    // Position of the first pixel in the file
+    long headerLength;
+
+    // Buffer for the bytes of one tile row (of each thread)
+    private final ThreadLocal<ByteBuffer> buffers =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(0));
+
+    //------------------------------------------------------------------------
+
+    /** create file fileName for an image of size width X height; the
+     *  pixels are black until written
+     */
+    public PPMStreamWriter(String fileName, int width, int height)
+        throws IOException
+    {
+        this.fileName = fileName;
+        this.width    = width;
+        this.height   = height;
+
+        channel = FileChannel.open(Paths.get(fileName),
+                                   StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE,
+                                   StandardOpenOption.TRUNCATE_EXISTING);
+
+        byte[] header = ("P6" + '\n' + width + " " + height + '\n' +
+                         "255" + '\n').getBytes();
+        headerLength = header.length;
+        write(ByteBuffer.wrap(header), 0);
+
+        // Extend the file to its final length
+        long length = headerLength + 3L * width * height;
+        if (length > headerLength)
+            write(ByteBuffer.wrap(new byte[1]), length - 1);
+    }
+
+    /** write pixels [i0, i1) X [j0, j1) of image (which must have the
+     *  size given to the constructor) to the file; this can be called
+     *  from several threads at once
+     */
+    public void writeTile(RGBImage image, int i0, int j0, int i1, int j1)
+        throws IOException
+    {
+        int rowLength = 3 * (i1 - i0);
+
+        ByteBuffer buffer = buffers.get();
+        if (buffer.capacity() < rowLength) {
+            buffer = ByteBuffer.allocate(rowLength);
+            buffers.set(buffer);
+        }
+        byte[] bytes = buffer.array();
+        float[] data = image.getData();
+
+        // (a row of a tile is contiguous in the file)
+        for (int j = j0; j < j1; j++) {
+            int index = image.index(i0, j);
+            for (int k = 0; k < rowLength; k++)
+                bytes[k] = (byte)(255.0*data[index + k]);
+
+            buffer.clear();
+            buffer.limit(rowLength);
+            write(buffer, headerLength + index);
+        }
+    }
+
+    /** close the file */
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+}
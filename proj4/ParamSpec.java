@@ -4,65 +4,59 @@
  *
  * Doug DeCarlo
  */
-import java.lang.reflect.*;
 import java.io.*;
 import java.text.ParseException;
 
-class ParamSpec
+class ParamSpec<T extends RaytracerObject, V>
 {
+    /** reads the value of a parameter (e.g. Parser::readVector3d) */
+    interface Reader<V>
+    {
+	V read(StreamTokenizer tokenizer) throws ParseException, IOException;
+    }
+
+    /** stores the value of a parameter in an object (e.g. Material::setKa) */
+    interface Setter<T, V>
+    {
+	void set(T target, V value);
+    }
+
     /** the keyword of the parameter (e.g. "ka")*/
     String keyword;
-    
-    /** the type of the object (e.g. "java.lang.String" */
-    Class type;
-    
-    /** the accessor method */
-    Method accessor;
-    
-    /** the reader method (null if a predefined parser type) */
-    Method specialReader;
-    
+
+    /** reads the value */
+    Reader<V> reader;
+
+    /** sets the value */
+    Setter<T, V> setter;
+
     //------------------------------------------------------------------------
-    public ParamSpec(String newKeyword, Class newType, Method newAccessor,
-		     Method newReader)
-        throws ClassNotFoundException
+    public ParamSpec(String newKeyword, Reader<V> newReader,
+		     Setter<T, V> newSetter)
+    {
+	keyword = newKeyword;
+	reader  = newReader;
+	setter  = newSetter;
+    }
+
+    /** a parameter of class T (whose type is inferred from the setter) */
+    static <T extends RaytracerObject, V> ParamSpec<T, V> of(String keyword,
+							      Reader<V> reader,
+							      Setter<T, V> setter)
     {
-	keyword  = newKeyword;
-	type     = newType;
-	accessor = newAccessor;
-	specialReader = newReader;
+	return new ParamSpec<T, V>(keyword, reader, setter);
     }
 
     //------------------------------------------------------------------------
 
     /** reads the parameter from the tokenizer and sets the appropriate value
-     * in the target object
+     * in the target object (which must be of the class the setter is for)
      */
-    public void read( StreamTokenizer tokenizer, Object target )
-         throws ClassNotFoundException, RuntimeException,
-                InvocationTargetException, IOException,
-                IllegalAccessException, ParseException
+    @SuppressWarnings("unchecked")
+    public void read( StreamTokenizer tokenizer, RaytracerObject target )
+         throws IOException, ParseException
     {
-	Object[] parameter = new Object[1];
-	
-	if (specialReader != null) {
-	    parameter[0] = specialReader.invoke(target,
-						new Object[] { tokenizer });
-	} else if ( type.equals(Class.forName("java.lang.String")) )
-	  parameter[0]=Parser.readString(tokenizer);
-	else if ( type.equals(Class.forName("java.lang.Double")) )
-	  parameter[0]=Parser.readDouble(tokenizer);
-	else if ( type.equals(Class.forName("javax.vecmath.Vector2d")) )
-	  parameter[0]=Parser.readVector2d(tokenizer);
-	else if ( type.equals(Class.forName("javax.vecmath.Vector3d")) )
-	  parameter[0]=Parser.readVector3d(tokenizer);
-	else if ( type.equals(Class.forName("javax.vecmath.Point3d"))  )
-	  parameter[0]=Parser.readPoint3d(tokenizer);
-	else throw new RuntimeException("Type "+ type.getName()+
-					" not supported by parser. Line " +
-					tokenizer.lineno());
-	
-	accessor.invoke(target, parameter);
+	setter.set((T)target, reader.read(tokenizer));
     }
 
     //------------------------------------------------------------------------
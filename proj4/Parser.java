@@ -5,57 +5,61 @@
  */
 import java.io.*;
 import java.text.ParseException;
-import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.vecmath.*;
 
 /** Implements a parser for the input file format */
 class Parser
 {
-    private static Class[] objectTypes;
-    private static Scene   mainScene;
+    /** creates an object of one type, reading its content from the
+     *  tokenizer (e.g. Sphere::new)
+     */
+    interface Factory
+    {
+       RaytracerObject create(StreamTokenizer tokenizer)
+                       throws ParseException, IOException;
+    }
+
+    // object types, by keyword (anything else is a scene command)
+    private static final Map<String, Factory> objectTypes =
+       new ConcurrentHashMap<String, Factory>();
+
+    static {
+       register(Material.keyword, Material::new);
+       register(Light.keyword,    Light::new);
+       register(Sphere.keyword,   Sphere::new);
+       register(Cylinder.keyword, Cylinder::new);
+       register(Cone.keyword,     Cone::new);
+       register(Box.keyword,      Box::new);
+       register(Mesh.keyword,     Mesh::new);
+       register(Camera.keyword,   Camera::new);
+    }
+
+    private Scene mainScene;
 
     public Parser(Scene s)
-           throws ClassNotFoundException
     {
        mainScene = s;
-       // initialize the array of object types
-       objectTypes = new Class[8];
-
-       // to add the actual types once they're created
-       objectTypes[0] = Class.forName("Material");
-       objectTypes[1] = Class.forName("Light");
-       objectTypes[2] = Class.forName("Sphere");
-       objectTypes[3] = Class.forName("Cylinder");
-       objectTypes[4] = Class.forName("Cone");
-       objectTypes[5] = Class.forName("Box");
-       objectTypes[6] = Class.forName("Camera");
+    }
+
+    /** add an object type (objects are created by factory when keyword is
+        read) */
+    static void register(String keyword, Factory factory)
+    {
+       objectTypes.put(keyword, factory);
     }
 
     //------------------------------------------------------------------------
     /** reads the file indicated by fileName */
     public void readFile( String fileName )
-                throws ParseException, NoSuchFieldException,
-                       InvocationTargetException, ClassNotFoundException,
-                       NoSuchMethodException, InstantiationException,
-                       IllegalAccessException
+                throws ParseException
     {
 
        try
        {
-          FileReader input = new FileReader(fileName);
-
-          // create the tokenizer and set its parameters
-          StreamTokenizer tokenizer = new StreamTokenizer(input);
-          tokenizer.commentChar('#');
-          tokenizer.slashSlashComments(false);
-          tokenizer.slashStarComments(false);
-          tokenizer.eolIsSignificant(false);
-          // don't skip these characters
-          tokenizer.ordinaryChar('/');
-          tokenizer.ordinaryChar('{');
-          tokenizer.ordinaryChar('}');
-          // skip commas
-          tokenizer.whitespaceChars(',', ',');
+          Reader input = new BufferedReader(new FileReader(fileName));
+          StreamTokenizer tokenizer = newTokenizer(input);
           // read the file
           while (tokenizer.nextToken()!=StreamTokenizer.TT_EOF){
               switch (tokenizer.ttype) {
@@ -71,6 +75,11 @@ class Parser
 
               }
           }
+          if (mainScene.defining != null)
+             throw new ParseException("define " +
+                                      mainScene.defining.getName() +
+                                      " without end", tokenizer.lineno());
+
           // done. Close the file
           input.close();
        }
@@ -94,64 +103,49 @@ class Parser
     }// end of readFile
 
 
+    /** a tokenizer for the input file format (also used for animation
+        files -- see Animation) */
+    static StreamTokenizer newTokenizer( Reader input )
+    {
+       // create the tokenizer and set its parameters
+       StreamTokenizer tokenizer = new StreamTokenizer(input);
+       tokenizer.commentChar('#');
+       tokenizer.slashSlashComments(false);
+       tokenizer.slashStarComments(false);
+       tokenizer.eolIsSignificant(false);
+       // don't skip these characters
+       tokenizer.ordinaryChar('/');
+       tokenizer.ordinaryChar('{');
+       tokenizer.ordinaryChar('}');
+       // skip commas
+       tokenizer.whitespaceChars(',', ',');
+       return tokenizer;
+    }
+
     /** reads the current token and, if it is valid, calls the appropriate
-        object constructor
+        object factory
     */
     private void parseLine( StreamTokenizer tokenizer )
-                 throws ParseException, NoSuchFieldException,
-                        InvocationTargetException, ClassNotFoundException,
-                        NoSuchMethodException, InstantiationException,
-                        IllegalAccessException, IOException
+                 throws ParseException, IOException
     {
-       try
-       {
-          if ( tokenizer.ttype == StreamTokenizer.TT_WORD ) {
-             int i;
-             for ( i=0; i<objectTypes.length; i++)
-                 if (objectTypes[i]!=null){
-                   // check for the value of the "keyword" field
-                   Field keyword = objectTypes[i].getDeclaredField("keyword");
-                   java.lang.String s = new java.lang.String();
-                   s=(String)keyword.get(null);
-
-                   // if the keyword mathches the current token
-                   if (s.compareTo(tokenizer.sval)==0) {
-                      // create a new instance of the class
-                      Class[] list = {Class.forName("java.io.StreamTokenizer")};
-                      Constructor c = objectTypes[i].getConstructor(list);
+       if ( tokenizer.ttype == StreamTokenizer.TT_WORD ) {
+          Factory factory = objectTypes.get(tokenizer.sval);
 
-                      Object[] listOfParameters = {tokenizer};
-                      Object newObject = c.newInstance(listOfParameters);
+          if (factory != null) {
+             // create a new instance of the class
+             RaytracerObject newObject = factory.create(tokenizer);
 
-                      mainScene.addObject((RaytracerObject)newObject);
+             mainScene.addObject(newObject);
 
-		      //((RaytracerObject)newObject).print(System.out);
-
-                      // exit the loop
-                      break;
-                   }
-                 }
-             if (i>=objectTypes.length) {
-		 // the keyword did not match any object type.
-		 // It must be a scene command
-		 SceneCommand sc = new SceneCommand(tokenizer, mainScene);
-             }
+             //newObject.print(System.out);
+          } else {
+             // the keyword did not match any object type.
+             // It must be a scene command
+             SceneCommand.read(tokenizer, mainScene);
           }
-          else
-          throw new ParseException("Unknown object type.", tokenizer.lineno());
-       }
-       catch (NoSuchFieldException E)
-       {
-          System.err.print(tokenizer.sval);
-          System.err.println("does not have the \"keyword\" field.");
-          throw E;
-       }
-       catch (InvocationTargetException E)
-       {
-          System.err.print("Could not instanciate class for ");
-          System.err.println(tokenizer.sval + " object ");
-          throw E;
        }
+       else
+          throw new ParseException("Unknown object type.", tokenizer.lineno());
     }
 
 
@@ -241,8 +235,26 @@ class Parser
     public static String readString(StreamTokenizer tokenizer)
            throws ParseException, IOException
     {
-       tokenizer.nextToken();
-       if (tokenizer.ttype != StreamTokenizer.TT_WORD)
+       // (file names with '/' in them need to be in double quotes; digits,
+       // '.' and '-' are read as part of the word, so that names such as
+       // 57chevy.obj are not split into a number and a word)
+       tokenizer.ordinaryChars('0', '9');
+       tokenizer.ordinaryChar('.');
+       tokenizer.ordinaryChar('-');
+       tokenizer.wordChars('0', '9');
+       tokenizer.wordChars('.', '.');
+       tokenizer.wordChars('-', '-');
+       try {
+          tokenizer.nextToken();
+       } finally {
+          tokenizer.ordinaryChars('0', '9');
+          tokenizer.ordinaryChar('.');
+          tokenizer.ordinaryChar('-');
+          tokenizer.parseNumbers();
+       }
+
+       if (tokenizer.ttype != StreamTokenizer.TT_WORD &&
+           tokenizer.ttype != '"')
                throw new ParseException("String expected "+tokenizer,
                                         tokenizer.lineno());
        return tokenizer.sval;
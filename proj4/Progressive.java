@@ -0,0 +1,285 @@
+/* class Progressive
+ * Progressive rendering: the image is refined in passes, each of which
+ * doubles the number of rays per pixel, until a number of rays per pixel
+ * or a time budget is reached
+ *
+ * The rays of each pixel go through points of the Halton sequence (in
+ * bases 2 and 3) in the pixel, so that the first rays cover it evenly and
+ * each further pass fills in between them.  After each pass (and when the
+ * budget runs out), the sum of the colors of the rays and the number of
+ * rays of every pixel are written to a checkpoint file, from which an
+ * interrupted render continues, and the image so far is written to the
+ * output file
+ */
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.vecmath.*;
+
+class Progressive
+{
+    static final int  magic   = 0x5254434b;  // "RTCK"
+    static final int  version = 1;
+
+    // Largest number of rays per pixel, and the time budget (in
+    // nanoseconds from the start of render(); 0 for none)
+    int  maxSamples = 64;
+    long budget     = 0;
+
+    // Whether to continue from the checkpoint file (if there is one)
+    boolean resume = false;
+
+    int width, height;
+
+    // Sum of the colors of the rays (3 per pixel) and number of rays of
+    // each pixel, and the number of rays per pixel of the current pass
+    float[] sum;
+    int[]   count;
+    int     target = 1;
+
+    //------------------------------------------------------------------------
+
+    /** the checkpoint file of output file outputFileName */
+    static String checkpointFileName(String outputFileName)
+    {
+        return outputFileName + ".ckpt";
+    }
+
+    /** a budget given as a number of seconds, optionally followed by s,
+     *  m or h (for seconds, minutes or hours), in nanoseconds
+     */
+    static long parseBudget(String s)
+    {
+        double unit = 1.0;
+        char last = s.charAt(s.length() - 1);
+        if (last == 's' || last == 'm' || last == 'h') {
+            unit = last == 's' ? 1.0 : last == 'm' ? 60.0 : 3600.0;
+            s = s.substring(0, s.length() - 1);
+        }
+        return (long)(Double.parseDouble(s) * unit * 1e9);
+    }
+
+    /** the radical inverse of index in base (the Halton sequence) */
+    static double halton(int index, int base)
+    {
+        double result = 0.0, f = 1.0 / base;
+        while (index > 0) {
+            result += f * (index % base);
+            index /= base;
+            f /= base;
+        }
+        return result;
+    }
+
+    //------------------------------------------------------------------------
+
+    /** render scene s (read from sceneFileName, and set up) at width X
+     *  height progressively into outputFileName (see above), and return
+     *  the image
+     */
+    public RGBImage render(Scene s, String sceneFileName, int width,
+                           int height, String outputFileName,
+                           boolean verbose)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        long deadline = budget > 0 ? start + budget : Long.MAX_VALUE;
+
+        this.width  = width;
+        this.height = height;
+        sum   = new float[3*width*height];
+        count = new int[width*height];
+        target = 1;
+
+        String checkpoint = checkpointFileName(outputFileName);
+        byte[] key = SceneCache.key(sceneFileName);
+        if (resume && new File(checkpoint).exists()) {
+            readCheckpoint(checkpoint, key);
+            target = Math.min(target, maxSamples);
+            if (verbose)
+              System.out.println("Resuming from " + checkpoint + " at " +
+                                 target + " rays per pixel");
+        }
+
+        s.start(width, height);
+        while (target <= maxSamples) {
+            boolean finished = pass(s, deadline);
+
+            s.image = image();
+            writeCheckpoint(checkpoint, key);
+            s.image.write(outputFileName);
+
+            if (verbose)
+              System.out.println((finished ? "Pass of " : "Stopped in pass of ") +
+                                 target + " rays per pixel: " +
+                                 String.format("%.1f", (System.nanoTime() - start)*1e-9) +
+                                 " s");
+            if (!finished)
+                break;
+            if (target == maxSamples)
+                break;
+            target = Math.min(2*target, maxSamples);
+        }
+
+        return s.image;
+    }
+
+    /** cast rays into every pixel until it has 'target' of them, on
+     *  s.threads threads, one tile at a time; tiles are not started after
+     *  the deadline (System.nanoTime()).  Returns whether all are done
+     */
+    private boolean pass(final Scene s, final long deadline)
+    {
+        int size = s.tileSize;
+        List<Callable<Boolean>> tiles = new ArrayList<Callable<Boolean>>();
+        for (int y0 = 0; y0 < height; y0 += size) {
+            for (int x0 = 0; x0 < width; x0 += size) {
+                final int i0 = x0, i1 = Math.min(x0 + size, width);
+                final int j0 = y0, j1 = Math.min(y0 + size, height);
+                tiles.add(() -> {
+                    if (System.nanoTime() > deadline)
+                        return false;
+                    renderTile(s, i0, j0, i1, j1);
+                    return true;
+                });
+            }
+        }
+
+        boolean finished = true;
+        if (s.threads <= 1) {
+            try {
+                for (Callable<Boolean> tile : tiles)
+                    finished &= tile.call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return finished;
+        }
+
+        try {
+            for (Future<Boolean> f : s.renderPool().invokeAll(tiles))
+                finished &= f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Rendering interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return finished;
+    }
+
+    /** cast rays into the pixels in columns [i0, i1) and rows [j0, j1)
+     *  until each has 'target' of them
+     */
+    private void renderTile(Scene s, int i0, int j0, int i1, int j1)
+    {
+        RenderContext ctx = s.context();
+        ctx.samples(1);
+        Ray      r = ctx.sampleRays[0];
+        Vector3d c = ctx.sampleColors[0];
+
+        for (int j = j0; j < j1; j++) {
+            for (int i = i0; i < i1; i++) {
+                int p = j*width + i;
+                for (int k = count[p]; k < target; k++) {
+                    // (ray k goes through Halton point k+1 of the pixel)
+                    double x = (i + halton(k + 1, 2) - 0.5)/(width  - 1) * 2 - 1;
+                    double y = (j + halton(k + 1, 3) - 0.5)/(height - 1) * 2 - 1;
+                    s.camera.pixelRay(x, y, r);
+                    s.castRay(ctx, r, 0, c);
+
+                    sum[3*p]   += (float)c.x;
+                    sum[3*p+1] += (float)c.y;
+                    sum[3*p+2] += (float)c.z;
+                }
+                count[p] = Math.max(count[p], target);
+            }
+        }
+    }
+
+    /** the image of the mean color of every pixel (black if it has no
+     *  rays yet)
+     */
+    RGBImage image()
+    {
+        RGBImage image = new RGBImage(width, height);
+        Vector3d c = new Vector3d();
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int p = j*width + i;
+                if (count[p] > 0) {
+                    c.set(sum[3*p], sum[3*p+1], sum[3*p+2]);
+                    c.scale(1.0 / count[p]);
+                    image.setPixel(i, j, c);
+                }
+            }
+        }
+        return image;
+    }
+
+    //------------------------------------------------------------------------
+    // Checkpoints
+
+    /** write the checkpoint (for the scene file with hash key) to
+     *  fileName
+     */
+    private void writeCheckpoint(String fileName, byte[] key)
+        throws IOException
+    {
+        File f = new File(fileName);
+        File temp = new File(fileName + ".tmp");
+
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.write(key);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(target);
+            for (float v : sum)
+                out.writeFloat(v);
+            for (int n : count)
+                out.writeInt(n);
+        } finally {
+            out.close();
+        }
+
+        // (a render stopped while writing keeps the previous checkpoint)
+        Files.move(temp.toPath(), f.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** read the checkpoint in fileName, which must be of the scene file
+     *  with hash key, and of the same image size
+     */
+    private void readCheckpoint(String fileName, byte[] key)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+        try {
+            if (in.readInt() != magic || in.readInt() != version)
+                throw new IOException(fileName + " is not a checkpoint");
+
+            byte[] k = new byte[key.length];
+            in.readFully(k);
+            if (!Arrays.equals(k, key))
+                throw new IOException(fileName + " is of another scene");
+            if (in.readInt() != width || in.readInt() != height)
+                throw new IOException(fileName +
+                                      " is of another image size");
+
+            target = in.readInt();
+            for (int i = 0; i < sum.length; i++)
+                sum[i] = in.readFloat();
+            for (int i = 0; i < count.length; i++)
+                count[i] = in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -8,7 +8,10 @@ import javax.vecmath.*;
 
 class RGBImage
 {
-    Vector3d[][] data;
+    // Pixel values (R,G,B per pixel), packed row by row in the order of
+    // the PPM file: the top row of the image (j = height-1) comes first,
+    // and each row goes left to right (i = 0 .. width-1)
+    float[] data;
     int width  = 0;
     int height = 0;
     int depth  = 3;
@@ -33,10 +36,7 @@ class RGBImage
        // length of the file to be written
        length = width * height * depth;
 
-       data = new Vector3d[width][height];
-       for (int i=0; i < data.length; i++)
-           for (int j=0; j < data[i].length; j++)
-               data[i][j] = new Vector3d();
+       data = new float[length];
     }
 
     //-----------------------------------------------------------------------
@@ -44,53 +44,130 @@ class RGBImage
     public int getWidth()  { return width; }
     public int getHeight() { return height; }
 
+    /** the packed pixel values (see data) */
+    public float[] getData() { return data; }
+
+    /** position of pixel (i,j) in data */
+    public int index(int i, int j)
+    {
+	return ((height-1-j) * width + i) * depth;
+    }
+
     /** Get value of pixel (i,j) */
     public Vector3d getPixel(int i, int j)
     {
-	return data[i][j];
+	Vector3d p = new Vector3d();
+	getPixel(i, j, p);
+	return p;
+    }
+
+    public void getPixel(int i, int j, Vector3d p)
+    {
+	int k = index(i, j);
+	p.set(data[k], data[k+1], data[k+2]);
     }
 
     /** Set value of pixel (i,j) */
     public void setPixel(int i, int j, Vector3d newVal)
     {
-	data[i][j].set(newVal);
-
-	adjustColor(data[i][j]);
+	int k = index(i, j);
+	data[k]   = adjustColor(newVal.x);
+	data[k+1] = adjustColor(newVal.y);
+	data[k+2] = adjustColor(newVal.z);
     }
 
     /** Make sure pixel value is in correct range */
-    private void adjustColor(Vector3d color)
+    private static float adjustColor(double c)
     {
 	// Gamma convert to match display (for better contrast)
 	double gamma = 2.4;
-	color.x = Math.pow(color.x, 1.0/gamma);
-	color.y = Math.pow(color.y, 1.0/gamma);
-	color.z = Math.pow(color.z, 1.0/gamma);
+	c = Math.pow(c, 1.0/gamma);
 
 	// clamp RGB values to [0,1]
-	color.clamp(0.0, 1.0);
+	if (c > 1.0)
+	  c = 1.0;
+	else if (c < 0.0)
+	  c = 0.0;
+
+	// The nearest float can be just across a step of 1/255 from c: it
+	// then moves back one float to the side of c, so that the byte
+	// written (see write()) is the one c itself gives
+	float f = (float)c;
+	if ((int)(255.0*f) != (int)(255.0*c))
+	    f = f > c ? Math.nextDown(f) : Math.nextUp(f);
+	return f;
+    }
+
+    //-----------------------------------------------------------------------
+    // Bulk access (of the stored values -- no gamma conversion is done)
+
+    /** copy row j (width*3 values) into dst at offset */
+    public void getRow(int j, float[] dst, int offset)
+    {
+	System.arraycopy(data, index(0, j), dst, offset, width * depth);
+    }
+
+    /** set row j from the width*3 values in src at offset */
+    public void setRow(int j, float[] src, int offset)
+    {
+	System.arraycopy(src, offset, data, index(0, j), width * depth);
+    }
+
+    /** copy the tile of w x h pixels at (i0,j0) into dst, packed row by
+     *  row (pixel (i,j) at ((j-j0)*w + (i-i0))*3)
+     */
+    public void getTile(int i0, int j0, int w, int h, float[] dst)
+    {
+	for (int j = 0; j < h; j++)
+	    System.arraycopy(data, index(i0, j0+j), dst, j*w*depth, w*depth);
     }
 
+    /** set the tile of w x h pixels at (i0,j0) from src (packed as in
+     *  getTile())
+     */
+    public void setTile(int i0, int j0, int w, int h, float[] src)
+    {
+	for (int j = 0; j < h; j++)
+	    System.arraycopy(src, j*w*depth, data, index(i0, j0+j), w*depth);
+    }
+
+    //-----------------------------------------------------------------------
+
     /** Determine the pixel value at a location of the images by bi-linear
      *  interpolation of the neighboring 4 pixels
      * (u and v are both in the range [0,1])
      */
     public Vector3d getSubPixel(double u, double v)
+    {
+        Vector3d p = new Vector3d();
+        getSubPixel(u, v, p);
+        return p;
+    }
+
+    /** bi-linear interpolation (as above) into p, without allocating */
+    public void getSubPixel(double u, double v, Vector3d p)
     {
         double x = u * (width-1), y = v * (height-1);
         
         int x0 = (int)x, y0 = (int)y;
         double alphaX = x - x0, alphaY = y - y0;
-	
-        Vector3d p = new Vector3d(), p0 = new Vector3d();
+
+        // (neighbors past the edge have zero weight)
+        int x1 = Math.min(x0+1, width-1), y1 = Math.min(y0+1, height-1);
 
         // Add up weighted average of 4 neighbors
-        p0.scale((1-alphaX) * (1-alphaY), getPixel(x0  , y0));     p.add(p0);
-        p0.scale(  (alphaX) * (1-alphaY), getPixel(x0+1, y0));     p.add(p0);
-        p0.scale((1-alphaX) *   (alphaY), getPixel(x0  , y0+1));   p.add(p0);
-        p0.scale(  (alphaX) *   (alphaY), getPixel(x0+1, y0+1));   p.add(p0);
-        
-        return p;
+        p.set(0.0, 0.0, 0.0);
+        addScaled(p, (1-alphaX) * (1-alphaY), index(x0, y0));
+        addScaled(p,   (alphaX) * (1-alphaY), index(x1, y0));
+        addScaled(p, (1-alphaX) *   (alphaY), index(x0, y1));
+        addScaled(p,   (alphaX) *   (alphaY), index(x1, y1));
+    }
+
+    private void addScaled(Vector3d p, double s, int k)
+    {
+        p.x += s * data[k];
+        p.y += s * data[k+1];
+        p.z += s * data[k+2];
     }
     
     //-----------------------------------------------------------------------
@@ -98,121 +175,47 @@ class RGBImage
 
     /** Read the data using PPM format (text or binary) */
     public void read(String filename)
+           throws IOException
     {
-	try {
-	    FileInputStream is = new FileInputStream(filename);
-	    LineInputStream in = new LineInputStream(is);
-	    
-	    // read header
-	    boolean raw;
-	    
-	    String magic = getsPPM(in);
-	    if (magic.equals("P6"))
-	      raw = true;
-	    else if (magic.equals("P3"))
-	      raw = false;
-	    else 
-	      throw new IOException("Not a PPM file");
-	    
-	    depth = 3;
-	    
-	    String size = getsPPM(in);
-	    width = Integer.parseInt(size.substring(0,size.indexOf(' ')));
-	    height = Integer.parseInt(size.substring(size.indexOf(' ')+1));
-	    
-	    data = new Vector3d[width][height];
-	    
-	    String max = getsPPM(in);
-	    if (Integer.parseInt(max) != 255) {
-		throw new IOException("Not a PPM file");
-	    }
-	    
-	    if (raw) {
-		// read raw data
-		byte brow[] = new byte[width*3];
-		for (int i=0; i < height; i++) {
-		    if (in.readdata(brow) != width*3)
-		      throw new IOException("File read error");
-		    for (int j=0, k=0; j < width*3; j += 3) {
-			int r = brow[j], g = brow[j+1], b = brow[j+2];
-			r = r < 0 ? r+256 : r;
-			g = g < 0 ? g+256 : g;
-			b = b < 0 ? b+256 : b;
-
-			data[k++][height-i-1] = 
-			  new Vector3d(r/255.0, g/255.0, b/255.0);
-		    }
-		}
-	    } else {
-		// read ascii data
-		for (int i=0; i < height; i++) {
-		    for(int j=0; j < width; j++) {
-			int r = Integer.parseInt(in.getw());
-			int g = Integer.parseInt(in.getw());
-			int b = Integer.parseInt(in.getw());
-
-			data[j][height-i-1] = 
-			  new Vector3d(r/255.0, g/255.0, b/255.0);
-		    }
-		}
-	    }
-	    in.close();
+	RGBImage image = PPMReader.read(filename);
 
+	width  = image.width;
+	height = image.height;
+	depth  = image.depth;
+	length = image.length;
+	data   = image.data;
+    }
+
+    /** Write the data using PPM format (binary) */
+    public void write(String filename)
+    {
+	try {
+	    FileOutputStream stream = new FileOutputStream(filename);
+	    write(stream);
+	    stream.close();
 	} catch (IOException e) {
 	    System.out.println(e);
 	    System.exit(-1);
 	}
     }
 
-    // Read one line from PPM format image data, ignoring comments
-    private String getsPPM(LineInputStream in)
-    {
-	String line;
-	do {
-	    try { 
-		line = in.gets();
-	    } catch(IOException e) {
-		return "";
-	    }
-	} while(line.charAt(0) == '#');
-
-	return line;
-    }
-
-    /** Write the data using PPM format (binary) */
-    public void write(String filename)
+    /** Write the data to stream in PPM format (binary) */
+    public void write(OutputStream stream) throws IOException
     {
 	String header = new String("P6" + '\n' +
 				   width + " " + height + '\n' +
 				   "255" + '\n');
 	// Space for image data
 	byte[] dataOut = new byte[length];
-	
-	try {
-	    FileOutputStream stream = new FileOutputStream(filename);
 
-	    // Write file header
-	    stream.write(header.getBytes());
+	// Write file header
+	stream.write(header.getBytes());
 
-	    // Collect image bytes
-	    int pos = 0;
-	    for (int j=0; j < data[0].length; j++) {
-		for (int i=0; i < data.length; i++) {
-		    Vector3d pixel = getPixel(i,height-j-1);
+	// Collect image bytes (data is already in file order)
+	for (int k=0; k < length; k++)
+	    dataOut[k] = (byte)(255.0*data[k]);
 
-		    dataOut[pos++] = (byte)(255*pixel.x);
-		    dataOut[pos++] = (byte)(255*pixel.y);
-		    dataOut[pos++] = (byte)(255*pixel.z);
-		}
-	    }
-
-	    // Write image contents
-	    stream.write(dataOut, 0, dataOut.length);
-
-	    stream.close();
-	} catch (IOException e) {
-	    System.out.println(e);
-	    System.exit(-1);
-	}
+	// Write image contents
+	stream.write(dataOut, 0, dataOut.length);
     }
 }
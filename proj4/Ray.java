@@ -14,6 +14,12 @@ class Ray
     // Ray direction (d)
     Vector3d direction = new Vector3d();
 
+    // 1/|d|, for the shapes (which take the direction as it is, and
+    // measure t in its units): set by the constructors, the setters and
+    // Affine.transform() -- code that changes the direction in place must
+    // call updateLength()
+    double invLength = 0.0;
+
     // ---------------------------------------------------------------------
 
     /** Constructors */
@@ -25,12 +31,14 @@ class Ray
     {
 	origin = new Point3d(newOrigin);
 	direction = new Vector3d(newDirection);
+	updateLength();
     }
 
     public Ray(Ray original)
     {
 	origin = new Point3d(original.origin);
 	direction = new Vector3d(original.direction);
+	invLength = original.invLength;
     }
 
     // ---------------------------------------------------------------------
@@ -38,9 +46,35 @@ class Ray
 
     public Point3d  getPoint()     { return origin; }
     public Vector3d getDirection() { return direction; }
+    public double   getInvLength() { return invLength; }
 
     public void setOrigin(Point3d  newValue)    { origin.set(newValue); }
-    public void setDirection(Vector3d newValue) { direction.set(newValue); }
+    public void setDirection(Vector3d newValue)
+    {
+	direction.set(newValue);
+	updateLength();
+    }
+
+    /** Copy origin and direction into this ray (without allocating) */
+    public void set(Point3d newOrigin, Vector3d newDirection)
+    {
+	origin.set(newOrigin);
+	direction.set(newDirection);
+	updateLength();
+    }
+
+    public void set(Ray original)
+    {
+	origin.set(original.origin);
+	direction.set(original.direction);
+	invLength = original.invLength;
+    }
+
+    /** compute 1/|d| again (after the direction changed in place) */
+    public void updateLength()
+    {
+	invLength = 1.0 / direction.length();
+    }
 
     public String toString()
     {
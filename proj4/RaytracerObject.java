@@ -7,7 +7,6 @@
 import java.io.*;
 import javax.vecmath.*;
 import java.text.*;
-import java.lang.reflect.*;
 import java.util.*;
 
 abstract class RaytracerObject
@@ -15,18 +14,21 @@ abstract class RaytracerObject
    /** the name of the object. Default value : an empty string */
    String name="";
 
-   /** parameters of the object */
-   Vector<ParamSpec> paramSpecs;
+   /** parameters of all objects (each subclass with parameters of its
+       own has a static paramSpecs that extends its parent's, and
+       overrides getParamSpecs() to return it) */
+   static final ParamSpec<?, ?>[] paramSpecs = {
+      ParamSpec.of("name", Parser::readString, RaytracerObject::setName)
+   };
 
    /** this constructor enforces the creation of an object from a file */
    protected RaytracerObject(StreamTokenizer tokenizer)
-             throws NoSuchMethodException, SecurityException,
-                    ClassNotFoundException
    {
       // nothing to do here
-      paramSpecs = new Vector<ParamSpec>();
-      addSpec("name", "setName", "java.lang.String");
    }
+
+   /** the parameters of this kind of object */
+   ParamSpec<?, ?>[] getParamSpecs() { return paramSpecs; }
    //------------------------------------------------------------------------
    // print to a stream
    public void print(PrintStream out)
@@ -36,8 +38,7 @@ abstract class RaytracerObject
    }
    //------------------------------------------------------------------------
    public void read( StreamTokenizer tokenizer )
-               throws ParseException,  IOException, InvocationTargetException,
-               ClassNotFoundException, IllegalAccessException
+               throws ParseException,  IOException
    {
       // read the open brace
       tokenizer.nextToken();
@@ -50,16 +51,16 @@ abstract class RaytracerObject
          if (tokenizer.nextToken()==StreamTokenizer.TT_WORD) {
             String paramName = tokenizer.sval;
             // search for the parameter in the list
+            ParamSpec<?, ?>[] specs = getParamSpecs();
             int i;
-            for (i=0; i<paramSpecs.size(); i++)
-                if ( ((ParamSpec)paramSpecs.elementAt(i)).is(paramName))
+            for (i=0; i<specs.length; i++)
+                if ( specs[i].is(paramName))
                    break;
 
-            if (i<paramSpecs.size()) {
+            if (i<specs.length) {
                // skip the "="
                tokenizer.nextToken();
-               ParamSpec temp = (ParamSpec)(paramSpecs.elementAt(i));
-               temp.read(tokenizer, this);
+               specs[i].read(tokenizer, this);
             }
          }
          else if ( tokenizer.ttype=='}' )
@@ -68,57 +69,14 @@ abstract class RaytracerObject
       }
    }
    //------------------------------------------------------------------------
-   /** returns a reference to an accessor method
-       @param methodName the name of the method (e.g. "getName")
-
-       It is required that the accessor takes no parameters.
-   */
-   protected Method getAccessor(String methodName, Class[] paramType)
-             throws NoSuchMethodException, SecurityException
-   {
-      try
-      {
-          return getClass().getMethod(methodName, paramType);
-      }
-      catch (NoSuchMethodException E)
-      {
-         System.err.print("Accessor " + methodName + " ");
-         for (int i=0; i<paramType.length; i++)
-             System.err.print(paramType[i].getName() + " ");
-         System.err.println(" not found in class "+getClass().getName());
-         throw E;
-      }
-   }
-
-   /** creates a new ParamSpec and adds it to the list of specs */
-   protected void addSpec( String kWord, String accessorName, String paramType)
-             throws NoSuchMethodException, SecurityException,
-                    ClassNotFoundException
-   {
-      Class[] c = new Class[1];
-      c[0]      = Class.forName(paramType);
-      Method m  = getAccessor(accessorName, c);
-
-      ParamSpec nameSpec = new ParamSpec(kWord, c[0], m, null);
-      paramSpecs.addElement(nameSpec);
-   }
-
-   /** creates a new ParamSpec and adds it to the list of specs */
-   protected void addSpecSpecial(String kWord, String accessorName,
-		                 String readerName)
-             throws NoSuchMethodException, SecurityException,
-                    ClassNotFoundException
+   /** the parameters of a parent class followed by more (to build the
+       paramSpecs of a subclass) */
+   static ParamSpec<?, ?>[] specs(ParamSpec<?, ?>[] parent,
+                                  ParamSpec<?, ?>... more)
    {
-      Class[] c  = new Class[1];
-      c[0]       = Class.forName("java.util.Vector");
-      Method m   = getAccessor(accessorName, c);
-
-      Class[] ct = new Class[1];
-      ct[0]      = Class.forName("java.io.StreamTokenizer");
-      Method r   = getAccessor(readerName, ct);
-      
-      ParamSpec nameSpec = new ParamSpec(kWord, c[0], m, r);
-      paramSpecs.addElement(nameSpec);
+      ParamSpec<?, ?>[] all = Arrays.copyOf(parent, parent.length + more.length);
+      System.arraycopy(more, 0, all, parent.length, more.length);
+      return all;
    }
 
    //------------------------------------------------------------------------
@@ -0,0 +1,140 @@
+/* class RenderClient
+ * Sends a render request to a RenderServer, with the arguments of Trace
+ *
+ * File names are made absolute (the server may run in another
+ * directory); the image is written by the server to the -out file
+ * (out.ppm by default), or with "-out -" sent back and written to the
+ * standard output
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+
+class RenderClient
+{
+    public static void main(String arguments[])
+    {
+        int port = RenderServer.defaultPort;
+        String request = null;
+        String sceneFile = null;
+        String outputFileName = new File("out.ppm").getAbsolutePath();
+        StringBuilder options = new StringBuilder();
+
+        try {
+            for (int i = 0; i < arguments.length; i++) {
+                String a = arguments[i];
+                if (a.compareTo("-port")==0) {
+                    port = Integer.parseInt(arguments[++i]);
+                } else if (a.compareTo("-status")==0) {
+                    request = "status";
+                } else if (a.compareTo("-shutdown")==0) {
+                    request = "shutdown";
+                } else if (a.compareTo("-out")==0) {
+                    String name = arguments[++i];
+                    outputFileName = name.equals("-") ? null :
+                                     new File(name).getAbsolutePath();
+                } else if (a.compareTo("-res")==0) {
+                    options.append('\t').append(a)
+                           .append('\t').append(arguments[++i])
+                           .append('\t').append(arguments[++i]);
+                } else if (a.compareTo("-aa")==0 ||
+                           a.compareTo("-aathreshold")==0 ||
+                           a.compareTo("-aasamples")==0 ||
+                           a.compareTo("-mipmap")==0 ||
+                           a.compareTo("-minweight")==0 ||
+                           a.compareTo("-roulette")==0 ||
+                           a.compareTo("-lightsamples")==0 ||
+                           a.compareTo("-seed")==0 ||
+                           a.compareTo("-cache")==0) {
+                    options.append('\t').append(a)
+                           .append('\t').append(arguments[++i]);
+                } else if (a.charAt(0) == '-') {
+                    printUsage();
+                    System.exit(1);
+                } else {
+                    sceneFile = new File(a).getAbsolutePath();
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            printUsage();
+            System.exit(1);
+        }
+
+        if (request == null) {
+            if (sceneFile == null) {
+                printUsage();
+                System.exit(1);
+            }
+            request = "render\t" + sceneFile + options;
+            if (outputFileName != null)
+              request += "\t-out\t" + outputFileName;
+        }
+
+        try {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            try {
+                OutputStream out = socket.getOutputStream();
+                out.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                String reply = readLine(in);
+
+                if (reply.startsWith("image ")) {
+                    // (the image follows the reply line)
+                    long n = Long.parseLong(reply.substring(6).trim());
+                    OutputStream image = new BufferedOutputStream(System.out);
+                    byte[] buffer = new byte[65536];
+                    while (n > 0) {
+                        int k = in.read(buffer, 0, (int)Math.min(buffer.length, n));
+                        if (k < 0)
+                          throw new EOFException("Image cut short");
+                        image.write(buffer, 0, k);
+                        n -= k;
+                    }
+                    image.flush();
+                } else if (reply.startsWith("ok")) {
+                    if (reply.length() > 3)
+                      System.out.println(reply.substring(3));
+                } else {
+                    System.err.println(reply.startsWith("error ") ?
+                                       reply.substring(6) : reply);
+                    System.exit(1);
+                }
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot reach the render server on port " +
+                               port + ": " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /** read a line (up to a newline, which is dropped) from in */
+    private static String readLine(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n')
+            line.write(c);
+        if (c < 0 && line.size() == 0)
+            throw new EOFException("No reply");
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void printUsage()
+    {
+        System.out.println("Usage: ");
+        System.out.println("java RenderClient <fileName> [-res <width height>]"+
+                           " [-out <outputFileName>|-] [-port <n>]");
+        System.out.println("           [-aa fixed|adaptive] [-aathreshold <t>]"+
+                           " [-aasamples <n>]");
+        System.out.println("           [-mipmap on|off] [-cache on|off]"+
+                           " [-minweight <w>]");
+        System.out.println("           [-roulette on|off] [-lightsamples <n>]"+
+                           " [-seed <n>]");
+        System.out.println("java RenderClient -status|-shutdown [-port <n>]");
+    }
+}
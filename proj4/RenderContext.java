@@ -0,0 +1,179 @@
+/* class RenderContext
+ * Scratch space of one render thread: the rays, intersections and
+ * vectors used while tracing, kept per recursion depth so that rendering
+ * does not allocate once every depth has been reached
+ */
+import javax.vecmath.*;
+
+class RenderContext
+{
+    /** scratch objects used by Scene.castRay() at one recursion depth */
+    static class Frame
+    {
+        // Closest intersection of the ray cast at this depth
+        ISect    isect      = new ISect();
+
+        // Reflected and refracted rays, and the color they bring back
+        Ray      reflected  = new Ray();
+        Ray      refracted  = new Ray();
+        Vector3d reflectDir = new Vector3d();
+        Vector3d refractDir = new Vector3d();
+        Vector3d child      = new Vector3d();
+
+        // Weight of the color of the ray cast at this depth in the pixel
+        // (the product of the ks or kt of the surfaces along the way)
+        Vector3d weight     = new Vector3d();
+
+        // Distance traveled from the camera to the origin of the ray
+        double   distance   = 0.0;
+    }
+
+    Frame[] frames = new Frame[0];
+
+    // Intersection with the object being tested, and the ray in the
+    // space of the objects at each level of the object hierarchy
+    ISect    temp       = new ISect();
+    Ray[]    objectRays = new Ray[0];
+
+    // Shadow ray, the light it lets through, and the resulting color
+    Ray      shadowRay  = new Ray();
+    Vector3d tint       = new Vector3d();
+    Vector3d lightColor = new Vector3d();
+
+    // Rays and colors of the samples of one pixel
+    Ray[]      sampleRays   = new Ray[0];
+    Vector3d[] sampleColors = new Vector3d[0];
+
+    // Adaptive anti-aliasing: first pass colors (R,G,B) and hit objects,
+    // the samples of the quarters at each refinement level, and the
+    // number of rays the current pixel may still cast
+    double[]     centerColors  = new double[0];
+    Shape[]      centerHits    = new Shape[0];
+    Vector3d     pixelColor    = new Vector3d();
+    Vector3d[][] quarterColors = new Vector3d[0][];
+    Shape[][]    quarterHits   = new Shape[0][];
+    int          samplesLeft   = 0;
+
+    // BVH traversal stack
+    int[] stack = new int[0];
+
+    // Opaque object that last blocked each light (indexed like
+    // Scene.lights)
+    Shape[] occluders = new Shape[0];
+
+    // Ray queries of the scene this context renders
+    Scene.ClosestHit closestHit;
+    Scene.ShadowHit  shadowHit;
+
+    // Counts of the work done by this thread
+    RenderStats stats;
+
+    // State of the random numbers of Russian roulette and of the light
+    // samples (see random())
+    long randomState = 0;
+
+    // Probability of a light sample (see LightTree.sample())
+    double[] probability = new double[1];
+
+    //------------------------------------------------------------------------
+
+    public RenderContext(Scene scene)
+    {
+        closestHit = scene.new ClosestHit(this);
+        shadowHit  = scene.new ShadowHit(this);
+        stats      = scene.newStats();
+    }
+
+    /** scratch objects for recursion depth 'depth' */
+    Frame frame(int depth)
+    {
+        if (depth >= frames.length) {
+            Frame[] grown = new Frame[depth + 1];
+            System.arraycopy(frames, 0, grown, 0, frames.length);
+            for (int i = frames.length; i < grown.length; i++)
+                grown[i] = new Frame();
+            frames = grown;
+        }
+        return frames[depth];
+    }
+
+    /** the next random number in [0, 1) (of the SplitMix64 generator) */
+    double random()
+    {
+        long z = (randomState += 0x9e3779b97f4a7c15L);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53;
+    }
+
+    /** the ray in the space of an object at hierarchy level 'level' */
+    Ray objectRay(int level)
+    {
+        if (level >= objectRays.length) {
+            Ray[] grown = new Ray[level + 1];
+            System.arraycopy(objectRays, 0, grown, 0, objectRays.length);
+            for (int i = objectRays.length; i < grown.length; i++)
+                grown[i] = new Ray();
+            objectRays = grown;
+        }
+        return objectRays[level];
+    }
+
+    /** a traversal stack with room for at least size entries */
+    int[] stack(int size)
+    {
+        if (stack.length < size)
+            stack = new int[size];
+        return stack;
+    }
+
+    /** the occluder cache, sized for 'lights' lights */
+    Shape[] occluders(int lights)
+    {
+        if (occluders.length != lights)
+            occluders = new Shape[lights];
+        return occluders;
+    }
+
+    /** make sure there is room for 'count' first pass samples */
+    void centers(int count)
+    {
+        if (centerHits.length < count) {
+            centerColors = new double[3*count];
+            centerHits   = new Shape[count];
+        }
+    }
+
+    /** the quarter samples for refinement level 'level' */
+    Vector3d[] quarterColors(int level)
+    {
+        if (level >= quarterColors.length) {
+            Vector3d[][] colors = new Vector3d[level + 1][];
+            Shape[][]    hits   = new Shape[level + 1][];
+            System.arraycopy(quarterColors, 0, colors, 0, quarterColors.length);
+            System.arraycopy(quarterHits, 0, hits, 0, quarterHits.length);
+            for (int l = quarterColors.length; l <= level; l++) {
+                colors[l] = new Vector3d[] { new Vector3d(), new Vector3d(),
+                                             new Vector3d(), new Vector3d() };
+                hits[l]   = new Shape[4];
+            }
+            quarterColors = colors;
+            quarterHits   = hits;
+        }
+        return quarterColors[level];
+    }
+
+    /** make sure there are rays and colors for 'count' samples */
+    void samples(int count)
+    {
+        if (sampleRays.length < count) {
+            sampleRays   = new Ray[count];
+            sampleColors = new Vector3d[count];
+            for (int i = 0; i < count; i++) {
+                sampleRays[i]   = new Ray();
+                sampleColors[i] = new Vector3d();
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/* class RenderServer
+ * A long running process that renders scenes for clients (see
+ * RenderClient) on a local socket, so that many small renders share one
+ * warmed up JVM, and the scenes they use are read and set up only once
+ *
+ * Each connection carries one request: a line of tab separated words,
+ *
+ *   render <scene file> [options]   render an image (options below)
+ *   status                          report the work done so far
+ *   shutdown                        stop accepting requests, and exit
+ *                                   once the queued ones are done
+ *
+ * answered by a line "ok [path or status]", "error <message>", or
+ * "image <n>" followed by the n bytes of a PPM file.  The render options
+ * are those of Trace: -res <x> <y>, -aa fixed|adaptive, -aathreshold <t>,
+ * -aasamples <n>, -mipmap on|off, -minweight <w>, -roulette on|off,
+ * -lightsamples <n>, -seed <n>, -cache on|off, and -out <file> (the
+ * server writes the image there and answers with its name; without it,
+ * the image is sent back)
+ *
+ * Requests run on a fixed number of worker threads, with a bounded
+ * queue (requests beyond it are refused with "error busy").  Scenes are
+ * kept set up, by the SHA-256 hash of the scene file, as long as the
+ * mesh and texture files they use are unchanged; renders of the same
+ * scene take turns, while different scenes render at the same time
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class RenderServer
+{
+    static final int defaultPort = 7341;
+
+    /** a scene that is set up, and the files it was read from */
+    static class Entry
+    {
+        Scene scene = null;
+
+        // Mesh and texture files, and their size and date when read
+        List<File> files  = new ArrayList<File>();
+        List<long[]> stamps = new ArrayList<long[]>();
+
+        /** whether the files are as they were when the scene was read */
+        boolean isCurrent()
+        {
+            for (int i = 0; i < files.size(); i++) {
+                File f = files.get(i);
+                long[] s = stamps.get(i);
+                if (f.length() != s[0] || f.lastModified() != s[1])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    ServerSocket socket;
+    ThreadPoolExecutor workers;
+    volatile boolean running = true;
+
+    // Set up scenes, by the hash of the scene file (least recently used
+    // first), and the largest number kept
+    int maxScenes;
+    final LinkedHashMap<String, Entry> scenes =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    AtomicInteger rendered = new AtomicInteger();
+    AtomicInteger loaded   = new AtomicInteger();
+
+    boolean log = true;
+
+    //------------------------------------------------------------------------
+
+    public static void main(String arguments[])
+    {
+        int port = defaultPort;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queue = 64;
+        int maxScenes = 16;
+        boolean quiet = false;
+
+        for (int i = 0; i < arguments.length; i++) {
+            if (arguments[i].compareTo("-port")==0) {
+                port = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-workers")==0) {
+                threads = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-queue")==0) {
+                queue = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-scenes")==0) {
+                maxScenes = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-quiet")==0) {
+                quiet = true;
+            } else {
+                System.out.println("Usage: java RenderServer [-port <n>]" +
+                                   " [-workers <n>] [-queue <n>]" +
+                                   " [-scenes <n>] [-quiet]");
+                System.exit(0);
+            }
+        }
+
+        // (only the server's own messages go to the output)
+        Trace.verbose = false;
+
+        try {
+            RenderServer server = new RenderServer(port, threads, queue,
+                                                   maxScenes);
+            server.log = !quiet;
+            server.run();
+        } catch (IOException e) {
+            System.err.println("Cannot listen on port " + port + ": " +
+                               e.getMessage());
+        }
+        System.exit(0);
+    }
+
+    /** a server on port (of the local host only) with the given number
+     *  of worker threads and queued requests, keeping up to maxScenes
+     *  scenes set up
+     */
+    public RenderServer(int port, int threads, int queue, int maxScenes)
+        throws IOException
+    {
+        socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        workers = new ThreadPoolExecutor(threads, threads, 0L,
+                                         TimeUnit.MILLISECONDS,
+                                         new ArrayBlockingQueue<Runnable>(queue));
+        this.maxScenes = maxScenes;
+    }
+
+    /** accept requests until shut down */
+    public void run() throws IOException
+    {
+        if (log)
+          System.out.println("Listening on " + socket.getLocalSocketAddress() +
+                             " with " + workers.getCorePoolSize() +
+                             " workers");
+
+        while (running) {
+            final Socket client;
+            try {
+                client = socket.accept();
+            } catch (SocketException e) {
+                // (closed by shutdown)
+                break;
+            }
+
+            try {
+                workers.execute(() -> serve(client));
+            } catch (RejectedExecutionException e) {
+                try {
+                    reply(client.getOutputStream(), "error busy");
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /** stop accepting requests (the queued ones are still done) */
+    public void shutdown()
+    {
+        running = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    //------------------------------------------------------------------------
+
+    /** answer the request of one connection */
+    private void serve(Socket client)
+    {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                client.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = new BufferedOutputStream(
+                client.getOutputStream());
+
+            String line = in.readLine();
+            String[] words = line == null ? new String[0] : line.split("\t");
+            try {
+                if (words.length == 0 || words[0].length() == 0)
+                    reply(out, "error empty request");
+                else if (words[0].equals("render"))
+                    render(words, out);
+                else if (words[0].equals("status"))
+                    reply(out, "ok rendered " + rendered.get() +
+                               " loaded " + loaded.get() +
+                               " cached " + cachedScenes() +
+                               " queued " + workers.getQueue().size());
+                else if (words[0].equals("shutdown")) {
+                    reply(out, "ok");
+                    shutdown();
+                } else
+                    reply(out, "error unknown request " + words[0]);
+            } catch (ParseException e) {
+                reply(out, "error " + e.getMessage() + " in line " +
+                           e.getErrorOffset());
+            } catch (Exception e) {
+                reply(out, "error " + (e.getMessage() != null ?
+                                       e.getMessage() : e.toString()));
+            }
+            out.flush();
+        } catch (IOException e) {
+            // (the client went away)
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static void reply(OutputStream out, String line)
+        throws IOException
+    {
+        out.write((line.replace('\n', ' ') + "\n")
+                  .getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private int cachedScenes()
+    {
+        synchronized (scenes) {
+            return scenes.size();
+        }
+    }
+
+    /** render request: words[1] is the scene file, then options */
+    private void render(String[] words, OutputStream out)
+        throws Exception
+    {
+        if (words.length < 2)
+            throw new IllegalArgumentException("no scene file");
+        String sceneFile = words[1];
+
+        int width = 128, height = 128;
+        String outputFileName = null;
+        boolean adaptive = false, mipmapOn = false, useCache = true;
+        double aaThreshold = 0.05;
+        int aaSamples = 16;
+        double minWeight = 0.0;
+        boolean roulette = false;
+        int lightSamples = 0;
+        long seed = 0;
+
+        for (int i = 2; i < words.length; i++) {
+            String w = words[i];
+            if (w.equals("-res")) {
+                width  = Integer.parseInt(words[++i]);
+                height = Integer.parseInt(words[++i]);
+            } else if (w.equals("-out")) {
+                outputFileName = words[++i];
+            } else if (w.equals("-aa")) {
+                adaptive = onOff(words[++i], "adaptive", "fixed");
+            } else if (w.equals("-aathreshold")) {
+                aaThreshold = Double.parseDouble(words[++i]);
+            } else if (w.equals("-aasamples")) {
+                aaSamples = Integer.parseInt(words[++i]);
+            } else if (w.equals("-mipmap")) {
+                mipmapOn = onOff(words[++i], "on", "off");
+            } else if (w.equals("-minweight")) {
+                minWeight = Double.parseDouble(words[++i]);
+            } else if (w.equals("-roulette")) {
+                roulette = onOff(words[++i], "on", "off");
+            } else if (w.equals("-lightsamples")) {
+                lightSamples = Integer.parseInt(words[++i]);
+            } else if (w.equals("-seed")) {
+                seed = Long.parseLong(words[++i]);
+            } else if (w.equals("-cache")) {
+                useCache = onOff(words[++i], "on", "off");
+            } else {
+                throw new IllegalArgumentException("unknown option " + w);
+            }
+        }
+
+        Entry e = entry(sceneFile);
+        RGBImage image;
+
+        // (renders of one scene take turns: they share its camera and
+        // options)
+        synchronized (e) {
+            if (e.scene == null)
+                load(e, sceneFile, useCache);
+
+            Scene s = e.scene;
+            s.threads     = 1;
+            s.adaptive    = adaptive;
+            s.aaThreshold = aaThreshold;
+            s.aaSamples   = aaSamples;
+            s.mipmapOn    = mipmapOn;
+            s.minWeight   = minWeight;
+            s.roulette    = roulette;
+            s.lightSamples = lightSamples;
+            s.randomSeed = seed;
+
+            long t0 = System.nanoTime();
+            image = s.render(width, height, false);
+            if (log)
+              System.out.println(sceneFile + " " + width + "x" + height +
+                                 ": " + (System.nanoTime() - t0) / 1000000 +
+                                 " ms");
+        }
+        rendered.incrementAndGet();
+
+        if (outputFileName != null) {
+            OutputStream file = new BufferedOutputStream(
+                new FileOutputStream(outputFileName));
+            try {
+                image.write(file);
+            } finally {
+                file.close();
+            }
+            reply(out, "ok " + outputFileName);
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            image.write(bytes);
+            reply(out, "image " + bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    private static boolean onOff(String value, String on, String off)
+    {
+        if (value.equals(on))
+            return true;
+        if (value.equals(off))
+            return false;
+        throw new IllegalArgumentException("expected " + on + " or " + off +
+                                           ", not " + value);
+    }
+
+    /** the cache entry of the current content of sceneFile (a new one if
+     *  the scene is not cached, or its mesh or texture files changed)
+     */
+    private Entry entry(String sceneFile) throws IOException
+    {
+        String key = SceneCache.hex(SceneCache.key(sceneFile));
+
+        synchronized (scenes) {
+            Entry e = scenes.get(key);
+            if (e == null || (e.scene != null && !e.isCurrent())) {
+                e = new Entry();
+                scenes.put(key, e);
+
+                // (renders that hold an evicted entry finish with it)
+                Iterator<Entry> oldest = scenes.values().iterator();
+                while (scenes.size() > maxScenes) {
+                    oldest.next();
+                    oldest.remove();
+                }
+            }
+            return e;
+        }
+    }
+
+    /** read and set up the scene of entry e from sceneFile */
+    private void load(Entry e, String sceneFile, boolean useCache)
+        throws ParseException
+    {
+        Scene s = new Scene();
+        boolean compiled;
+        try {
+            compiled = Trace.readScene(s, sceneFile, useCache);
+        } catch (RuntimeException x) {
+            // (the parser reports I/O errors this way)
+            throw new IllegalArgumentException("cannot read " + sceneFile);
+        }
+        s.setup();
+        if (useCache && !compiled)
+            Trace.writeScene(s, sceneFile);
+
+        // The files the scene depends on
+        Set<String> names = new LinkedHashSet<String>();
+        for (Material m : s.materials)
+            if (m.textureFileName != null)
+                names.add(m.textureFileName);
+        for (Shape shape : s.objects)
+            meshFiles(shape, names);
+        for (Group g : s.groups.values())
+            for (Shape shape : g.shapeArray)
+                meshFiles(shape, names);
+
+        for (String name : names) {
+            File f = new File(name);
+            e.files.add(f);
+            e.stamps.add(new long[] { f.length(), f.lastModified() });
+        }
+
+        e.scene = s;
+        loaded.incrementAndGet();
+    }
+
+    /** add the files of the meshes among shape and its children to names */
+    private static void meshFiles(Shape shape, Set<String> names)
+    {
+        if (shape instanceof Mesh)
+            names.add(((Mesh)shape).fileName);
+        if (shape.childArray != null)
+            for (Shape c : shape.childArray)
+                meshFiles(c, names);
+    }
+}
@@ -0,0 +1,203 @@
+/* class RenderStats
+ * Counts the rays cast and the object intersection tests done while
+ * rendering, and the time taken by each phase of a run
+ *
+ * Every render thread counts into its own RenderStats (see
+ * RenderContext), so counting is just an array increment; the totals
+ * are obtained with Scene.getStats()
+ */
+import java.io.*;
+import java.util.*;
+
+class RenderStats
+{
+    // Kinds of rays
+    static final int PRIMARY    = 0;
+    static final int REFLECTION = 1;
+    static final int REFRACTION = 2;
+    static final int SHADOW     = 3;
+
+    // (reflected and refracted rays that were not cast, since they would
+    // add too little to the pixel -- see Scene.minWeight)
+    static final int SKIPPED    = 4;
+
+    static final String[] rayNames =
+        { "primary", "reflection", "refraction", "shadow", "skipped" };
+
+    // Largest number of shape classes, and of recursion depths, counted
+    // separately (deeper rays are counted with the deepest)
+    static final int maxShapeKinds = 16;
+    static final int maxDepth      = 32;
+
+    // Names of the shape classes, indexed by Shape.getStatsKind()
+    private static final Vector<String> shapeNames = new Vector<String>();
+
+    // Layout of counts: rays by kind, then Shape.hit() calls and
+    // successful hits by shape class, then rays by recursion depth
+    private static final int HIT_CALLS = rayNames.length;
+    private static final int HITS      = HIT_CALLS + maxShapeKinds;
+    private static final int DEPTHS    = HITS + maxShapeKinds;
+    private static final int SIZE      = DEPTHS + maxDepth;
+
+    final long[] counts = new long[SIZE];
+
+    // Time spent in each phase (nanoseconds)
+    long parseTime  = 0;
+    long setupTime  = 0;
+    long renderTime = 0;
+    long writeTime  = 0;
+
+    //------------------------------------------------------------------------
+
+    /** index under which the hit tests of shape class c are counted */
+    static synchronized int shapeKind(Class<?> c)
+    {
+        int kind = shapeNames.indexOf(c.getName());
+        if (kind < 0) {
+            if (shapeNames.size() == maxShapeKinds)
+                return maxShapeKinds - 1;
+            shapeNames.addElement(c.getName());
+            kind = shapeNames.size() - 1;
+        }
+        return kind;
+    }
+
+    //------------------------------------------------------------------------
+    // Counting
+
+    /** count a ray of the given kind at the given recursion depth */
+    void ray(int kind, int depth)
+    {
+        counts[kind]++;
+        counts[DEPTHS + Math.min(depth, maxDepth - 1)]++;
+    }
+
+    /** count a reflected or refracted ray that was not cast */
+    void skipped()
+    {
+        counts[SKIPPED]++;
+    }
+
+    /** count a shadow ray */
+    void shadowRay()
+    {
+        counts[SHADOW]++;
+    }
+
+    /** count a call to Shape.hit() of a shape of the given kind, and
+     *  return its result
+     */
+    boolean hit(int shapeKind, boolean hit)
+    {
+        counts[HIT_CALLS + shapeKind]++;
+        if (hit)
+            counts[HITS + shapeKind]++;
+        return hit;
+    }
+
+    /** add the counts and times of other to these */
+    void add(RenderStats other)
+    {
+        for (int k = 0; k < SIZE; k++)
+            counts[k] += other.counts[k];
+
+        parseTime  += other.parseTime;
+        setupTime  += other.setupTime;
+        renderTime += other.renderTime;
+        writeTime  += other.writeTime;
+    }
+
+    //------------------------------------------------------------------------
+    // Accessors
+
+    long getRays(int kind)           { return counts[kind]; }
+    long getHitCalls(int shapeKind)  { return counts[HIT_CALLS + shapeKind]; }
+    long getHits(int shapeKind)      { return counts[HITS + shapeKind]; }
+    long getRaysAtDepth(int depth)   { return counts[DEPTHS + depth]; }
+
+    /** number of recursion depths with rays */
+    int getDepths()
+    {
+        int d = maxDepth;
+        while (d > 0 && counts[DEPTHS + d - 1] == 0)
+            d--;
+        return d;
+    }
+
+    //------------------------------------------------------------------------
+    // Output
+
+    /** print a summary */
+    public void print(PrintStream out)
+    {
+        out.println("Rays:");
+        for (int k = 0; k < rayNames.length; k++)
+            out.printf("  %-12s %14d%n", rayNames[k], counts[k]);
+
+        out.println("Rays by recursion depth:");
+        for (int d = 0; d < getDepths(); d++)
+            out.printf("  %-12d %14d%n", d, getRaysAtDepth(d));
+
+        out.println("Shape.hit() calls:");
+        out.printf("  %-12s %14s %14s %8s%n", "", "calls", "hits", "rate");
+        for (int s = 0; s < shapeNames.size(); s++) {
+            long calls = getHitCalls(s), hits = getHits(s);
+            if (calls == 0)
+                continue;
+            out.printf("  %-12s %14d %14d %7.1f%%%n", shapeNames.elementAt(s),
+                       calls, hits, 100.0*hits/calls);
+        }
+
+        out.println("Time (ms):");
+        out.printf("  %-12s %14.1f%n", "parse",  parseTime  / 1e6);
+        out.printf("  %-12s %14.1f%n", "setup",  setupTime  / 1e6);
+        out.printf("  %-12s %14.1f%n", "render", renderTime / 1e6);
+        out.printf("  %-12s %14.1f%n", "write",  writeTime  / 1e6);
+    }
+
+    /** write the statistics to file fileName in JSON format */
+    public void writeJSON(String fileName) throws IOException
+    {
+        PrintWriter out = new PrintWriter(new FileWriter(fileName));
+
+        out.println("{");
+        out.println("  \"rays\": {");
+        for (int k = 0; k < rayNames.length; k++)
+            out.println("    \"" + rayNames[k] + "\": " + counts[k] +
+                        (k < rayNames.length - 1 ? "," : ""));
+        out.println("  },");
+
+        out.print("  \"depths\": [");
+        for (int d = 0; d < getDepths(); d++)
+            out.print((d > 0 ? ", " : "") + getRaysAtDepth(d));
+        out.println("],");
+
+        out.println("  \"shapes\": {");
+        boolean first = true;
+        for (int s = 0; s < shapeNames.size(); s++) {
+            if (getHitCalls(s) == 0)
+                continue;
+            if (!first)
+                out.println(",");
+            first = false;
+            out.print("    \"" + shapeNames.elementAt(s) + "\": { " +
+                      "\"calls\": " + getHitCalls(s) + ", " +
+                      "\"hits\": " + getHits(s) + " }");
+        }
+        if (!first)
+            out.println();
+        out.println("  },");
+
+        out.println("  \"timeMs\": {");
+        out.println("    \"parse\": "  + parseTime  / 1e6 + ",");
+        out.println("    \"setup\": "  + setupTime  / 1e6 + ",");
+        out.println("    \"render\": " + renderTime / 1e6 + ",");
+        out.println("    \"write\": "  + writeTime  / 1e6);
+        out.println("  }");
+        out.println("}");
+
+        out.close();
+        if (out.checkError())
+            throw new IOException("Error writing " + fileName);
+    }
+}
@@ -5,8 +5,9 @@
  * Doug DeCarlo
  */
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.text.ParseException;
-import java.lang.reflect.*;
 import java.io.*;
 import javax.vecmath.*;
 
@@ -21,15 +22,24 @@ class Scene
 
     RGBImage    image      = null;
 
+    // If not null, tiles are written to this file as they are finished
+    PPMStreamWriter stream = null;
+
     // ------
     
     // Current insertion point in hierarchy for parser
     VectorHierarchy<Shape> currentLevel;
 
+    // Groups of shapes defined so far (by name), the group being defined
+    // (null outside of define {} ... end {}), and the size of the matrix
+    // stack before its definition
+    Map<String, Group> groups = new HashMap<String, Group>();
+    Group defining         = null;
+    int   definingStack    = 0;
+
     // Hierarchy enable (if off, "up" and "down" have no effect)
-    // (Use this if you implement hierarchical object management or CSG)
-    // (if you turn this on, you'll need to re-write intersects() and 
-    // shadowTint() recursively for it to see the child objects!)
+    // (intersects() and shadowTint() visit the children of each object
+    // they test, skipping those whose tree bounds the ray misses)
     boolean hierarchyOn    = true;
     
     // ------
@@ -37,14 +47,75 @@ class Scene
     // Maximum recursion depth for a ray
     double recursionDepth  = 3;
     
+    // Reflected and refracted rays whose weight in the pixel (the product
+    // of the ks or kt of the surfaces along the way, in its largest
+    // component) is below minWeight are not cast (nor are those of a zero
+    // ks or kt).  With roulette on, they are cast with probability
+    // weight / minWeight instead, and their color scaled by the inverse,
+    // so that the expected color is unchanged.  The default of 0 casts
+    // every ray that can add to the pixel, so images are as before
+    double  minWeight      = 0.0;
+    boolean roulette       = false;
+
+    // Many lights: with lightSamples > 0, every hit is lit by that many
+    // point lights, picked at random (from lightTree) in proportion to
+    // what they may add there, with their color divided by the number of
+    // samples and their probability, so that the expected color is that
+    // of all the lights.  Directional lights are always all used, and the
+    // ambient light of the point lights is added as one (ambientLight)
+    int       lightSamples = 0;
+    LightTree lightTree    = null;
+    Light     ambientLight = null;
+
+    // Random numbers (of roulette and of the light samples) come from
+    // randomSeed and the primary ray, so that images are repeatable
+    long    randomSeed     = 0;
+
     // Minimum t value in intersection computations
     double epsilon         = 1e-5;
+
+    // Number of render threads (1 renders on the calling thread)
+    int threads            = 1;
+
+    // Edge length (in pixels) of the tiles handed to render threads
+    int tileSize           = 32;
+
+    // Anti-aliasing: if off, every pixel averages a fixed pattern of 5
+    // rays; if on, pixels start with 1 ray and only those that differ from
+    // their neighbors (in hit object, or in color by more than
+    // aaThreshold) are refined, up to aaSamples rays per pixel
+    boolean adaptive       = false;
+    double  aaThreshold    = 0.05;
+    int     aaSamples      = 16;
+
+    // Choose the resolution of image textures from the area seen through
+    // a pixel (if off, the default, textures are always sampled at full
+    // resolution, as they were before mip-mapping)
+    boolean mipmapOn       = false;
+
+    // Use a bounding volume hierarchy to find the objects a ray may hit
+    // (if off, every object is tested against every ray)
+    boolean bvhOn          = true;
+
+    // Top level objects, and the hierarchy over their world space bounds
+    // (built by setup())
+    Shape[]     objectArray = null;
+    BVH         bvh         = null;
+
+    // Scratch space of each render thread
+    private final ThreadLocal<RenderContext> contexts =
+        ThreadLocal.withInitial(() -> new RenderContext(this));
+
+    // Statistics of every render context (see getStats())
+    private final Vector<RenderStats> threadStats = new Vector<RenderStats>();
+
+    // Render threads (if threads > 1), kept from one render to the next
+    // so that each keeps its render context (see renderPool())
+    private ExecutorService pool        = null;
+    private int             poolThreads = 0;
     
     // Constructor
     public Scene()
-        throws ParseException, IOException, NoSuchMethodException,
-        ClassNotFoundException,IllegalAccessException,
-        InvocationTargetException
     {
         // Set hierarchy at top level
         currentLevel = objects;
@@ -57,284 +128,825 @@ class Scene
 
     /** render an image of size width X height */
     public RGBImage render(int width, int height, boolean verbose)
-        throws ParseException, IOException, NoSuchMethodException,
-        ClassNotFoundException,IllegalAccessException,
-        InvocationTargetException
+    {
+        start(width, height);
+
+        if (threads > 1) {
+            renderTiles(verbose);
+        } else if (adaptive || stream != null) {
+            // Adaptive sampling and streaming work on whole tiles (see
+            // renderTile())
+            for (int y0 = 0; y0 < image.getHeight(); y0 += tileSize) {
+                if (verbose)
+                  System.out.print("Rendering " +
+                                   (int)(100.0*y0/image.getHeight()) + "%\r");
+
+                for (int x0 = 0; x0 < image.getWidth(); x0 += tileSize)
+                    renderTile(x0, y0,
+                               Math.min(x0 + tileSize, image.getWidth()),
+                               Math.min(y0 + tileSize, image.getHeight()));
+            }
+        } else {
+            // Ray trace every pixel -- the main loop
+            for (int i = 0; i < image.getWidth(); i++) {
+                if (verbose)
+                  System.out.print("Rendering " +
+                                   (int)(100.0*i/(image.getWidth()-1)) + "%\r");
+
+                for (int j = 0; j < image.getHeight(); j++)
+                    renderPixel(context(), i, j);
+            }
+        }
+
+        if (verbose) {
+            System.out.println();
+            System.out.println("Done!");
+        }
+
+        return image;
+    }
+
+    /** set up the camera and a new (black) image of size width X height,
+     *  for rendering the image (or tiles of it, with renderTile())
+     */
+    public void start(int width, int height)
     {
         // Set up camera for this image resolution
         camera.setup(width, height);
 
         // Make a new image
         image = new RGBImage(width, height);
+    }
 
-        // Ray trace every pixel -- the main loop
-        for (int i = 0; i < image.getWidth(); i++) {
-            if (verbose)
-              System.out.print("Rendering " +
-                               (int)(100.0*i/(image.getWidth()-1)) + "%\r");
-
-            for (int j = 0; j < image.getHeight(); j++) {
-                // Compute (x,y) coordinates of pixel in [-1, 1]
-                double x = ((double)i)/(image.getWidth()  - 1) * 2 - 1;
-                double y = ((double)j)/(image.getHeight() - 1) * 2 - 1;
-	       	
-	       	double right = ((double)i+.25)/(image.getWidth()  - 1) * 2 - 1;
-                double top = ((double)j+.25)/(image.getHeight() - 1) * 2 - 1;
-		double bottom =((double)j-.25)/(image.getHeight() - 1) * 2 - 1;
-	       	double left = ((double)i-.25)/(image.getWidth()  - 1) * 2 - 1;
-	       	
-                // Compute ray at pixel (x,y)
-                Ray r = camera.pixelRay(x, y);
-	       	Ray r1 = camera.pixelRay(right,top);
-	       	Ray r2 = camera.pixelRay(left,top);
-	       	Ray r3 = camera.pixelRay(left,bottom);
-	       	Ray r4 = camera.pixelRay(right,bottom);
-                // Compute resulting color at pixel (x,y)
-                Vector3d color = castRay(r, 0);
-	       	Vector3d color1 = castRay(r1, 0);
-	      	Vector3d color2 = castRay(r2, 0);
-	       	Vector3d color3 = castRay(r3, 0);
-	       	Vector3d color4 = castRay(r4, 0);
-                // Set color in image
-               color.x = color.x+color1.x+color2.x+color3.x+color4.x;
-                color.y = color.y+color1.y+color2.y+color3.y+color4.y;
-                color.z = color.z+color1.z+color2.z+color3.z+color4.z;
-                color.scale(.2);
-
-                image.setPixel(i,j, color);
+    /** split the image into tiles and render them on a pool of
+     *  'threads' workers (the result is identical to the serial loop,
+     *  since every pixel is computed independently)
+     */
+    private void renderTiles(final boolean verbose)
+    {
+        int width = image.getWidth(), height = image.getHeight();
+
+        List<Callable<Object>> tiles = new ArrayList<Callable<Object>>();
+        for (int y0 = 0; y0 < height; y0 += tileSize) {
+            for (int x0 = 0; x0 < width; x0 += tileSize) {
+                final int i0 = x0, i1 = Math.min(x0 + tileSize, width);
+                final int j0 = y0, j1 = Math.min(y0 + tileSize, height);
+
+                tiles.add(Executors.callable(() -> renderTile(i0, j0, i1, j1)));
             }
         }
 
+        // Progress is reported as a fraction of finished tiles
+        final int total = tiles.size();
+        final AtomicInteger done = new AtomicInteger();
         if (verbose) {
-            System.out.println();
-            System.out.println("Done!");
+            for (int k = 0; k < total; k++) {
+                final Callable<Object> tile = tiles.get(k);
+                tiles.set(k, () -> {
+                    tile.call();
+                    System.out.print("Rendering " +
+                                     (int)(100.0*done.incrementAndGet()/total) +
+                                     "%\r");
+                    return null;
+                });
+            }
         }
 
-        return image;
+        try {
+            for (Future<Object> f : renderPool().invokeAll(tiles))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Rendering interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /** the pool of 'threads' render threads, made on first use and kept
+     *  for the next renders (a new pool for every render would start new
+     *  threads, each with a new render context and statistics, for every
+     *  frame of an animation); the threads are daemons, so they do not
+     *  keep the program running
+     */
+    synchronized ExecutorService renderPool()
+    {
+        if (pool == null || poolThreads != threads) {
+            if (pool != null)
+                pool.shutdown();
+
+            final AtomicInteger count = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "Render thread " +
+                                      count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            poolThreads = threads;
+        }
+        return pool;
+    }
+
+    /** render the pixels in columns [i0, i1) and rows [j0, j1) */
+    void renderTile(int i0, int j0, int i1, int j1)
+    {
+        RenderContext ctx = context();
+        if (adaptive) {
+            renderTileAdaptive(ctx, i0, j0, i1, j1);
+        } else {
+            for (int j = j0; j < j1; j++)
+                for (int i = i0; i < i1; i++)
+                    renderPixel(ctx, i, j);
+        }
+
+        if (stream != null) {
+            try {
+                stream.writeTile(image, i0, j0, i1, j1);
+            } catch (IOException e) {
+                throw new RuntimeException("Error writing " +
+                                           stream.fileName + ": " +
+                                           e.getMessage());
+            }
+        }
+    }
+
+    /** compute the (anti-aliased) color of pixel (i,j) and store it in
+     *  the image
+     */
+    void renderPixel(RenderContext ctx, int i, int j)
+    {
+        // Compute (x,y) coordinates of pixel in [-1, 1]
+        double x = ((double)i)/(image.getWidth()  - 1) * 2 - 1;
+        double y = ((double)j)/(image.getHeight() - 1) * 2 - 1;
+
+        double right  = ((double)i+.25)/(image.getWidth()  - 1) * 2 - 1;
+        double top    = ((double)j+.25)/(image.getHeight() - 1) * 2 - 1;
+        double bottom = ((double)j-.25)/(image.getHeight() - 1) * 2 - 1;
+        double left   = ((double)i-.25)/(image.getWidth()  - 1) * 2 - 1;
+
+        ctx.samples(5);
+        Ray[]      r     = ctx.sampleRays;
+        Vector3d[] color = ctx.sampleColors;
+
+        // Compute ray at pixel (x,y)
+        camera.pixelRay(x, y, r[0]);
+        camera.pixelRay(right, top, r[1]);
+        camera.pixelRay(left, top, r[2]);
+        camera.pixelRay(left, bottom, r[3]);
+        camera.pixelRay(right, bottom, r[4]);
+
+        // Compute resulting color at pixel (x,y)
+        for (int k = 0; k < 5; k++)
+            castRay(ctx, r[k], 0, color[k]);
+
+        // Set color in image
+        Vector3d c = color[0];
+        c.x = c.x+color[1].x+color[2].x+color[3].x+color[4].x;
+        c.y = c.y+color[1].y+color[2].y+color[3].y+color[4].y;
+        c.z = c.z+color[1].z+color[2].z+color[3].z+color[4].z;
+        c.scale(.2);
+
+        image.setPixel(i,j, c);
+    }
+
+    //------------------------------------------------------------------------
+    // Adaptive anti-aliasing
+
+    /** render the pixels of a tile with adaptive anti-aliasing
+     *
+     *  A first pass casts one ray through the center of every pixel of
+     *  the tile and of a one pixel border around it (so that pixels on
+     *  the edge of the tile have all their neighbors, and the result does
+     *  not depend on how the image is split into tiles).  Pixels that
+     *  differ from a neighbor are then refined by refine().
+     */
+    private void renderTileAdaptive(RenderContext ctx,
+                                    int i0, int j0, int i1, int j1)
+    {
+        int a0 = Math.max(i0 - 1, 0), a1 = Math.min(i1 + 1, image.getWidth());
+        int b0 = Math.max(j0 - 1, 0), b1 = Math.min(j1 + 1, image.getHeight());
+        int w = a1 - a0;
+
+        ctx.centers(w * (b1 - b0));
+        double[] centers = ctx.centerColors;
+        Shape[]  hits    = ctx.centerHits;
+        Vector3d color   = ctx.pixelColor;
+
+        for (int j = b0; j < b1; j++) {
+            for (int i = a0; i < a1; i++) {
+                int k = (j - b0) * w + (i - a0);
+                hits[k] = sample(ctx, i, j, 0.0, 0.0, color);
+                centers[3*k]   = color.x;
+                centers[3*k+1] = color.y;
+                centers[3*k+2] = color.z;
+            }
+        }
+
+        for (int j = j0; j < j1; j++) {
+            for (int i = i0; i < i1; i++) {
+                int k = (j - b0) * w + (i - a0);
+                color.set(centers[3*k], centers[3*k+1], centers[3*k+2]);
+
+                boolean edge =
+                    (i > a0     && differs(ctx, k, k - 1)) ||
+                    (i < a1 - 1 && differs(ctx, k, k + 1)) ||
+                    (j > b0     && differs(ctx, k, k - w)) ||
+                    (j < b1 - 1 && differs(ctx, k, k + w));
+
+                if (edge) {
+                    ctx.samplesLeft = aaSamples - 1;
+                    refine(ctx, i, j, 0.0, 0.0, 0.5, 0, hits[k], color);
+                }
+
+                image.setPixel(i, j, color);
+            }
+        }
+    }
+
+    /** check if first pass samples k and n differ */
+    private boolean differs(RenderContext ctx, int k, int n)
+    {
+        double[] c = ctx.centerColors;
+        return ctx.centerHits[k] != ctx.centerHits[n] ||
+            Math.abs(c[3*k]   - c[3*n])   > aaThreshold ||
+            Math.abs(c[3*k+1] - c[3*n+1]) > aaThreshold ||
+            Math.abs(c[3*k+2] - c[3*n+2]) > aaThreshold;
+    }
+
+    private boolean differs(Vector3d a, Shape aHit, Vector3d b, Shape bHit)
+    {
+        return aHit != bHit ||
+            Math.abs(a.x - b.x) > aaThreshold ||
+            Math.abs(a.y - b.y) > aaThreshold ||
+            Math.abs(a.z - b.z) > aaThreshold;
+    }
+
+    /** refine the square of pixel (i,j) centered at offset (cx,cy) (in
+     *  pixels) with half-width h, given the color of its center in
+     *  color, and replace that with the average of the square
+     *
+     *  A ray is cast through the center of each quarter of the square,
+     *  and the average is taken over those and the center (so the first
+     *  level is the fixed 5 ray pattern).  Quarters that differ from the
+     *  center are refined in turn, as long as samplesLeft allows.
+     */
+    private void refine(RenderContext ctx, int i, int j,
+                        double cx, double cy, double h, int level,
+                        Shape hit, Vector3d color)
+    {
+        if (ctx.samplesLeft < 4)
+            return;
+        ctx.samplesLeft -= 4;
+
+        Vector3d[] quarter = ctx.quarterColors(level);
+        Shape[]    qhit    = ctx.quarterHits[level];
+
+        // (same order as the fixed pattern in renderPixel())
+        double q = h / 2;
+        qhit[0] = sample(ctx, i, j, cx + q, cy + q, quarter[0]);
+        qhit[1] = sample(ctx, i, j, cx - q, cy + q, quarter[1]);
+        qhit[2] = sample(ctx, i, j, cx - q, cy - q, quarter[2]);
+        qhit[3] = sample(ctx, i, j, cx + q, cy - q, quarter[3]);
+
+        for (int k = 0; k < 4; k++) {
+            if (differs(quarter[k], qhit[k], color, hit))
+                refine(ctx, i, j,
+                       cx + (k == 0 || k == 3 ? q : -q),
+                       cy + (k < 2 ? q : -q), q, level + 1,
+                       qhit[k], quarter[k]);
+        }
+
+        color.x = color.x+quarter[0].x+quarter[1].x+quarter[2].x+quarter[3].x;
+        color.y = color.y+quarter[0].y+quarter[1].y+quarter[2].y+quarter[3].y;
+        color.z = color.z+quarter[0].z+quarter[1].z+quarter[2].z+quarter[3].z;
+        color.scale(.2);
+    }
+
+    /** cast a ray through pixel (i,j) offset by (dx,dy) pixels, store its
+     *  color, and return the object it hit first (null if none)
+     */
+    private Shape sample(RenderContext ctx, int i, int j,
+                         double dx, double dy, Vector3d color)
+    {
+        double x = ((double)i+dx)/(image.getWidth()  - 1) * 2 - 1;
+        double y = ((double)j+dy)/(image.getHeight() - 1) * 2 - 1;
+
+        ctx.samples(1);
+        Ray r = ctx.sampleRays[0];
+        camera.pixelRay(x, y, r);
+        castRay(ctx, r, 0, color);
+
+        return ctx.frame(0).isect.getHitObject();
+    }
+
+    /** scratch space of the calling render thread */
+    RenderContext context()
+    {
+        return contexts.get();
+    }
+
+    /** statistics for a new render context (included in getStats()) */
+    RenderStats newStats()
+    {
+        RenderStats stats = new RenderStats();
+        threadStats.addElement(stats);
+        return stats;
+    }
+
+    /** the total statistics of all render threads (the counts may be
+     *  incomplete while rendering)
+     */
+    public RenderStats getStats()
+    {
+        RenderStats total = new RenderStats();
+        synchronized (threadStats) {
+            for (RenderStats stats : threadStats)
+                total.add(stats);
+        }
+        return total;
     }
 
     /** compute pixel color for ray tracing computation for ray r
-     *  (at a recursion depth)
+     *  (at a recursion depth), and store it in color
+     */
+    void castRay(RenderContext ctx, Ray r, int depth, Vector3d color)
+    {
+        RenderContext.Frame f = ctx.frame(depth);
+        f.distance = 0.0;
+        f.weight.set(1.0, 1.0, 1.0);
+        if (roulette || lightSamples > 0)
+          ctx.randomState = randomSeed ^ rayHash(r);
+        castRay(ctx, r, depth, RenderStats.PRIMARY, color);
+    }
+
+    /** a hash of the origin and direction of ray r */
+    private static long rayHash(Ray r)
+    {
+        Point3d  o = r.getPoint();
+        Vector3d d = r.getDirection();
+        long h = 17;
+        h = 31*h + Double.doubleToLongBits(o.x);
+        h = 31*h + Double.doubleToLongBits(o.y);
+        h = 31*h + Double.doubleToLongBits(o.z);
+        h = 31*h + Double.doubleToLongBits(d.x);
+        h = 31*h + Double.doubleToLongBits(d.y);
+        h = 31*h + Double.doubleToLongBits(d.z);
+        return h;
+    }
+
+    /** castRay() for a ray of the given kind (see RenderStats) */
+    private void castRay(RenderContext ctx, Ray r, int depth, int kind,
+                         Vector3d color)
+    {
+        RenderContext.Frame f = ctx.frame(depth);
+        ISect isect = f.isect;
+        Vector3d norm = isect.getNormal();
+        boolean check = false;
+
+        color.set(0.0, 0.0, 0.0);
+
+        if (depth > recursionDepth)
+            return;
+        ctx.stats.ray(kind, depth);
+
+        // Check if ray hit any object
+        if (intersects(ctx, r, isect)) {
+            // Width of the pixel footprint at the hit point (ignoring the
+            // curvature of the surfaces along the way)
+            double distance = f.distance +
+                isect.getHitPoint().distance(r.getPoint());
+            isect.footprint = mipmapOn ?
+                distance * camera.getPixelSpread() : 0.0;
+            ctx.frame(depth + 1).distance = distance;
+
+            // -- Ray hit object as specified in isect
+            Material mat = isect.getHitObject().getMaterialRef();
+            Vector3d ks = mat.getKs();
+            Vector3d kt = mat.getKt();
+            Vector3d rayDir = r.getDirection();
+
+            //COMPUTE REFLECTION*KS
+            Vector3d Ri = f.reflectDir;
+            Tools.reflect(Ri, rayDir, norm);
+            Ri.scale(-1.0);
+
+            //ADD REFLECTION*KS TO COLOR
+            Ray refR = f.reflected;
+            refR.set(isect.getHitPoint(), Ri);
+            refR.getDirection().normalize();
+            castSecondary(ctx, f, refR, depth, RenderStats.REFLECTION, ks,
+                          color);
+
+            //COMPUTE REFRACTON*KT
+            Vector3d Refraction = f.refractDir;
+            double rayDot = rayDir.dot(norm);
+            if (rayDot < 0) {
+                check = Tools.refract(Refraction, rayDir, norm,
+                                      1.0, mat.getIndex());
+            } else {
+                norm.scale(-1);
+                check = Tools.refract(Refraction, rayDir, norm,
+                                      mat.getIndex(), 1.0);
+            }
+
+            if (check) {
+                //ADD REFRACTION*KT TO COLOR
+                Ray refracR = f.refracted;
+                refracR.set(isect.getHitPoint(), Refraction);
+                refracR.getDirection().normalize();
+                castSecondary(ctx, f, refracR, depth, RenderStats.REFRACTION,
+                              kt, color);
+            }
+
+            if (lightSamples > 0 && lightTree != null) {
+                sampleLights(ctx, isect, r, color);
+                return;
+            }
+
+            for (int l = 0; l < lights.size(); l++) {
+                Light currentLight = lights.elementAt(l);
+
+                // Light let through to the hit point
+                shadowRay(ctx, isect, currentLight, l, ctx.tint);
+
+                //ADD LIGHTING TO COLOR
+                currentLight.compute(isect, ctx.tint, r, ctx.lightColor);
+                color.add(ctx.lightColor);
+            }
+        }
+    }
+
+    /** add the light of the hit isect of ray r to color, with
+     *  lightSamples point lights picked from the light tree (see
+     *  lightSamples)
      */
-	private Vector3d castRay(Ray r, int depth)
-    	{
-       	 	Vector3d color = new Vector3d(0.0,0.0,0.0);
-        	ISect isect = new ISect();
-        	Vector3d norm = isect.getNormal();
-        	boolean check = false;
-        	// Check if ray hit any object (or recursion depth was exceeded)
-        	if (depth <= recursionDepth && intersects(r, isect)) 
-        	{
-            		// -- Ray hit object as specified in isect
-            		Material mat = isect.getHitObject().getMaterialRef();
-            		Vector3d ks = mat.getKs();
-        		Vector3d kt = mat.getKt();
-            		Vector3d Ri = new Vector3d();
-            		
-            		
-            		//COMPUTE REFLECTION*KS
-			Vector3d rayDir = r.getDirection();
-			
-         		Tools.reflect(Ri,r.getDirection(),norm);
-            		Ri.scale(-1.0);
-            		//ADD REFLECTION*KS TO COLOR
-         		Ray refR = new Ray(isect.getHitPoint(),Ri);
-         		refR.getDirection().normalize();
-         		Vector3d Ireflect = castRay(refR,depth+1);
-         		Tools.termwiseMul3d(Ireflect,ks);
-			color.add(Ireflect);
-            		
-            		
-            		//COMPUTE REFRACTON*KT
-				
-				Vector3d Refraction = new Vector3d();
-				double rayDot = rayDir.dot(norm);
-					if(rayDot < 0)
-					{
-						
-						check = Tools.refract(Refraction, rayDir, norm,1.0, mat.getIndex());
-					}
-					else
-					{
-						norm.scale(-1);
-						check = Tools.refract(Refraction, rayDir, norm,mat.getIndex(),1.0);
-					}
-				
-				if(check)
-				{
-					//ADD REFRACTION*KT TO COLOR
-					Ray refracR = new Ray(isect.getHitPoint(),Refraction);
-					refracR.getDirection().normalize();
-					Vector3d Irefract =castRay(refracR,depth+1);
-					Tools.termwiseMul3d(Irefract,kt);
-					color.add(Irefract);
-				}
-				
-            		
-            		for(Light currentLight:lights)
-        		{
-        			//GET MATERIAL PROPERTIES
-        			Vector3d tint = shadowRay(isect, currentLight);
-        		
-        			//DETERMINE LIGHTING TYPE
-        			Vector3d li = null;
-        			if(currentLight.isDirectional())
-        			{
-        				li = currentLight.getDirection();
-        			}
-        			else
-        			{	
-        				li = new Vector3d(currentLight.getPosition());
-        				li.sub(isect.getHitPoint());
-        			}
-        		
-        			//ADD LIGHTING TO COLOR
-        			Vector3d I = currentLight.compute(isect,tint,r);
-				color.add(I);
-
-
-			}
-       
-       	 	}
-
-        return color;
+    private void sampleLights(RenderContext ctx, ISect isect, Ray r,
+                              Vector3d color)
+    {
+        ambientLight.ambient(isect, ctx.lightColor);
+        color.add(ctx.lightColor);
+
+        for (int l = 0; l < lights.size(); l++) {
+            Light currentLight = lights.elementAt(l);
+            if (currentLight.isDirectional()) {
+                shadowRay(ctx, isect, currentLight, l, ctx.tint);
+                currentLight.compute(isect, ctx.tint, r, ctx.lightColor);
+                color.add(ctx.lightColor);
+            }
+        }
+
+        double[] probability = ctx.probability;
+        for (int k = 0; k < lightSamples; k++) {
+            int l = lightTree.sample(isect.getHitPoint(), isect.getNormal(),
+                                     ctx.random(), probability);
+            if (l < 0)
+                continue;
+
+            Light currentLight = lights.elementAt(l);
+            shadowRay(ctx, isect, currentLight, l, ctx.tint);
+            currentLight.direct(isect, ctx.tint, r, ctx.lightColor);
+            ctx.lightColor.scale(1.0 / (lightSamples * probability[0]));
+            color.add(ctx.lightColor);
+        }
+    }
+
+    /** cast ray r (of the given kind) from the hit of frame f at depth,
+     *  unless it adds too little (see minWeight), and add its color
+     *  scaled by k to color
+     */
+    private void castSecondary(RenderContext ctx, RenderContext.Frame f,
+                               Ray r, int depth, int kind, Vector3d k,
+                               Vector3d color)
+    {
+        if (depth + 1 > recursionDepth)
+            return;
+
+        Vector3d w = ctx.frame(depth + 1).weight;
+        w.set(f.weight);
+        Tools.termwiseMul3d(w, k);
+
+        double scale = 1.0;
+        double m = Math.max(w.x, Math.max(w.y, w.z));
+        if (m < minWeight || m <= 0.0) {
+            if (!roulette || m <= 0.0 || ctx.random() * minWeight >= m) {
+                ctx.stats.skipped();
+                return;
+            }
+            scale = minWeight / m;
+            w.scale(scale);
+        }
+
+        castRay(ctx, r, depth+1, kind, f.child);
+        Tools.termwiseMul3d(f.child, k);
+        if (scale != 1.0)
+            f.child.scale(scale);
+        color.add(f.child);
     }
 
     /** determine the closest intersecting object along ray r (if any) 
      *  and its intersection point
      */
-    private boolean intersects(Ray r, ISect intersection)
+    boolean intersects(RenderContext ctx, Ray r, ISect intersection)
     {
-        // For each object
-        Enumeration e = objects.elements();
-        ISect tempInter = new ISect();
+        intersection.setHitObject(null);
         intersection.setT(Double.MAX_VALUE);
-        Matrix4d invM = null;
 
-	Shape chosen = null;
-        
-        while (e.hasMoreElements()) 
+        if (bvh != null) {
+            // Only test the objects whose bounds are hit closer than the
+            // nearest intersection found so far
+            ClosestHit query = ctx.closestHit;
+            query.ray = r;
+            query.intersection = intersection;
+            bvh.traverse(r, epsilon, Double.MAX_VALUE, query,
+                         ctx.stack(bvh.depth + 1));
+        } else {
+            // For each object
+            for (int i = 0; i < objectArray.length; i++)
+                closestHit(ctx, objectArray[i], r, intersection);
+        }
+
+        if (intersection.getHitObject() != null) 
         {
-            	Shape current = (Shape)e.nextElement();
-		Ray newR = new Ray(r);
-		invM = current.getInvMatrix();
-		invM.transform(newR.origin);
-		invM.transform(newR.direction);
-	
-         	boolean check = current.hit(newR,tempInter,true,epsilon);
-
-		if(check)
-		{			
-			if( intersection.getT() > tempInter.getT())
-			{
-				intersection.set(tempInter);
-			}
-		}
-
-        }
-	
-	
-	if (intersection.getHitObject() != null) 
-	{
-            	//Transform intersection and hit point into world space.
-            	Matrix4d inverseTranspose = intersection.getHitObject().getInvTMatrix();
-            	Matrix4d ma = intersection.getHitObject().getMatrix();
-            	ma.transform(intersection.getHitPoint());
-		inverseTranspose.transform(intersection.getNormal());
-		intersection.getNormal().normalize();
-		
-		return true;
+            //Transform intersection and hit point into world space.
+            Affine inverse = intersection.getSceneObject().getInverse();
+            Matrix4d ma = intersection.getSceneObject().getMatrix();
+            ma.transform(intersection.getHitPoint());
+            inverse.transformNormal(intersection.getNormal());
+            intersection.getNormal().normalize();
+
+            return true;
         }
 
         return false;
     }
 
+    /** intersect ray r (in world space) with top level object current
+     *  and its descendants, and keep the result in intersection if it
+     *  is closer than what it holds
+     */
+    private void closestHit(RenderContext ctx, Shape current, Ray r,
+                            ISect intersection)
+    {
+        closestHit(ctx, current, current.getInverse(), r, intersection, 0);
+    }
+
+    /** closestHit() for object current at hierarchy level 'level', with
+     *  ray r in the coordinates of its parent (toObject maps them to
+     *  those of current)
+     */
+    private void closestHit(RenderContext ctx, Shape current,
+                            Affine toObject, Ray r, ISect intersection,
+                            int level)
+    {
+        Ray newR = objectRay(ctx, toObject, r, level);
+
+        // (the children and current share newR: hit() does not change
+        // the ray)
+        Shape[] children = current.childArray;
+        if (children != null) {
+            Point3d  o = newR.origin;
+            Vector3d d = newR.direction;
+            double ix = 1.0 / d.x, iy = 1.0 / d.y, iz = 1.0 / d.z;
+            for (Shape c : children) {
+                if (BVH.hitBox(c.treeBounds, 0, o.x, o.y, o.z, ix, iy, iz,
+                               epsilon, intersection.getT()))
+                    closestHit(ctx, c, c.toObject, newR, intersection,
+                               level + 1);
+            }
+        }
+
+        // (the tree bounds of a shape without children are its own, and
+        // were tested already)
+        if (children != null &&
+            !BVH.hitBounds(current.treeBounds, 6, r, epsilon,
+                           intersection.getT()))
+            return;
+
+        if (ctx.stats.hit(current.getStatsKind(),
+                          current.hit(newR, ctx.temp, true, epsilon,
+                                      intersection.getT())) &&
+            intersection.getT() > ctx.temp.getT())
+        {
+            intersection.set(ctx.temp);
+        }
+    }
+
+    /** ray r transformed by toObject, in the object ray of hierarchy
+     *  level 'level' of ctx
+     */
+    private static Ray objectRay(RenderContext ctx, Affine toObject, Ray r,
+                                 int level)
+    {
+        Ray newR = ctx.objectRay(level);
+        toObject.transform(r, newR);
+        return newR;
+    }
+
+    /** closest hit query: the BVH visitor used by intersects() */
+    class ClosestHit implements BVH.Visitor
+    {
+        RenderContext ctx;
+        Ray           ray;
+        ISect         intersection;
+
+        ClosestHit(RenderContext context) { ctx = context; }
+
+        public double visit(int[] prims, int first, int count, double tMax)
+        {
+            for (int k = first; k < first + count; k++)
+                closestHit(ctx, objectArray[prims[k]], ray, intersection);
+            return intersection.getT();
+        }
+    }
+
     /** compute the amount of unblocked color that is let through to
-     *  a given intersection, for a particular light
+     *  a given intersection, for a particular light, and store it in tint
      *
      *  If the light is entirely blocked, return (0,0,0), not blocked at all
      *  return (1,1,1), and partially blocked return the product of Kt's
      *  (from transparent objects)
+     *
+     *  lightIndex is the position of the light in lights (which selects
+     *  its occluder cache entry)
      */
-    Vector3d shadowRay(ISect intersection, Light light)
+    void shadowRay(RenderContext ctx, ISect intersection, Light light,
+                   int lightIndex, Vector3d tint)
     {
-        // ...
-
         // Compute shadow ray and call shadowTint() or shadowTintDirectional()
-	Point3d p = intersection.getHitPoint();
-	
-	
-	//if null dir or light
-	Vector3d dir = null;
-	Ray r = null;
-	if(light.getPosition() == null)
-	{
-		dir = light.getDirection();
-
-	}
-	else
-	{
-		dir = new Vector3d(light.getPosition());
-		dir.sub(new Vector3d(p));
-		
-	}
-	double length = dir.length();
-	dir.normalize();
-	r = new Ray(p,dir);
-     
-		if(!light.isDirectional())
-		{
-
-        		return shadowTint(r,length);
-		}
-		else
-		{
-			return shadowTintDirectional(r);
-		}
-
-        // Placeholder (not blocked)
-        //return new Vector3d(1,1,1);
+        Point3d p = intersection.getHitPoint();
+
+        Ray r = ctx.shadowRay;
+        Vector3d dir = r.getDirection();
+        if (light.getPosition() == null) {
+            dir.set(light.getDirection());
+        } else {
+            dir.set(light.getPosition());
+            dir.sub(p);
+        }
+        double length = dir.length();
+        dir.normalize();
+        r.getPoint().set(p);
+
+        if (!light.isDirectional()) {
+            shadowTint(ctx, r, length, lightIndex, tint);
+        } else {
+            shadowTintDirectional(ctx, r, lightIndex, tint);
+        }
     }
 
     /** determine how the light is tinted along a particular ray which
      *  has no maximum distance (i.e. from a directional light)
      */
-    private Vector3d shadowTintDirectional(Ray r)
+    private void shadowTintDirectional(RenderContext ctx, Ray r,
+                                       int lightIndex, Vector3d tint)
     {
-    
-        return shadowTint(r, Double.MAX_VALUE);
+        shadowTint(ctx, r, Double.MAX_VALUE, lightIndex, tint);
     }
 
     /** determine how the light is tinted along a particular ray, not
      *  considering intersections further than maxT
+     *
+     *  The search stops as soon as the light is entirely blocked, and
+     *  the object that last blocked this light (on this thread) is
+     *  tested first, since neighboring shadow rays are usually blocked
+     *  by the same object
+     */
+    void shadowTint(RenderContext ctx, Ray r, double maxT, int lightIndex,
+                    Vector3d tint)
+    {
+        tint.set(1.0, 1.0, 1.0);
+        ctx.stats.shadowRay();
+
+        Shape[] occluders = ctx.occluders(lights.size());
+        Shape cached = occluders[lightIndex];
+
+        // (an instance is cached when an opaque shape of its group blocked
+        // the light, but a ray may hit only its transparent shapes, so
+        // the search ends only if no light is left; the cached object is
+        // skipped below either way.  M of every object maps to world
+        // coordinates, so a cached child is tested on its own)
+        if (cached != null &&
+            tintHit(ctx, cached, objectRay(ctx, cached.getInverse(), r, 0),
+                    maxT, tint) &&
+            tint.x == 0.0 && tint.y == 0.0 && tint.z == 0.0)
+            return;
+
+        if (bvh != null) {
+            ShadowHit query = ctx.shadowHit;
+            query.ray = r;
+            query.maxT = maxT;
+            query.tint = tint;
+            query.cached = cached;
+            query.lightIndex = lightIndex;
+            bvh.traverse(r, epsilon, maxT, query, ctx.stack(bvh.depth + 1));
+        } else {
+            // For each object
+            for (int i = 0; i < objectArray.length; i++) {
+                if (shadowHit(ctx, objectArray[i], r, maxT, lightIndex,
+                              cached, tint))
+                    break;
+            }
+        }
+    }
+
+    /** any hit query: the BVH visitor used by shadowTint() */
+    class ShadowHit implements BVH.Visitor
+    {
+        RenderContext ctx;
+        Ray           ray;
+        double        maxT;
+        Vector3d      tint;
+        Shape         cached;
+        int           lightIndex;
+
+        ShadowHit(RenderContext context) { ctx = context; }
+
+        public double visit(int[] prims, int first, int count, double tMax)
+        {
+            for (int k = first; k < first + count; k++) {
+                if (shadowHit(ctx, objectArray[prims[k]], ray, maxT,
+                              lightIndex, cached, tint)) {
+                    // Blocked: end the traversal
+                    return -1;
+                }
+            }
+            // Every object hit before maxT tints the light, so the
+            // traversal range never shrinks
+            return tMax;
+        }
+    }
+
+    /** tint the light along ray r (in world space) by top level object
+     *  current and its descendants (except cached, which was tested
+     *  already), and return whether all light is blocked
+     */
+    private boolean shadowHit(RenderContext ctx, Shape current, Ray r,
+                              double maxT, int lightIndex, Shape cached,
+                              Vector3d tint)
+    {
+        return shadowHit(ctx, current, current.getInverse(), r, 0, maxT,
+                         lightIndex, cached, tint);
+    }
+
+    /** shadowHit() for object current at hierarchy level 'level', with
+     *  ray r in the coordinates of its parent (toObject maps them to
+     *  those of current)
+     */
+    private boolean shadowHit(RenderContext ctx, Shape current,
+                              Affine toObject, Ray r, int level,
+                              double maxT, int lightIndex, Shape cached,
+                              Vector3d tint)
+    {
+        Ray newR = objectRay(ctx, toObject, r, level);
+
+        // (children first, as in closestHit())
+        Shape[] children = current.childArray;
+        if (children != null) {
+            Point3d  o = newR.origin;
+            Vector3d d = newR.direction;
+            double ix = 1.0 / d.x, iy = 1.0 / d.y, iz = 1.0 / d.z;
+            for (Shape c : children) {
+                if (BVH.hitBox(c.treeBounds, 0, o.x, o.y, o.z, ix, iy, iz,
+                               epsilon, maxT) &&
+                    shadowHit(ctx, c, c.toObject, newR, level + 1, maxT,
+                              lightIndex, cached, tint))
+                    return true;
+            }
+        }
+
+        return current != cached &&
+            (children == null ||
+             BVH.hitBounds(current.treeBounds, 6, r, epsilon, maxT)) &&
+            tintHit(ctx, current, newR, maxT, tint) &&
+            blocked(ctx, lightIndex, tint);
+    }
+
+    /** multiply tint by the Kt of object current if it blocks ray r
+     *  (in the coordinates of current) before maxT, and return whether
+     *  it did (an instance tints by every shape of its group it blocks
+     *  the ray with -- see Shape.tint())
+     */
+    private boolean tintHit(RenderContext ctx, Shape current, Ray newR,
+                            double maxT, Vector3d tint)
+    {
+        return ctx.stats.hit(current.getStatsKind(),
+                             current.tint(newR, ctx.temp, epsilon, maxT,
+                                          tint));
+    }
+
+    /** check if all light is blocked after the hit in ctx.temp (and if
+     *  so, cache the object that was hit -- the instance, for a shape of
+     *  a group -- as the occluder of the light if the shape is opaque)
      */
-    private Vector3d shadowTint(Ray r, double maxT)
-    {
-        Vector3d tint = new Vector3d(1.0, 1.0, 1.0);
-	Matrix4d inv = null;
-        // ...
-	ISect tempInter = new ISect();
-        // For each object
-        Enumeration e = objects.elements();
-        while (e.hasMoreElements()) {
-            Shape current = (Shape)e.nextElement();
-		Ray newR = new Ray(r);
-		inv = current.getInvMatrix();
-		inv.transform(newR.getDirection());
-		inv.transform(newR.getPoint());
-            boolean check = current.hit(newR,tempInter,false,epsilon);
-           if(tempInter.getT() < maxT){
-           if(check)
-           {
-            	Material mat = current.getMaterialRef();
-            	Tools.termwiseMul3d(tint,mat.getKt());
-           }
-	}
-            // ... find product of Kt values that intersect this ray
-        }
-
-	
-        return tint;
+    private static boolean blocked(RenderContext ctx, int lightIndex,
+                                   Vector3d tint)
+    {
+        if (tint.x == 0.0 && tint.y == 0.0 && tint.z == 0.0) {
+            if (ctx.temp.getHitObject().getMaterialRef().isOpaque())
+                ctx.occluders[lightIndex] = ctx.temp.getSceneObject();
+            return true;
+        }
+        return false;
     }
 
     //------------------------------------------------------------------------
@@ -374,11 +986,15 @@ class Scene
         } else if (newItem instanceof Shape) {
             Shape s = (Shape)newItem;
 
-            s.parent = currentLevel;
             s.setMaterialRef(getMaterial(s.getMaterialName()));
             s.setMatrix(MStack.peek());
 
-            currentLevel.addElement(s);
+            if (defining != null) {
+                defining.addShape(s);
+            } else {
+                s.parent = currentLevel;
+                currentLevel.addElement(s);
+            }
         }
         else if (newItem instanceof Camera){
             camera = (Camera)newItem;
@@ -387,9 +1003,6 @@ class Scene
 
     /** Set up the scene (called after the scene file is read in) */
     public void setup()
-        throws ParseException, IOException, NoSuchMethodException,
-        ClassNotFoundException,IllegalAccessException,
-        InvocationTargetException
     {
         // Specify default camera if none specified in scene file
         if (camera == null)
@@ -400,6 +1013,66 @@ class Scene
             Material mat = (Material)materials.elementAt(i);
             mat.setup(Trace.verbose);
         }
+
+        // Set up the traversal of the object hierarchy (before the scene
+        // hierarchy, which is built over the tree bounds of the objects)
+        for (Shape s : objects)
+            s.setupTree(null);
+
+        // (a compiled scene comes with its hierarchy)
+        if (objectArray == null)
+          buildBVH();
+
+        // Hierarchy over the point lights, and their ambient light
+        lightTree = LightTree.build(lights);
+        ambientLight = new Light();
+        Vector3d ambient = new Vector3d();
+        for (Light l : lights)
+            if (!l.isDirectional())
+                ambient.add(l.getColor());
+        ambientLight.setColor(ambient);
+    }
+
+    /** build the bounding volume hierarchy over the tree bounds of the
+     *  top level objects (see Shape.setupTree())
+     */
+    void buildBVH()
+    {
+        objectArray = objects.toArray(new Shape[objects.size()]);
+
+        if (!bvhOn) {
+            bvh = null;
+            return;
+        }
+
+        double[] bounds = new double[6*objectArray.length];
+        for (int i = 0; i < objectArray.length; i++)
+            System.arraycopy(objectArray[i].treeBounds, 0, bounds, 6*i, 6);
+
+        bvh = new BVH(bounds, objectArray.length);
+    }
+
+    /** update the scene after objects moved: moved holds the top level
+     *  objects whose transformation (or that of one of their descendants)
+     *  changed
+     *
+     * Only the bounds of these objects are computed again, and the scene
+     * hierarchy is refitted rather than built again (the hierarchies of
+     * meshes and groups are in their own coordinates, and do not change)
+     */
+    public void refit(Collection<Shape> moved)
+    {
+        for (Shape s : moved)
+            s.setupTree(null);
+
+        if (bvh == null)
+            return;
+
+        double[] bounds = new double[6*objectArray.length];
+        for (int i = 0; i < objectArray.length; i++)
+            System.arraycopy(objectArray[i].treeBounds, 0, bounds, 6*i, 6);
+
+        bvh.refit(bounds);
     }
 
     //-------------------------------------------------------------------------
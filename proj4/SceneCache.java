@@ -0,0 +1,672 @@
+/* class SceneCache
+ * Compiled scenes: the parsed and set up content of a scene file (its
+ * materials, lights, camera, the shapes with their transformations and
+ * inverses, the triangles of the meshes, and the bounding volume
+ * hierarchies) in a binary file next to it, <scene>.rtc
+ *
+ * The file is keyed by the SHA-256 hash of the scene file (and records
+ * the size and date of the mesh files it uses), so it is only used while
+ * the scene is unchanged; it is read through a memory mapping, with the
+ * arrays copied out in bulk
+ *
+ * Layout (big endian): the magic number and version, the key, the mesh
+ * files, then the materials, lights, camera, meshes, groups, the
+ * top-level shapes (each followed by its children), and the hierarchy
+ * over them.  Strings are a length (-1 for null) and UTF-8 bytes, and
+ * arrays a length and the values.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import javax.vecmath.*;
+
+class SceneCache
+{
+    static final int magic   = 0x52544353;   // "RTCS"
+    static final int version = 2;
+
+    // Shape kinds, by position
+    static final String[] kinds =
+        { "sphere", "box", "cone", "cylinder", "mesh", "instance" };
+
+    //------------------------------------------------------------------------
+
+    /** name of the compiled scene of scene file fileName */
+    public static String fileName(String sceneFileName)
+    {
+        return sceneFileName + ".rtc";
+    }
+
+    /** fill scene s (which must be new) from the compiled scene of
+     *  sceneFileName, if there is one that is up to date; returns
+     *  whether it did (the scene still needs to be set up)
+     */
+    public static boolean read(Scene s, String sceneFileName)
+    {
+        File f = new File(fileName(sceneFileName));
+        if (!f.isFile())
+            return false;
+
+        try {
+            byte[] key = key(sceneFileName);
+
+            ByteBuffer in;
+            FileChannel channel = FileChannel.open(f.toPath(),
+                                                   StandardOpenOption.READ);
+            try {
+                in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                 channel.size());
+            } finally {
+                channel.close();
+            }
+
+            return new Reader(in).read(key, s);
+        } catch (IOException | RuntimeException e) {
+            // (an unreadable or damaged file is just not used)
+            return false;
+        }
+    }
+
+    /** write the compiled scene of sceneFileName, whose content is in
+     *  scene s (which has been set up)
+     */
+    public static void write(Scene s, String sceneFileName)
+        throws IOException
+    {
+        File f = new File(fileName(sceneFileName));
+        File temp = new File(f.getPath() + ".tmp");
+
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try {
+            new Writer(out, s).write(key(sceneFileName));
+        } finally {
+            out.close();
+        }
+
+        // (readers never see a partly written file)
+        Files.move(temp.toPath(), f.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** the SHA-256 hash of file fileName */
+    static byte[] key(String fileName) throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        InputStream in = new FileInputStream(fileName);
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                digest.update(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    /** hash (e.g. from key()) as a string of hex digits */
+    static String hex(byte[] hash)
+    {
+        StringBuilder b = new StringBuilder(2*hash.length);
+        for (byte x : hash)
+            b.append(String.format("%02x", x & 0xff));
+        return b.toString();
+    }
+
+    //------------------------------------------------------------------------
+    // Writing
+
+    private static class Writer
+    {
+        DataOutputStream out;
+        Scene scene;
+
+        // Meshes and groups (each numbered by its position), in an order
+        // where groups come after the groups they contain instances of
+        List<TriangleMesh> meshes = new ArrayList<TriangleMesh>();
+        List<String>       meshFiles = new ArrayList<String>();
+        List<Group>        groups = new ArrayList<Group>();
+        Map<Object, Integer> index = new IdentityHashMap<Object, Integer>();
+
+        Writer(DataOutputStream out, Scene scene)
+        {
+            this.out = out;
+            this.scene = scene;
+        }
+
+        void write(byte[] key) throws IOException
+        {
+            for (Shape shape : scene.objects)
+                collect(shape);
+
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.write(key);
+
+            // The mesh files (which are not part of the key)
+            out.writeInt(meshFiles.size());
+            for (String name : meshFiles) {
+                File f = new File(name);
+                writeString(name);
+                out.writeLong(f.length());
+                out.writeLong(f.lastModified());
+            }
+
+            out.writeInt(scene.materials.size());
+            for (Material m : scene.materials)
+                writeMaterial(m);
+
+            out.writeInt(scene.lights.size());
+            for (Light l : scene.lights)
+                writeLight(l);
+
+            out.writeBoolean(scene.camera != null);
+            if (scene.camera != null)
+                writeCamera(scene.camera);
+
+            out.writeInt(meshes.size());
+            for (TriangleMesh m : meshes)
+                writeMesh(m);
+
+            out.writeInt(groups.size());
+            for (Group g : groups) {
+                writeString(g.getName());
+                writeShapes(Arrays.asList(g.shapeArray));
+                writeBVH(g.bvh);
+            }
+
+            writeShapes(scene.objects);
+            writeBVH(scene.bvh);
+        }
+
+        /** number the meshes and groups used by shape and its children */
+        void collect(Shape shape)
+        {
+            if (shape instanceof Mesh) {
+                Mesh m = (Mesh)shape;
+                if (!index.containsKey(m.mesh)) {
+                    index.put(m.mesh, meshes.size());
+                    meshes.add(m.mesh);
+                    meshFiles.add(m.fileName);
+                }
+            } else if (shape instanceof Instance) {
+                Group g = ((Instance)shape).group;
+                if (!index.containsKey(g)) {
+                    for (Shape s : g.shapeArray)
+                        collect(s);
+                    index.put(g, groups.size());
+                    groups.add(g);
+                }
+            }
+
+            if (shape.children != null)
+                for (Shape child : shape.children)
+                    collect(child);
+        }
+
+        void writeMaterial(Material m) throws IOException
+        {
+            writeString(m.getName());
+            writeVector(m.ambient);
+            writeVector(m.diffuse);
+            writeVector(m.specular);
+            writeVector(m.transparent);
+            out.writeDouble(m.index);
+            out.writeDouble(m.shininess);
+            writeString(m.textureFileName);
+            out.writeDouble(m.textureScaleU);
+            out.writeDouble(m.textureScaleV);
+            writeVector(m.checkerColor1);
+            writeVector(m.checkerColor2);
+        }
+
+        void writeLight(Light l) throws IOException
+        {
+            writeString(l.getName());
+            writeVector(l.position);
+            writeVector(l.direction);
+            writeVector(l.color);
+            writeVector(l.attenuation);
+        }
+
+        void writeCamera(Camera c) throws IOException
+        {
+            writeString(c.getName());
+            writeVector(c.eye);
+            writeVector(c.look);
+            writeVector(c.up);
+            out.writeDouble(c.fovy);
+            out.writeDouble(c.near);
+        }
+
+        void writeMesh(TriangleMesh m) throws IOException
+        {
+            out.writeInt(m.triangles);
+            writeFloats(m.vertices);
+            writeInts(m.corners);
+            writeFloats(m.normals);
+            writeInts(m.cornerNormals);
+            writeFloats(m.uvs);
+            writeInts(m.cornerUVs);
+            writeBVH(m.bvh);
+        }
+
+        /** write a list of shapes, each followed by its children */
+        void writeShapes(List<Shape> shapes) throws IOException
+        {
+            out.writeInt(shapes.size());
+            for (Shape s : shapes) {
+                String kind = s instanceof Mesh ? "mesh" :
+                    s instanceof Instance ? "instance" :
+                    s.getClass().getName().toLowerCase();
+                int k = Arrays.asList(kinds).indexOf(kind);
+                if (k < 0)
+                    throw new IOException("Cannot compile " + kind);
+
+                out.writeByte(k);
+                writeString(s.getName());
+                writeString(s.getMaterialName());
+                out.writeInt(scene.materials.indexOf(s.getMaterialRef()));
+                writeMatrix(s.getMatrix());
+                writeMatrix(s.getInvMatrix());
+
+                if (s instanceof Mesh) {
+                    writeString(((Mesh)s).fileName);
+                    out.writeInt(index.get(((Mesh)s).mesh));
+                } else if (s instanceof Instance) {
+                    out.writeInt(index.get(((Instance)s).group));
+                }
+
+                writeShapes(s.children == null ? new ArrayList<Shape>()
+                                               : s.children);
+            }
+        }
+
+        void writeBVH(BVH bvh) throws IOException
+        {
+            out.writeBoolean(bvh != null);
+            if (bvh == null)
+                return;
+
+            out.writeInt(bvh.depth);
+            writeDoubles(Arrays.copyOf(bvh.nodeBounds, 6*bvh.nodes));
+            writeInts(Arrays.copyOf(bvh.nodeOffset, bvh.nodes));
+            writeInts(Arrays.copyOf(bvh.nodeCount, bvh.nodes));
+            out.writeInt(bvh.nodes);
+            out.write(bvh.nodeAxis, 0, bvh.nodes);
+            writeInts(bvh.prims);
+        }
+
+        //--------------------------------------------------------------------
+
+        void writeString(String s) throws IOException
+        {
+            if (s == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(b.length);
+                out.write(b);
+            }
+        }
+
+        void writeVector(Tuple3d v) throws IOException
+        {
+            out.writeBoolean(v != null);
+            if (v != null) {
+                out.writeDouble(v.x);
+                out.writeDouble(v.y);
+                out.writeDouble(v.z);
+            }
+        }
+
+        void writeMatrix(Matrix4d m) throws IOException
+        {
+            for (int i = 0; i < 4; i++)
+                for (int j = 0; j < 4; j++)
+                    out.writeDouble(m.getElement(i, j));
+        }
+
+        void writeFloats(float[] a) throws IOException
+        {
+            out.writeInt(a == null ? -1 : a.length);
+            if (a != null)
+                for (float x : a)
+                    out.writeFloat(x);
+        }
+
+        void writeDoubles(double[] a) throws IOException
+        {
+            out.writeInt(a == null ? -1 : a.length);
+            if (a != null)
+                for (double x : a)
+                    out.writeDouble(x);
+        }
+
+        void writeInts(int[] a) throws IOException
+        {
+            out.writeInt(a == null ? -1 : a.length);
+            if (a != null)
+                for (int x : a)
+                    out.writeInt(x);
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // Reading
+
+    private static class Reader
+    {
+        ByteBuffer in;
+
+        // The scene being decoded (copied to the target scene only once
+        // the whole file has been read, so that a damaged file leaves the
+        // target as it was)
+        Scene scene = new Scene();
+
+        TriangleMesh[] meshes;
+        Group[]        groups;
+
+        // Smallest number of bytes taken by a mesh (triangle count, six
+        // array lengths and the BVH flag), a group (name length, shape
+        // count and BVH flag) and a shape (kind, two string lengths,
+        // material, two matrices and the children count)
+        static final int meshSize  = 4 + 6*4 + 1;
+        static final int groupSize = 4 + 4 + 1;
+        static final int shapeSize = 1 + 2*4 + 4 + 2*8*16 + 4;
+
+        Reader(ByteBuffer in)
+        {
+            this.in = in;
+        }
+
+        /** read the scene into target if the file has the right version
+         *  and key (and the mesh files are unchanged) */
+        boolean read(byte[] key, Scene target) throws IOException
+        {
+            if (in.getInt() != magic || in.getInt() != version)
+                return false;
+            byte[] k = new byte[key.length];
+            in.get(k);
+            if (!Arrays.equals(k, key))
+                return false;
+
+            int files = in.getInt();
+            for (int i = 0; i < files; i++) {
+                File f = new File(readString());
+                if (in.getLong() != f.length() ||
+                    in.getLong() != f.lastModified())
+                    return false;
+            }
+
+            scene.materials.clear();
+            int n = in.getInt();
+            for (int i = 0; i < n; i++)
+                scene.materials.addElement(readMaterial());
+
+            n = in.getInt();
+            for (int i = 0; i < n; i++)
+                scene.lights.addElement(readLight());
+
+            if (in.get() != 0)
+                scene.camera = readCamera();
+
+            meshes = new TriangleMesh[readCount(meshSize, false)];
+            for (int i = 0; i < meshes.length; i++)
+                meshes[i] = readMesh();
+
+            groups = new Group[readCount(groupSize, false)];
+            for (int i = 0; i < groups.length; i++) {
+                Group g = new Group(readString());
+                VectorHierarchy<Shape> shapes =
+                    readShapes(null, readCount(shapeSize, false));
+                g.shapes.addAll(shapes);
+                g.shapeArray = shapes.toArray(new Shape[shapes.size()]);
+                g.bvh = readBVH();
+                scene.groups.put(g.getName(), g);
+                groups[i] = g;
+            }
+
+            VectorHierarchy<Shape> objects =
+                readShapes(null, readCount(shapeSize, false));
+            scene.objects.addAll(objects);
+            scene.objectArray =
+                objects.toArray(new Shape[objects.size()]);
+            scene.bvh = readBVH();
+
+            if (in.hasRemaining())
+                return false;
+
+            target.materials.clear();
+            target.materials.addAll(scene.materials);
+            target.lights.addAll(scene.lights);
+            if (scene.camera != null)
+                target.camera = scene.camera;
+            target.groups.putAll(scene.groups);
+            target.objects.addAll(scene.objects);
+            for (Shape s : target.objects)
+                s.parent = target.objects;
+            target.objectArray = scene.objectArray;
+            target.bvh = scene.bvh;
+
+            return true;
+        }
+
+        Material readMaterial() throws IOException
+        {
+            Material m = new Material(readString());
+            m.ambient         = readVector3d();
+            m.diffuse         = readVector3d();
+            m.specular        = readVector3d();
+            m.transparent     = readVector3d();
+            m.index           = in.getDouble();
+            m.shininess       = in.getDouble();
+            m.textureFileName = readString();
+            m.textureScaleU   = in.getDouble();
+            m.textureScaleV   = in.getDouble();
+            m.checkerColor1   = readVector3d();
+            m.checkerColor2   = readVector3d();
+            return m;
+        }
+
+        Light readLight() throws IOException
+        {
+            Light l = new Light();
+            l.name        = readString();
+            Vector3d p    = readVector3d();
+            l.position    = p == null ? null : new Point3d(p);
+            l.direction   = readVector3d();
+            l.color       = readVector3d();
+            l.attenuation = readVector3d();
+            return l;
+        }
+
+        Camera readCamera() throws IOException
+        {
+            Camera c = new Camera();
+            c.name = readString();
+            c.eye.set(readVector3d());
+            c.look.set(readVector3d());
+            c.up.set(readVector3d());
+            c.fovy = in.getDouble();
+            c.near = in.getDouble();
+            return c;
+        }
+
+        TriangleMesh readMesh() throws IOException
+        {
+            int triangles = in.getInt();
+            float[] vertices      = readFloats();
+            int[]   corners       = readInts();
+            float[] normals       = readFloats();
+            int[]   cornerNormals = readInts();
+            float[] uvs           = readFloats();
+            int[]   cornerUVs     = readInts();
+            return new TriangleMesh(vertices, corners, normals, cornerNormals,
+                                    uvs, cornerUVs, triangles, readBVH());
+        }
+
+        /** read a list of n shapes (and their children) */
+        VectorHierarchy<Shape> readShapes(Shape parent, int n)
+            throws IOException
+        {
+            VectorHierarchy<Shape> shapes = new VectorHierarchy<Shape>(parent);
+            shapes.ensureCapacity(n);
+            Matrix4d inverse = new Matrix4d();
+
+            for (int i = 0; i < n; i++) {
+                String kind = kinds[in.get()];
+                String name = readString();
+                String materialName = readString();
+                int material = in.getInt();
+                int start = in.position();
+                in.position(start + 2*8*16);
+
+                Shape s;
+                if (kind.equals("sphere")) {
+                    s = new Sphere();
+                } else if (kind.equals("box")) {
+                    s = new Box();
+                } else if (kind.equals("cone")) {
+                    s = new Cone();
+                } else if (kind.equals("cylinder")) {
+                    s = new Cylinder();
+                } else if (kind.equals("mesh")) {
+                    String file = readString();
+                    s = new Mesh(file, meshes[in.getInt()]);
+                } else {
+                    s = new Instance(groups[in.getInt()]);
+                }
+
+                s.name = name;
+                s.setMaterialName(materialName);
+                s.setMaterialRef(scene.materials.elementAt(material));
+                readMatrix(start, s.M);
+                readMatrix(start + 8*16, inverse);
+                s.inverse.set(inverse);
+
+                int children = readCount(shapeSize, false);
+                if (children > 0) {
+                    s.children = readShapes(s, children);
+                    for (Shape c : s.children)
+                        c.parent = s.children;
+                }
+
+                shapes.addElement(s);
+            }
+
+            return shapes;
+        }
+
+        BVH readBVH() throws IOException
+        {
+            if (in.get() == 0)
+                return null;
+
+            int depth = in.getInt();
+            double[] nodeBounds = readDoubles();
+            int[]    nodeOffset = readInts();
+            int[]    nodeCount  = readInts();
+            byte[]   nodeAxis   = new byte[readCount(1, false)];
+            in.get(nodeAxis);
+            int[]    prims      = readInts();
+            return new BVH(nodeBounds, nodeOffset, nodeCount, nodeAxis,
+                           prims, depth);
+        }
+
+        //--------------------------------------------------------------------
+
+        /** read the number of elements of an array or list, each taking
+         *  at least elementSize bytes of the file, and check that they
+         *  fit in the rest of it (so that a damaged count fails here
+         *  rather than allocating a huge array); -1 (null) is returned
+         *  as is if nullable
+         */
+        int readCount(int elementSize, boolean nullable) throws IOException
+        {
+            int n = in.getInt();
+            if (nullable && n == -1)
+                return n;
+            if (n < 0 || (long) n * elementSize > in.remaining())
+                throw new IOException("Bad count " + n + " at " +
+                                      (in.position() - 4));
+            return n;
+        }
+
+        String readString() throws IOException
+        {
+            int n = readCount(1, true);
+            if (n < 0)
+                return null;
+            byte[] b = new byte[n];
+            in.get(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        Vector3d readVector3d()
+        {
+            if (in.get() == 0)
+                return null;
+            return new Vector3d(in.getDouble(), in.getDouble(),
+                                in.getDouble());
+        }
+
+        /** read the matrix at position p (by rows) into m */
+        void readMatrix(int p, Matrix4d m)
+        {
+            m.m00 = in.getDouble(p);      m.m01 = in.getDouble(p + 8);
+            m.m02 = in.getDouble(p + 16); m.m03 = in.getDouble(p + 24);
+            m.m10 = in.getDouble(p + 32); m.m11 = in.getDouble(p + 40);
+            m.m12 = in.getDouble(p + 48); m.m13 = in.getDouble(p + 56);
+            m.m20 = in.getDouble(p + 64); m.m21 = in.getDouble(p + 72);
+            m.m22 = in.getDouble(p + 80); m.m23 = in.getDouble(p + 88);
+            m.m30 = in.getDouble(p + 96); m.m31 = in.getDouble(p + 104);
+            m.m32 = in.getDouble(p + 112); m.m33 = in.getDouble(p + 120);
+        }
+
+        float[] readFloats() throws IOException
+        {
+            int n = readCount(4, true);
+            if (n < 0)
+                return null;
+            float[] a = new float[n];
+            in.asFloatBuffer().get(a);
+            in.position(in.position() + 4*n);
+            return a;
+        }
+
+        double[] readDoubles() throws IOException
+        {
+            int n = readCount(8, true);
+            if (n < 0)
+                return null;
+            double[] a = new double[n];
+            in.asDoubleBuffer().get(a);
+            in.position(in.position() + 8*n);
+            return a;
+        }
+
+        int[] readInts() throws IOException
+        {
+            int n = readCount(4, true);
+            if (n < 0)
+                return null;
+            int[] a = new int[n];
+            in.asIntBuffer().get(a);
+            in.position(in.position() + 4*n);
+            return a;
+        }
+    }
+}
@@ -7,84 +7,94 @@
 import java.io.*;
 import javax.vecmath.*;
 import java.text.*;
-import java.lang.reflect.*;
 import java.util.*;
 
 /** implements the reader for a scene file command
  */
 class SceneCommand
 {
-    String[] names = { "push", "pop", "identity",
-		       "translate", "rotate", "scale",
-		       "up", "down" };
+    /** executes one command, reading its arguments from the tokenizer */
+    interface Command
+    {
+	void run(StreamTokenizer tokenizer, Scene s)
+	    throws ParseException, IOException;
+    }
+
+    // the commands, by name
+    private static final Map<String, Command> commands =
+	new HashMap<String, Command>();
+
+    static {
+	commands.put("push",      SceneCommand::push);
+	commands.put("pop",       SceneCommand::pop);
+	commands.put("identity",  SceneCommand::identity);
+	commands.put("translate", SceneCommand::translate);
+	commands.put("rotate",    SceneCommand::rotate);
+	commands.put("scale",     SceneCommand::scale);
+	commands.put("up",        SceneCommand::up);
+	commands.put("down",      SceneCommand::down);
+	commands.put("define",    SceneCommand::define);
+	commands.put("end",       SceneCommand::end);
+	commands.put("instance",  SceneCommand::instance);
+    }
 
-    /** constructor. All kinds of operations will be treated as regular
-        parameters, setting some flags about the data.
+    /** reads the command named by the current token (with its arguments
+        in braces) and applies it to scene s
     */
-    public SceneCommand(StreamTokenizer tokenizer, Scene s)
-           throws ParseException,  IOException, InvocationTargetException,
-                  ClassNotFoundException, IllegalAccessException,
-                  NoSuchMethodException
+    public static void read(StreamTokenizer tokenizer, Scene s)
+           throws ParseException,  IOException
     {
 	if (tokenizer.ttype!=StreamTokenizer.TT_WORD)
 	    throw new ParseException("Name expected instead of " + tokenizer,
 				     tokenizer.lineno());
-	Class[] paramList = {tokenizer.getClass(), s.getClass()};
-	Object[] params = {tokenizer, s };
-	
-	int i;
-	for (i=0; i<names.length; i++) {
-	    if (names[i].compareTo(tokenizer.sval)==0) {
-		// check for '{'
-		tokenizer.nextToken();
-		if ( tokenizer.ttype!='{' )
-		    throw new ParseException("No \"{\" found",
-					     tokenizer.lineno());
-		
-		// call the appropriate method
-		Method m = getClass().getMethod(names[i],paramList);
-		m.invoke(this,params);
-		
-		// check for '}'
-		tokenizer.nextToken();
-		if ( tokenizer.ttype!='}' )
-		    throw new ParseException("No \"}\" found",
-					     tokenizer.lineno());
-		break;
-	    }
-	}
 
-	if (i>=names.length)
+	Command c = commands.get(tokenizer.sval);
+	if (c == null)
 	    throw new ParseException("Unknows token "+tokenizer,
 				     tokenizer.lineno());
+
+	// check for '{'
+	tokenizer.nextToken();
+	if ( tokenizer.ttype!='{' )
+	    throw new ParseException("No \"{\" found",
+				     tokenizer.lineno());
+
+	// call the appropriate method
+	c.run(tokenizer, s);
+
+	// check for '}'
+	tokenizer.nextToken();
+	if ( tokenizer.ttype!='}' )
+	    throw new ParseException("No \"}\" found",
+				     tokenizer.lineno());
     }
 
     //-----------------------------------------------------------------------
     // Transformations
 
     /** emulates glPushMatrix */
-    public void push(StreamTokenizer tokenizer, Scene s)
+    public static void push(StreamTokenizer tokenizer, Scene s)
     {
 	// nothing to read from the tokenizer
 	s.getMStack().push(null);
     }
     
     /** emulates glPopMatrix */
-    public void pop(StreamTokenizer tokenizer, Scene s)
+    public static void pop(StreamTokenizer tokenizer, Scene s)
     {
 	// nothing to read from tokenizer
 	s.getMStack().pop();
     }
 
     /** emulates glLoadIdentity */
-    public void identity(StreamTokenizer tokenizer, Scene s)
+    public static void identity(StreamTokenizer tokenizer, Scene s)
     {
 	// nothing to read from tokenizer
 	s.getMStack().peek().setIdentity();
     }
     
     /** emulates glTranslate */
-    public void translate( StreamTokenizer tokenizer, Scene s)
+    public static void translate( StreamTokenizer tokenizer, Scene s)
 	throws ParseException, IOException
     {
         // read the vector
@@ -98,7 +108,7 @@ class SceneCommand
     }
 
     /** emulates glRotate */
-    public void rotate( StreamTokenizer tokenizer, Scene s )
+    public static void rotate( StreamTokenizer tokenizer, Scene s )
 	throws ParseException, IOException
     {
         // read the angle, then axis
@@ -112,7 +122,7 @@ class SceneCommand
     }
 
     /** emulates glScale */
-    public void scale( StreamTokenizer tokenizer, Scene s)
+    public static void scale( StreamTokenizer tokenizer, Scene s)
 	throws ParseException, IOException
     {
         // read the vector
@@ -131,12 +141,13 @@ class SceneCommand
     // Hierarchy
 
     /** Move up in hierarchy */
-    public void up(StreamTokenizer tokenizer, Scene s)
+    public static void up(StreamTokenizer tokenizer, Scene s)
         throws ParseException
     {
 	if (!s.hierarchyOn)
 	  return;
 
+	checkNotDefining("up", tokenizer, s);
 	if (s.currentLevel == s.objects) {
 	    throw new ParseException("Hierarchy underflow",
 				     tokenizer.lineno());
@@ -147,19 +158,92 @@ class SceneCommand
     }
 
     /** Move down in hierarchy */
-    public void down(StreamTokenizer tokenizer, Scene s)
+    public static void down(StreamTokenizer tokenizer, Scene s)
         throws ParseException
     {
 	if (!s.hierarchyOn)
 	  return;
 
+	checkNotDefining("down", tokenizer, s);
 	if (s.currentLevel.isEmpty()) {
 	    throw new ParseException("Cannot use 'down' without creating" +
 				     " a child object first",
 				     tokenizer.lineno());
 	} else {
 	    // Move down in hierarchy (into last child)
-	    s.currentLevel = ((Shape)s.currentLevel.lastElement()).children;
+	    s.currentLevel = ((Shape)s.currentLevel.lastElement()).getChildren();
 	}
     }
+
+    /** the shapes of a group have no children (they are added to the
+        group, not to the hierarchy), so down {} and up {} are errors in
+        a definition */
+    private static void checkNotDefining(String command,
+					 StreamTokenizer tokenizer, Scene s)
+	throws ParseException
+    {
+	if (s.defining != null)
+	    throw new ParseException("Cannot use '" + command +
+				     "' inside the definition of " +
+				     s.defining.getName(), tokenizer.lineno());
+    }
+
+    // -----------------------------------------------------------------------
+    // Instancing
+
+    /** Start the definition of a group: the shapes up to end {} are
+        added to it (and not to the scene), with transformations relative
+        to the group */
+    public static void define(StreamTokenizer tokenizer, Scene s)
+	throws ParseException, IOException
+    {
+	String name = Parser.readString(tokenizer);
+
+	if (s.defining != null)
+	    throw new ParseException("Cannot define " + name +
+				     " inside the definition of " +
+				     s.defining.getName(), tokenizer.lineno());
+	if (s.groups.containsKey(name))
+	    throw new ParseException(name + " is already defined",
+				     tokenizer.lineno());
+
+	s.defining = new Group(name);
+	s.definingStack = s.getMStack().size();
+
+	// start from the identity
+	s.getMStack().push(null);
+	s.getMStack().peek().setIdentity();
+    }
+
+    /** End the definition of a group */
+    public static void end(StreamTokenizer tokenizer, Scene s)
+	throws ParseException
+    {
+	if (s.defining == null)
+	    throw new ParseException("end without define",
+				     tokenizer.lineno());
+
+	// restore the matrix stack (including any pushes left in the
+	// definition)
+	while (s.getMStack().size() > s.definingStack)
+	    s.getMStack().pop();
+
+	s.defining.setup();
+	s.groups.put(s.defining.getName(), s.defining);
+	s.defining = null;
+    }
+
+    /** Place an instance of a group with the current transformation */
+    public static void instance(StreamTokenizer tokenizer, Scene s)
+	throws ParseException, IOException
+    {
+	String name = Parser.readString(tokenizer);
+
+	Group g = s.groups.get(name);
+	if (g == null)
+	    throw new ParseException("Undefined group " + name,
+				     tokenizer.lineno());
+
+	s.addObject(new Instance(g));
+    }
 }
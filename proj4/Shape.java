@@ -7,12 +7,17 @@ import java.io.*;
 import java.util.*;
 import javax.vecmath.*;
 import java.text.ParseException;
-import java.lang.reflect.*;
 
 abstract class Shape extends RaytracerObject
 {
+    static final ParamSpec<?, ?>[] paramSpecs =
+	specs(RaytracerObject.paramSpecs,
+	      ParamSpec.of("material", Parser::readString,
+			   Shape::setMaterialName));
+
     // stores the name of the material associatef with this object
-    String materialName = new String();
+    // (null for the default material)
+    String materialName = null;
 
     // a reference to the associated material (this may be set after the
     // object is created (allowing to specify materials after the object
@@ -21,33 +26,42 @@ abstract class Shape extends RaytracerObject
 
     // Object transformation M
     Matrix4d M;
-    // Inverse of M
-    Matrix4d MInverse;
-    // Transpose Inverse of M (just the 3x3 part is transposed)
-    Matrix4d MTInverse;
+    // Inverse of M, for transforming rays (its transpose transforms
+    // normals); getInvMatrix() gives it as a Matrix4d
+    Affine   inverse = new Affine();
 
-    // Hierarchical object management
+    // Hierarchical object management (children is created by
+    // getChildren() when needed)
     VectorHierarchy<Shape> parent = null;
-    VectorHierarchy<Shape> children = new VectorHierarchy<Shape>(this);
+    VectorHierarchy<Shape> children = null;
+
+    // Set by setupTree(): the children as an array (null if there are
+    // none), the transformation from the coordinates of the parent shape
+    // (the world for top level shapes) to those of this shape, and the
+    // bounds of this shape and all its descendants, then (only if it has
+    // children) of this shape alone, in the coordinates of the parent (6
+    // or 12 values)
+    Shape[]  childArray = null;
+    Affine   toObject   = null;
+    double[] treeBounds = null;
 
     //------------------------------------------------------------------------
 
     /** enforcing the presence of this constructor */
     public Shape(StreamTokenizer tokenizer)
-           throws ParseException, IOException, NoSuchMethodException,
-                  ClassNotFoundException,IllegalAccessException,
-                  InvocationTargetException
     {
 	super(tokenizer);
 
 	M = new Matrix4d();
-	MInverse = new Matrix4d();
-	MTInverse = new Matrix4d();
-
-	addSpec("material", "setMaterialName",
-		materialName.getClass().getName());
     }
 
+    ParamSpec<?, ?>[] getParamSpecs() { return paramSpecs; }
+
+    /** index of the class of this shape in the render statistics (each
+     *  subclass keeps its own in a static field)
+     */
+    abstract int getStatsKind();
+
     //------------------------------------------------------------------------
 
     /** computes the intersection of the ray with the scene and
@@ -62,14 +76,125 @@ abstract class Shape extends RaytracerObject
     abstract boolean hit(Ray r, ISect intersection,
 			 boolean computeAllFields, double minT);
 
+    /** hit() where only intersections before maxT are of interest:
+     *  shapes made of parts (meshes, instances) skip the parts beyond
+     *  maxT, the others are tested as a whole (so the result may still
+     *  be beyond maxT)
+     */
+    boolean hit(Ray r, ISect intersection, boolean computeAllFields,
+		double minT, double maxT)
+    {
+	return hit(r, intersection, computeAllFields, minT);
+    }
+
+    /** shadow query: multiply tint by the Kt of the material hit if ray r
+     *  hits this object between minT and maxT, and return whether it did
+     *  (only the t value and the objects hit are kept in intersection)
+     *
+     * Instances tint by every shape of their group that is hit, and keep
+     * the last of them in intersection
+     */
+    boolean tint(Ray r, ISect intersection, double minT, double maxT,
+		 Vector3d tint)
+    {
+	if (!hit(r, intersection, false, minT, maxT) ||
+	    intersection.getT() >= maxT)
+	    return false;
+
+	Tools.termwiseMul3d(tint, intersection.getHitObject().getMaterialRef()
+			    .getKt());
+	return true;
+    }
+
+    /** bounds of the object in its own coordinate system (min x,y,z then
+     *  max x,y,z) -- the default is the cube from -1 to 1
+     */
+    void getObjectBounds(double[] b)
+    {
+	b[0] = b[1] = b[2] = -1.0;
+	b[3] = b[4] = b[5] =  1.0;
+    }
+
+    /** bounds of the object in world coordinates (after applying M) */
+    void getWorldBounds(double[] b)
+    {
+	getBounds(M, b);
+    }
+
+    /** bounds of the object after applying m (which maps its own
+     *  coordinates to some other system)
+     */
+    void getBounds(Matrix4d m, double[] b)
+    {
+	double[] ob = new double[6];
+	getObjectBounds(ob);
+	BVH.transformBounds(m, ob, b);
+    }
+
+    /** set up the traversal of this shape and its descendants, given the
+     *  parent shape (null at the top level): the children are visited
+     *  with the ray in the coordinates of this shape, and skipped when
+     *  it misses their tree bounds
+     *
+     * (M of every shape maps to world coordinates, so the transformation
+     * from the parent is M^-1 of this shape times M of the parent)
+     */
+    void setupTree(Shape parentShape)
+    {
+	Matrix4d fromObject = M;
+	if (parentShape == null) {
+	    toObject = inverse;
+	} else {
+	    Matrix4d m = new Matrix4d();
+	    m.mul(getInvMatrix(), parentShape.M);
+	    toObject = new Affine(m);
+	    fromObject = new Matrix4d();
+	    fromObject.mul(parentShape.getInvMatrix(), M);
+	}
+
+	double[] b = new double[6];
+	getBounds(fromObject, b);
+
+	childArray = null;
+	if (children == null || children.isEmpty()) {
+	    treeBounds = b;
+	    return;
+	}
+
+	treeBounds = new double[12];
+	System.arraycopy(b, 0, treeBounds, 0, 6);
+	System.arraycopy(b, 0, treeBounds, 6, 6);
+	childArray = children.toArray(new Shape[children.size()]);
+	for (Shape c : childArray) {
+	    c.setupTree(this);
+	    BVH.transformBounds(fromObject, c.treeBounds, b);
+	    BVH.grow(treeBounds, 0, b, 0);
+	}
+    }
+
     // -----------------------------------------------------------------------
 
     public String   getMaterialName() { return materialName; }
     public Material getMaterialRef () { return materialRef; }
 
     public Matrix4d getMatrix()       { return M; }
-    public Matrix4d getInvMatrix()    { return MInverse; }
-    public Matrix4d getInvTMatrix()   { return MTInverse; }
+    public Affine   getInverse()      { return inverse; }
+
+    /** the inverse of M as a new matrix */
+    public Matrix4d getInvMatrix()
+    {
+	Matrix4d m = new Matrix4d();
+	inverse.get(m);
+	return m;
+    }
+
+    /** the child objects (an empty list if there are none) */
+    public VectorHierarchy<Shape> getChildren()
+    {
+	if (children == null)
+	    children = new VectorHierarchy<Shape>(this);
+	return children;
+    }
 
     public void setMaterialName(String newName) { materialName = newName; }
     public void setMaterialRef(Material newRef) { materialRef = newRef; }
@@ -80,16 +205,9 @@ abstract class Shape extends RaytracerObject
 	M.set(mat);
 
 	// Compute inverse
-	MInverse.invert(M);
-
-	// Compute inverse transpose
-	Matrix3d invRS = new Matrix3d();
-	MInverse.getRotationScale(invRS);
-	invRS.transpose();
-
-	Vector3d translation = new Vector3d();
-	MInverse.get(translation);
-	MTInverse.set(invRS, translation, 1.0);
+	Matrix4d m = new Matrix4d();
+	m.invert(M);
+	inverse.set(m);
     }
 
     public void print(PrintStream out)
@@ -98,7 +216,6 @@ abstract class Shape extends RaytracerObject
 	
 	out.println("Material : " + materialName);
 	out.println("M        : " + M);
-	out.println("Minv     : " + MInverse);
-	out.println("MTinv    : " + MTInverse);
+	out.println("Minv     : " + getInvMatrix());
     }
 }
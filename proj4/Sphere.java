@@ -6,23 +6,29 @@
 import java.io.*;
 import javax.vecmath.*;
 import java.text.ParseException;
-import java.lang.reflect.*;
 
 class Sphere extends Shape
 {
     public static String keyword = "sphere";
 
+    static final int statsKind = RenderStats.shapeKind(Sphere.class);
+
     /** constructor from tokenizer */
     public Sphere(StreamTokenizer tokenizer)
-	throws ParseException, IOException, NoSuchMethodException,
-	       ClassNotFoundException,IllegalAccessException,
-	       InvocationTargetException
-	       
+	throws ParseException, IOException
     {
 	super(tokenizer);
 	read(tokenizer);
     }
 
+    /** constructor for the shapes of compiled scenes (see SceneCache) */
+    Sphere()
+    {
+	super(null);
+    }
+
+    int getStatsKind() { return statsKind; }
+
     // -----------------------------------------------------------------------
 
     /** computes the ray intersection point of a sphere at the origin with
@@ -30,40 +36,38 @@ class Sphere extends Shape
      */
     boolean hit(Ray r, ISect intersection, boolean all, double minT)
     {
-    	
-	double dirLength = r.getDirection().length();
-	r.getDirection().normalize();
-	minT *= dirLength;
-	Vector3d v = new Vector3d(r.getPoint());
+	Point3d  v  = r.getPoint();
+	Vector3d rd = r.getDirection();
 
-	double b   = -v.dot(r.getDirection());
-	double d   = b*b - v.lengthSquared()+1;
+	// Distances along the ray are found with its direction normalized
+	// (1/|rd| times rd), then scaled back to its own t values
+	double s   = r.getInvLength();
+	double b   = -(v.x*rd.x + v.y*rd.y + v.z*rd.z) * s;
+	double d   = b*b - (v.x*v.x + v.y*v.y + v.z*v.z)+1;
 
 	if (d<0.0) return false;
 
 	d = Math.sqrt(d);
-	double secondT = b + d;
+	double secondT = (b + d) * s;
 
 	if (secondT <= minT) return false;
 
-	double firstT  = b - d;
+	double firstT  = (b - d) * s;
 
 	intersection.t = firstT > minT ? firstT : secondT;
 	intersection.setHitObject(this);
 	if (all) {
 	    Point3d hitPoint = intersection.getHitPoint();
 
-	    hitPoint.set(r.getDirection());
+	    hitPoint.set(rd);
 	    hitPoint.scale(intersection.t);
-	    hitPoint.add(r.getPoint());
+	    hitPoint.add(v);
 	    
 	    intersection.getNormal().set(hitPoint);
 	    intersection.getNormal().normalize();
 	    
 	    uvSphere(intersection);
 	}
-	
-	intersection.t /= dirLength;
 
 	return true;
     }
@@ -104,8 +108,12 @@ class Sphere extends Shape
 	intersection.getDpDu().set(-ipoint.y, ipoint.x, 0);
 	intersection.getDpDu().normalize();
 	
-	intersection.getDpDv().cross(new Vector3d(ipoint),
-				     intersection.getDpDu());
+	Vector3d dPdU = intersection.getDpDu();
+	Tools.cross(intersection.getDpDv(),
+		    ipoint.x, ipoint.y, ipoint.z, dPdU.x, dPdU.y, dPdU.z);
 	intersection.getDpDv().normalize();
+
+	intersection.dPdULength = 2*Math.PI * Math.sin(phi);
+	intersection.dPdVLength = Math.PI;
     }
 }
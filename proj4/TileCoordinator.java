@@ -0,0 +1,359 @@
+/* class TileCoordinator
+ * Renders images on worker processes (see TileWorker): the image is
+ * split into tiles, which are handed over TCP to the workers connected
+ * to the coordinator, and the rendered tiles are put together into the
+ * image
+ *
+ * Each worker reads the scene once, and then renders tiles (of any
+ * number of images) as they come.  A worker holds up to 'pipeline'
+ * tiles at a time, so it does not wait for the next tile after each
+ * one; if a worker dies, or does not send a tile back within
+ * 'tileTimeout', its tiles are handed to the others.  Workers may
+ * connect at any time, also during a render, and may be started by the
+ * coordinator itself (on this machine)
+ *
+ * The coordinator only accepts workers from this machine, unless made
+ * with 'remote' set: then workers connect from anywhere, with no
+ * authentication (any program that reaches the port may read the scene
+ * file names and options, and send back pixels), so this is only meant
+ * for trusted networks
+ *
+ * Since each tile is rendered just as Scene.render() renders it, and
+ * its pixels are sent back exactly, the image is the same as one
+ * rendered in a single process
+ */
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+class TileCoordinator
+{
+    // Messages to the workers
+    static final int END  = 0;
+    static final int JOB  = 1;
+    static final int TILE = 2;
+
+    // Tiles that each worker holds at a time
+    int pipeline = 2;
+
+    // Longest wait (in milliseconds, 0 for no limit) for a worker to send
+    // back the oldest tile it holds (which includes reading the scene,
+    // for its first tile): a worker that takes longer is dropped
+    int tileTimeout = 60000;
+
+    /** one image (a frame) to render: what the workers are sent before
+     *  its tiles, its tiles, and the image
+     */
+    static class Job
+    {
+        String  sceneFile;
+        boolean useCache;
+        String  animationFile;
+        int     frame;
+        Scene   options;
+        RGBImage image;
+        PPMStreamWriter stream;
+
+        // Tiles still to hand out (as {i0, j0, i1, j1}), and the number
+        // of tiles not yet rendered
+        Deque<int[]> tiles = new ArrayDeque<int[]>();
+        int remaining;
+    }
+
+    ServerSocket socket;
+    String sceneFile;
+    String animationFile;
+    boolean useCache;
+
+    // Worker processes started by the coordinator
+    List<Process> processes = new ArrayList<Process>();
+
+    // Connected workers, and the current job (all guarded by 'this')
+    List<Socket> workers = new ArrayList<Socket>();
+    Job current = null;
+    boolean closed = false;
+
+    //------------------------------------------------------------------------
+
+    /** a coordinator for renders of scene file sceneFile (with animation
+     *  file animationFile, if not null) that accepts workers on port
+     *  (any free port if 0), from this machine only unless remote
+     */
+    public TileCoordinator(String sceneFile, String animationFile,
+                           boolean useCache, int port, boolean remote)
+        throws IOException
+    {
+        // (the workers may run in another directory)
+        this.sceneFile = new File(sceneFile).getAbsolutePath();
+        this.animationFile = animationFile == null ? "" :
+                             new File(animationFile).getAbsolutePath();
+        this.useCache = useCache;
+
+        socket = new ServerSocket(port, 50, remote ? null :
+                                  InetAddress.getLoopbackAddress());
+        Thread accept = new Thread(this::acceptWorkers, "TileCoordinator");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    public int getPort() { return socket.getLocalPort(); }
+
+    /** start n worker processes on this machine (with the class path
+     *  and in the directory of this process)
+     */
+    public void startWorkers(int n) throws IOException
+    {
+        String java = System.getProperty("java.home") + File.separator +
+                      "bin" + File.separator + "java";
+        for (int k = 0; k < n; k++) {
+            ProcessBuilder b = new ProcessBuilder(
+                java, "-cp", System.getProperty("java.class.path"),
+                "TileWorker",
+                InetAddress.getLoopbackAddress().getHostAddress(),
+                Integer.toString(getPort()));
+            b.inheritIO();
+            processes.add(b.start());
+        }
+    }
+
+    /** tell the workers to exit, and stop accepting them */
+    public void close()
+    {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+        for (Process p : processes) {
+            try {
+                p.waitFor();
+            } catch (InterruptedException e) {
+                p.destroy();
+            }
+        }
+    }
+
+    //------------------------------------------------------------------------
+
+    /** render frame 'frame' (of the animation, if any) at width X height,
+     *  with the anti-aliasing, texture, ray weight, light and tile options of scene
+     *  'options', on the workers; tiles are also written to
+     *  options.stream, if not null
+     */
+    public RGBImage render(Scene options, int frame, int width, int height,
+                           boolean verbose)
+    {
+        Job job = new Job();
+        job.sceneFile     = sceneFile;
+        job.useCache      = useCache;
+        job.animationFile = animationFile;
+        job.frame         = frame;
+        job.options       = options;
+        job.image         = new RGBImage(width, height);
+        job.stream        = options.stream;
+
+        int size = options.tileSize;
+        for (int y0 = 0; y0 < height; y0 += size)
+            for (int x0 = 0; x0 < width; x0 += size)
+                job.tiles.add(new int[] { x0, y0,
+                                          Math.min(x0 + size, width),
+                                          Math.min(y0 + size, height) });
+        int total = job.tiles.size();
+        job.remaining = total;
+
+        synchronized (this) {
+            current = job;
+            notifyAll();
+
+            boolean waiting = false;
+            while (job.remaining > 0) {
+                if (workers.isEmpty()) {
+                    if (!processes.isEmpty() && !anyAlive())
+                        throw new RuntimeException("All workers died");
+                    if (verbose && !waiting && processes.isEmpty())
+                        System.out.println("Waiting for workers on port " +
+                                           getPort());
+                    waiting = true;
+                } else if (verbose) {
+                    System.out.print("Rendering " +
+                                     (int)(100.0*(total - job.remaining)/total) +
+                                     "% on " + workers.size() +
+                                     " workers   \r");
+                }
+
+                try {
+                    wait(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Rendering interrupted");
+                }
+            }
+            current = null;
+        }
+
+        if (verbose) {
+            System.out.println();
+            System.out.println("Done!");
+        }
+        return job.image;
+    }
+
+    private boolean anyAlive()
+    {
+        for (Process p : processes)
+            if (p.isAlive())
+                return true;
+        return false;
+    }
+
+    //------------------------------------------------------------------------
+
+    /** accept workers (each is served on a thread of its own) */
+    private void acceptWorkers()
+    {
+        for (;;) {
+            final Socket worker;
+            try {
+                worker = socket.accept();
+                worker.setTcpNoDelay(true);
+            } catch (IOException e) {
+                // (closed)
+                return;
+            }
+
+            synchronized (this) {
+                workers.add(worker);
+                notifyAll();
+            }
+            Thread t = new Thread(() -> serve(worker), "TileWorker " +
+                                  worker.getRemoteSocketAddress());
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /** hand the tiles of each job to worker until closed (or the worker
+     *  dies or times out, when the tiles it held are handed to the
+     *  others)
+     */
+    private void serve(Socket worker)
+    {
+        // Tiles sent to the worker and not yet received (in order)
+        Deque<int[]> held = new ArrayDeque<int[]>();
+        Job job = null;
+
+        try {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(worker.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(worker.getOutputStream()));
+            float[] pixels = new float[0];
+            List<int[]> fresh = new ArrayList<int[]>();
+
+            // (the worker is only read from while it holds tiles, so a
+            // read that times out is a tile that is late)
+            worker.setSoTimeout(tileTimeout);
+            Job sent = null;
+
+            for (;;) {
+                // Take tiles (of the current job) up to the pipeline
+                // depth, or wait for a job with tiles to hand out
+                synchronized (this) {
+                    while (!closed && (current == null ||
+                                       (held.isEmpty() &&
+                                        current.tiles.isEmpty())))
+                        wait();
+                    if (closed)
+                        break;
+
+                    job = current;
+                    fresh.clear();
+                    while (held.size() < pipeline && !job.tiles.isEmpty()) {
+                        int[] tile = job.tiles.poll();
+                        held.add(tile);
+                        fresh.add(tile);
+                    }
+                }
+
+                if (sent != job) {
+                    sendJob(out, job);
+                    sent = job;
+                }
+                for (int[] tile : fresh) {
+                    out.writeInt(TILE);
+                    for (int v : tile)
+                        out.writeInt(v);
+                }
+                out.flush();
+
+                // Receive the oldest tile
+                int[] tile = held.peek();
+                int w = tile[2] - tile[0], h = tile[3] - tile[1];
+                int n = 3 * w * h;
+                if (pixels.length < n)
+                    pixels = new float[n];
+                for (int k = 0; k < n; k++)
+                    pixels[k] = in.readFloat();
+                held.poll();
+
+                job.image.setTile(tile[0], tile[1], w, h, pixels);
+                if (job.stream != null)
+                    job.stream.writeTile(job.image, tile[0], tile[1],
+                                         tile[2], tile[3]);
+
+                synchronized (this) {
+                    job.remaining--;
+                    if (job.remaining == 0)
+                        notifyAll();
+                }
+            }
+
+            out.writeInt(END);
+            out.flush();
+        } catch (SocketTimeoutException e) {
+            System.err.println("Worker " + worker.getRemoteSocketAddress() +
+                               " sent no tile for " + tileTimeout / 1000 +
+                               " s: its tiles are handed to the others");
+        } catch (IOException e) {
+            // (the worker died)
+        } catch (InterruptedException e) {
+        } finally {
+            synchronized (this) {
+                workers.remove(worker);
+                if (job != null)
+                    for (int[] tile : held)
+                        job.tiles.addFirst(tile);
+                notifyAll();
+            }
+            try {
+                worker.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /** send the job (the scene, frame, image size and options) to a worker */
+    private static void sendJob(DataOutputStream out, Job job)
+        throws IOException
+    {
+        Scene s = job.options;
+        out.writeInt(JOB);
+        out.writeUTF(job.sceneFile);
+        out.writeBoolean(job.useCache);
+        out.writeUTF(job.animationFile);
+        out.writeInt(job.frame);
+        out.writeInt(job.image.getWidth());
+        out.writeInt(job.image.getHeight());
+        out.writeBoolean(s.adaptive);
+        out.writeDouble(s.aaThreshold);
+        out.writeInt(s.aaSamples);
+        out.writeBoolean(s.mipmapOn);
+        out.writeDouble(s.minWeight);
+        out.writeBoolean(s.roulette);
+        out.writeInt(s.lightSamples);
+        out.writeLong(s.randomSeed);
+    }
+}
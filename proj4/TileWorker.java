@@ -0,0 +1,134 @@
+/* class TileWorker
+ * A worker process of a distributed render (see TileCoordinator): it
+ * connects to the coordinator, reads the scene once, and renders the
+ * tiles it is handed until the coordinator closes the connection
+ *
+ *   java TileWorker <host> <port>
+ *
+ * Relative file names (of the scene, and of the textures and meshes in
+ * it) are read from the directory the worker runs in
+ */
+import java.io.*;
+import java.net.*;
+import java.text.ParseException;
+
+class TileWorker
+{
+    // Scene of the current job and the file it was read from, and its
+    // animation
+    Scene     scene = null;
+    String    sceneFile = null;
+    Animation animation = null;
+    String    animationFile = null;
+
+    // Pixels of the current tile
+    float[] pixels = new float[0];
+
+    public static void main(String arguments[])
+    {
+        if (arguments.length != 2) {
+            System.out.println("Usage: java TileWorker <host> <port>");
+            System.exit(0);
+        }
+        Trace.verbose = false;
+
+        try {
+            Socket socket = new Socket(arguments[0],
+                                       Integer.parseInt(arguments[1]));
+            try {
+                new TileWorker().serve(
+                    new DataInputStream(new BufferedInputStream(
+                        socket.getInputStream())),
+                    new DataOutputStream(new BufferedOutputStream(
+                        socket.getOutputStream())));
+            } finally {
+                socket.close();
+            }
+        } catch (EOFException e) {
+            // (the coordinator is gone)
+        } catch (ParseException e) {
+            System.err.println(e.getMessage()+" in line "+e.getErrorOffset());
+        } catch (Throwable e) {
+            System.err.println("TileWorker: " + e.getMessage());
+        }
+        System.exit(0);
+    }
+
+    /** render the jobs and tiles read from in, writing the tiles to out */
+    void serve(DataInputStream in, DataOutputStream out)
+        throws IOException, ParseException
+    {
+        for (;;) {
+            int message = in.readInt();
+            if (message == TileCoordinator.END)
+                return;
+
+            if (message == TileCoordinator.JOB) {
+                startJob(in);
+            } else if (message == TileCoordinator.TILE) {
+                int i0 = in.readInt(), j0 = in.readInt();
+                int i1 = in.readInt(), j1 = in.readInt();
+
+                scene.renderTile(i0, j0, i1, j1);
+
+                int n = 3 * (i1 - i0) * (j1 - j0);
+                if (pixels.length < n)
+                    pixels = new float[n];
+                scene.getImage().getTile(i0, j0, i1 - i0, j1 - j0, pixels);
+                for (int k = 0; k < n; k++)
+                    out.writeFloat(pixels[k]);
+                out.flush();
+            } else {
+                throw new IOException("Unknown message " + message);
+            }
+        }
+    }
+
+    /** read a job (see TileCoordinator.sendJob()), and set up its scene
+     *  (which is only read again if the scene file changed)
+     */
+    private void startJob(DataInputStream in)
+        throws IOException, ParseException
+    {
+        String file     = in.readUTF();
+        boolean useCache = in.readBoolean();
+        String animFile = in.readUTF();
+        int frame       = in.readInt();
+        int width       = in.readInt();
+        int height      = in.readInt();
+
+        if (!file.equals(sceneFile)) {
+            Scene s = new Scene();
+            boolean compiled = Trace.readScene(s, file, useCache);
+            s.setup();
+            if (useCache && !compiled)
+              Trace.writeScene(s, file);
+
+            scene = s;
+            sceneFile = file;
+            animation = null;
+            animationFile = null;
+        }
+
+        scene.adaptive    = in.readBoolean();
+        scene.aaThreshold = in.readDouble();
+        scene.aaSamples   = in.readInt();
+        scene.mipmapOn    = in.readBoolean();
+        scene.minWeight   = in.readDouble();
+        scene.roulette    = in.readBoolean();
+        scene.lightSamples = in.readInt();
+        scene.randomSeed = in.readLong();
+        scene.threads     = 1;
+
+        if (animFile.length() > 0) {
+            if (!animFile.equals(animationFile)) {
+                animation = new Animation(animFile);
+                animation.bind(scene);
+                animationFile = animFile;
+            }
+            animation.apply(scene, frame);
+        }
+
+        scene.start(width, height);
+    }
+}
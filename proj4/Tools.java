@@ -18,6 +18,25 @@ class Tools
 	target.z *= p.z;
     }
 
+    /** Component i (0, 1 or 2 for x, y or z) of tuple t */
+    public static double get(Tuple3d t, int i)
+    {
+	return i == 0 ? t.x : (i == 1 ? t.y : t.z);
+    }
+
+    /** Transform normal n by the transpose of inverse (which is the
+     *  inverse of the object transformation, so that n stays
+     *  perpendicular to the transformed surface)
+     */
+    public static void transformNormal(Matrix4d inverse, Vector3d n)
+    {
+	double x = inverse.m00 * n.x + inverse.m10 * n.y + inverse.m20 * n.z;
+	double y = inverse.m01 * n.x + inverse.m11 * n.y + inverse.m21 * n.z;
+	n.z      = inverse.m02 * n.x + inverse.m12 * n.y + inverse.m22 * n.z;
+	n.x = x;
+	n.y = y;
+    }
+
     /** Reflect the incident vector around the normal vector
      *
      *  target = 2 * (normal . incident) * normal - incident
@@ -54,11 +73,23 @@ class Tools
 	/* Total internal reflection */
 	if (cos2T2 < 0.0) return false;
 	
-	Vector3d temp = new Vector3d();
-	temp.scale(eta * cosT1 - Math.sqrt(cos2T2), n);
+	double s = eta * cosT1 - Math.sqrt(cos2T2);
 	
-	target.scale(eta, in);
-	target.add(temp);
+	target.x = eta * in.x + s * n.x;
+	target.y = eta * in.y + s * n.y;
+	target.z = eta * in.z + s * n.z;
 	return true;
     }
+
+    /** Cross product target = a x b, given the components of a and b
+     *  (computed in the same way as Vector3d.cross())
+     */
+    public static void cross(Vector3d target,
+			     double ax, double ay, double az,
+			     double bx, double by, double bz)
+    {
+	target.set(ay * bz - az * by,
+		   bx * az - bz * ax,
+		   ax * by - ay * bx);
+    }
 }
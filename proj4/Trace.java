@@ -5,7 +5,6 @@
  */
 import java.io.PrintStream;
 import java.text.ParseException;
-import java.lang.reflect.*;
 
 class Trace
 {
@@ -20,17 +19,110 @@ class Trace
             int width  = 128;
             int height = 128;
 
+            boolean streamOutput = false;
+            boolean useCache = true;
+            boolean printStats = false;
+            String  statsFileName = null;
+            String  animationFileName = null;
+            int     workers = -1;
+            int     port = 0;
+            boolean remote = false;
+            int     tileTimeout = -1;
+            Progressive progressive = null;
+
             if (arguments.length < 1) {
                 printUsage();
                 System.exit(0);
             }
 
+            Scene s = new Scene();
+
             for (int i=0; i < arguments.length; i++) {
                 if (arguments[i].compareTo("-out")==0) {
                     outputFileName = arguments[++i];
                 } else if (arguments[i].compareTo("-res")==0) {
                     width  = (new Integer(arguments[++i])).intValue();
                     height = (new Integer(arguments[++i])).intValue();
+                } else if (arguments[i].compareTo("-threads")==0) {
+                    s.threads = Integer.parseInt(arguments[++i]);
+                    if (s.threads < 1)
+                      s.threads = Runtime.getRuntime().availableProcessors();
+                } else if (arguments[i].compareTo("-aa")==0) {
+                    String mode = arguments[++i];
+                    if (mode.compareTo("adaptive")==0)
+                      s.adaptive = true;
+                    else if (mode.compareTo("fixed")==0)
+                      s.adaptive = false;
+                    else {
+                        printUsage();
+                        System.exit(0);
+                    }
+                } else if (arguments[i].compareTo("-aathreshold")==0) {
+                    s.aaThreshold = Double.parseDouble(arguments[++i]);
+                } else if (arguments[i].compareTo("-aasamples")==0) {
+                    s.aaSamples = Integer.parseInt(arguments[++i]);
+                } else if (arguments[i].compareTo("-mipmap")==0) {
+                    String mode = arguments[++i];
+                    if (mode.compareTo("on")==0)
+                      s.mipmapOn = true;
+                    else if (mode.compareTo("off")==0)
+                      s.mipmapOn = false;
+                    else {
+                        printUsage();
+                        System.exit(0);
+                    }
+                } else if (arguments[i].compareTo("-minweight")==0) {
+                    s.minWeight = Double.parseDouble(arguments[++i]);
+                } else if (arguments[i].compareTo("-roulette")==0) {
+                    String mode = arguments[++i];
+                    if (mode.compareTo("on")==0)
+                      s.roulette = true;
+                    else if (mode.compareTo("off")==0)
+                      s.roulette = false;
+                    else {
+                        printUsage();
+                        System.exit(0);
+                    }
+                } else if (arguments[i].compareTo("-lightsamples")==0) {
+                    s.lightSamples = Integer.parseInt(arguments[++i]);
+                } else if (arguments[i].compareTo("-seed")==0) {
+                    s.randomSeed = Long.parseLong(arguments[++i]);
+                } else if (arguments[i].compareTo("-cache")==0) {
+                    String mode = arguments[++i];
+                    if (mode.compareTo("on")==0)
+                      useCache = true;
+                    else if (mode.compareTo("off")==0)
+                      useCache = false;
+                    else {
+                        printUsage();
+                        System.exit(0);
+                    }
+                } else if (arguments[i].compareTo("-anim")==0) {
+                    animationFileName = arguments[++i];
+                } else if (arguments[i].compareTo("-distribute")==0) {
+                    workers = Integer.parseInt(arguments[++i]);
+                } else if (arguments[i].compareTo("-port")==0) {
+                    port = Integer.parseInt(arguments[++i]);
+                } else if (arguments[i].compareTo("-remote")==0) {
+                    remote = true;
+                } else if (arguments[i].compareTo("-tiletimeout")==0) {
+                    tileTimeout = Integer.parseInt(arguments[++i]);
+                } else if (arguments[i].compareTo("-progressive")==0) {
+                    progressive = progressive(progressive);
+                    progressive.maxSamples = Integer.parseInt(arguments[++i]);
+                } else if (arguments[i].compareTo("-budget")==0) {
+                    progressive = progressive(progressive);
+                    progressive.budget =
+                        Progressive.parseBudget(arguments[++i]);
+                } else if (arguments[i].compareTo("-resume")==0) {
+                    progressive = progressive(progressive);
+                    progressive.resume = true;
+                } else if (arguments[i].compareTo("-stream")==0) {
+                    streamOutput = true;
+                } else if (arguments[i].compareTo("-stats")==0) {
+                    printStats = true;
+                } else if (arguments[i].compareTo("-statsjson")==0) {
+                    statsFileName = arguments[++i];
                 } else if (arguments[i].compareTo("-quiet")==0) {
                     verbose = false;
                 } else if (arguments[i].charAt(0) == '-') {
@@ -41,23 +133,100 @@ class Trace
                 }
             }
 
-            try {
-                Scene s = new Scene();
-                Parser p = new Parser(s);
-		
-                // Parse scene file
-                p.readFile(inputFileName);
-		
-                // Set up the scene
-                s.setup();
-		
-                // Render the image
-                RGBImage i = s.render(width, height, verbose);
+            if (progressive != null &&
+                (animationFileName != null || workers >= 0 || streamOutput)) {
+                System.out.println("-progressive, -budget and -resume cannot" +
+                                   " be used with -anim, -distribute or" +
+                                   " -stream");
+                System.exit(0);
+            }
+
+            long t0 = System.nanoTime();
+
+            boolean compiled = readScene(s, inputFileName, useCache);
+            long t1 = System.nanoTime();
 		
+            // Set up the scene (and compile it for the next time)
+            s.setup();
+            if (useCache && !compiled)
+              writeScene(s, inputFileName);
+            long t2 = System.nanoTime();
+
+            // Render each frame of the animation (only one if there is
+            // none): the scene is only read and set up once
+            Animation animation = null;
+            int frames = 1;
+            if (animationFileName != null) {
+                animation = new Animation(animationFileName);
+                animation.bind(s);
+                frames = animation.getFrames();
+            }
+
+            // Render on worker processes (started here, or connecting
+            // to the port) if distributed
+            TileCoordinator coordinator = null;
+            if (workers >= 0) {
+                coordinator = new TileCoordinator(inputFileName,
+                                                  animationFileName,
+                                                  useCache, port, remote);
+                if (tileTimeout >= 0)
+                    coordinator.tileTimeout = 1000 * tileTimeout;
+                coordinator.startWorkers(workers);
+            }
+
+            long renderTime = 0, writeTime = 0;
+            if (progressive != null) {
+                // (the image is written after every pass)
+                long t3 = System.nanoTime();
+                progressive.render(s, inputFileName, width, height,
+                                   outputFileName, verbose);
+                renderTime = System.nanoTime() - t3;
+                frames = 0;
+            }
+            for (int f = 0; f < frames; f++) {
+                String fileName = outputFileName;
+                if (animation != null) {
+                    animation.apply(s, f);
+                    fileName = frameFileName(outputFileName, f);
+                    if (verbose)
+                      System.out.println("Frame " + f + " of " + frames +
+                                         ": " + fileName);
+                }
+                long t3 = System.nanoTime();
+
+                // Render the image (writing it as it goes if streaming)
+                if (streamOutput)
+                  s.stream = new PPMStreamWriter(fileName, width, height);
+                RGBImage i = coordinator != null ?
+                    coordinator.render(s, f, width, height, verbose) :
+                    s.render(width, height, verbose);
+                long t4 = System.nanoTime();
+
                 // Save the image
-                i.write(outputFileName);
-            } catch (InvocationTargetException e) {
-                throw e.getTargetException();
+                if (streamOutput)
+                  s.stream.close();
+                else
+                  i.write(fileName);
+                long t5 = System.nanoTime();
+
+                renderTime += t4 - t3;
+                writeTime  += t5 - t4;
+            }
+
+            if (coordinator != null)
+              coordinator.close();
+
+            if (printStats || statsFileName != null) {
+                RenderStats stats = s.getStats();
+                stats.parseTime  = t1 - t0;
+                stats.setupTime  = t2 - t1;
+                stats.renderTime = renderTime;
+                stats.writeTime  = writeTime;
+
+                if (printStats)
+                  stats.print(System.out);
+                if (statsFileName != null)
+                  stats.writeJSON(statsFileName);
             }
         } catch (ParseException e) {
             System.err.println(e.getMessage()+" in line "+e.getErrorOffset());
@@ -69,10 +238,69 @@ class Trace
         }
     }
     
+    /** fill scene s from scene file fileName: from its compiled scene
+     *  if useCache is set and that is up to date, otherwise by parsing
+     *  the file; returns whether the compiled scene was used
+     */
+    static boolean readScene(Scene s, String fileName, boolean useCache)
+        throws ParseException
+    {
+        if (useCache && SceneCache.read(s, fileName))
+          return true;
+
+        Parser p = new Parser(s);
+        p.readFile(fileName);
+        return false;
+    }
+
+    /** compile scene s (read from fileName, and set up) for the next
+     *  time (a scene that cannot be written is just not compiled)
+     */
+    static void writeScene(Scene s, String fileName)
+    {
+        try {
+            SceneCache.write(s, fileName);
+        } catch (java.io.IOException e) {
+            if (verbose)
+              System.err.println("Cannot write " +
+                                 SceneCache.fileName(fileName) +
+                                 ": " + e.getMessage());
+        }
+    }
+
+    /** the progressive render options p (new ones if null) */
+    private static Progressive progressive(Progressive p)
+    {
+        return p != null ? p : new Progressive();
+    }
+
+    /** the output file of frame f: the frame number (4 digits) is put
+     *  before the extension of fileName (out.ppm gives out0000.ppm, ...)
+     */
+    static String frameFileName(String fileName, int f)
+    {
+        int dot = fileName.lastIndexOf('.');
+        if (dot <= fileName.lastIndexOf('/'))
+          dot = fileName.length();
+        return fileName.substring(0, dot) + String.format("%04d", f) +
+               fileName.substring(dot);
+    }
+
     private static void printUsage()
     {
         System.out.println("Usage: ");
         System.out.println("java Trace <fileName> [-res <width height>] "+
-                           " [-out <outputFileName>] [-quiet] ");
+                           " [-out <outputFileName>] [-threads <n>] [-quiet] ");
+        System.out.println("           [-aa fixed|adaptive] [-aathreshold <t>]"+
+                           " [-aasamples <n>]");
+        System.out.println("           [-mipmap on|off] [-stream] [-stats]"+
+                           " [-statsjson <file>]");
+        System.out.println("           [-minweight <w>] [-roulette on|off]"+
+                           " [-lightsamples <n>] [-seed <n>]");
+        System.out.println("           [-cache on|off] [-anim <file>]"+
+                           " [-distribute <n>] [-port <n>]");
+        System.out.println("           [-remote] [-tiletimeout <s>]");
+        System.out.println("           [-progressive <n>] [-budget <time>]"+
+                           " [-resume]");
     }
 }
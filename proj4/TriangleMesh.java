@@ -0,0 +1,316 @@
+/* class TriangleMesh
+ * The triangles of a mesh in indexed arrays, with a bounding volume
+ * hierarchy over them, and the ray-triangle intersection test
+ *
+ * Meshes are cached by file, so Mesh shapes that use the same file
+ * share one copy of the triangles (a file whose size or date changed is
+ * read again)
+ */
+import java.io.*;
+import java.util.*;
+import javax.vecmath.*;
+
+class TriangleMesh
+{
+    // Meshes of the files read so far (by canonical file name), and the
+    // size and date of the files when they were read
+    private static final Map<String, TriangleMesh> cache =
+        new HashMap<String, TriangleMesh>();
+    private static final Map<String, long[]> cacheStamps =
+        new HashMap<String, long[]>();
+
+    // Vertex positions (x,y,z per vertex), and the vertex indices of the
+    // corners of each triangle (3 per triangle)
+    float[] vertices;
+    int[]   corners;
+
+    // Normals (x,y,z) and texture coordinates (u,v), and their indices
+    // for each corner (-1 for none) -- all null if the file has none
+    float[] normals;
+    int[]   cornerNormals;
+    float[] uvs;
+    int[]   cornerUVs;
+
+    int triangles;
+
+    BVH bvh;
+
+    // Closest hit query of each render thread
+    private static final ThreadLocal<ClosestHit> queries =
+        ThreadLocal.withInitial(ClosestHit::new);
+
+    //------------------------------------------------------------------------
+
+    /** the mesh in file fileName (read only once) */
+    public static TriangleMesh get(String fileName) throws IOException
+    {
+        File f = new File(fileName);
+        String key = f.getCanonicalPath();
+        long[] stamp = { f.length(), f.lastModified() };
+
+        synchronized (cache) {
+            TriangleMesh m = cache.get(key);
+            if (m == null || !Arrays.equals(stamp, cacheStamps.get(key))) {
+                m = OBJReader.read(fileName);
+                cache.put(key, m);
+                cacheStamps.put(key, stamp);
+            }
+            return m;
+        }
+    }
+
+    /** a mesh (with the hierarchy over its triangles) given its arrays */
+    public TriangleMesh(float[] vertices, int[] corners,
+                        float[] normals, int[] cornerNormals,
+                        float[] uvs, int[] cornerUVs, int triangles)
+    {
+        this(vertices, corners, normals, cornerNormals, uvs, cornerUVs,
+             triangles, null);
+
+        double[] bounds = new double[6*triangles];
+        for (int t = 0; t < triangles; t++) {
+            BVH.emptyBounds(bounds, 6*t);
+            for (int c = 3*t; c < 3*t + 3; c++) {
+                int v = 3*corners[c];
+                for (int a = 0; a < 3; a++) {
+                    bounds[6*t+a]   = Math.min(bounds[6*t+a],   vertices[v+a]);
+                    bounds[6*t+a+3] = Math.max(bounds[6*t+a+3], vertices[v+a]);
+                }
+            }
+        }
+        bvh = new BVH(bounds, triangles);
+    }
+
+    /** a mesh given its arrays and hierarchy (bvh) */
+    public TriangleMesh(float[] vertices, int[] corners,
+                        float[] normals, int[] cornerNormals,
+                        float[] uvs, int[] cornerUVs, int triangles, BVH bvh)
+    {
+        this.vertices      = vertices;
+        this.corners       = corners;
+        this.normals       = normals;
+        this.cornerNormals = cornerNormals;
+        this.uvs           = uvs;
+        this.cornerUVs     = cornerUVs;
+        this.triangles     = triangles;
+        this.bvh           = bvh;
+    }
+
+    //------------------------------------------------------------------------
+
+    public int getTriangles() { return triangles; }
+
+    /** bounds of all triangles (a point at the origin if there are none) */
+    public void getBounds(double[] b)
+    {
+        if (triangles == 0) {
+            Arrays.fill(b, 0, 6, 0.0);
+        } else {
+            bvh.getBounds(b);
+        }
+    }
+
+    /** the closest triangle hit by ray r with minT < t < maxT (null if
+     *  none)
+     *
+     * The result is only valid until the next call on the same thread
+     */
+    public Hit intersect(Ray r, double minT, double maxT)
+    {
+        ClosestHit query = queries.get();
+        query.start(this, r, minT);
+        bvh.traverse(r, minT, maxT, query,
+                     query.stack(bvh.depth + 1));
+
+        return query.triangle < 0 ? null : query;
+    }
+
+    /** a ray-triangle intersection: t, the triangle, and the barycentric
+     *  coordinates of the hit point (the weights of the second and third
+     *  corner)
+     */
+    static class Hit
+    {
+        double t;
+        int    triangle;
+        double b1, b2;
+    }
+
+    //------------------------------------------------------------------------
+    // Surface information at a hit
+
+    /** fill in the (object space) hit point, normal, texture coordinates
+     *  and surface derivatives of hit (whose t is set) on ray r
+     */
+    void setFields(Ray r, Hit hit, ISect intersection)
+    {
+        Point3d  o = r.getPoint();
+        Vector3d d = r.getDirection();
+        intersection.getHitPoint().set(o.x + hit.t*d.x, o.y + hit.t*d.y,
+                                       o.z + hit.t*d.z);
+
+        int c = 3*hit.triangle;
+        double b1 = hit.b1, b2 = hit.b2, b0 = 1.0 - b1 - b2;
+
+        int p0 = 3*corners[c], p1 = 3*corners[c+1], p2 = 3*corners[c+2];
+        double e1x = vertices[p1]   - vertices[p0];
+        double e1y = vertices[p1+1] - vertices[p0+1];
+        double e1z = vertices[p1+2] - vertices[p0+2];
+        double e2x = vertices[p2]   - vertices[p0];
+        double e2y = vertices[p2+1] - vertices[p0+1];
+        double e2z = vertices[p2+2] - vertices[p0+2];
+
+        // Normal: interpolated if all corners have one, otherwise the
+        // normal of the triangle (given by the order of its corners)
+        Vector3d n = intersection.getNormal();
+        if (normals != null && cornerNormals[c] >= 0 &&
+            cornerNormals[c+1] >= 0 && cornerNormals[c+2] >= 0) {
+            int n0 = 3*cornerNormals[c], n1 = 3*cornerNormals[c+1],
+                n2 = 3*cornerNormals[c+2];
+            n.set(b0*normals[n0]   + b1*normals[n1]   + b2*normals[n2],
+                  b0*normals[n0+1] + b1*normals[n1+1] + b2*normals[n2+1],
+                  b0*normals[n0+2] + b1*normals[n1+2] + b2*normals[n2+2]);
+        } else {
+            Tools.cross(n, e1x, e1y, e1z, e2x, e2y, e2z);
+        }
+        n.normalize();
+
+        // Texture coordinates and the derivatives of the position along
+        // them: without texture coordinates, (u,v) are the barycentric
+        // coordinates, so that dP/du and dP/dv are the edges
+        Vector3d dPdU = intersection.getDpDu(), dPdV = intersection.getDpDv();
+        dPdU.set(e1x, e1y, e1z);
+        dPdV.set(e2x, e2y, e2z);
+        intersection.setU(b1);
+        intersection.setV(b2);
+
+        if (uvs != null && cornerUVs[c] >= 0 &&
+            cornerUVs[c+1] >= 0 && cornerUVs[c+2] >= 0) {
+            int t0 = 2*cornerUVs[c], t1 = 2*cornerUVs[c+1],
+                t2 = 2*cornerUVs[c+2];
+            intersection.setU(b0*uvs[t0]   + b1*uvs[t1]   + b2*uvs[t2]);
+            intersection.setV(b0*uvs[t0+1] + b1*uvs[t1+1] + b2*uvs[t2+1]);
+
+            // Solve e1 = du1 dP/du + dv1 dP/dv, e2 = du2 dP/du + dv2 dP/dv
+            double du1 = uvs[t1]   - uvs[t0], du2 = uvs[t2]   - uvs[t0];
+            double dv1 = uvs[t1+1] - uvs[t0+1], dv2 = uvs[t2+1] - uvs[t0+1];
+            double det = du1*dv2 - dv1*du2;
+            if (Math.abs(det) > 1e-12) {
+                double s = 1.0 / det;
+                dPdU.set(s*(dv2*e1x - dv1*e2x), s*(dv2*e1y - dv1*e2y),
+                         s*(dv2*e1z - dv1*e2z));
+                dPdV.set(s*(du1*e2x - du2*e1x), s*(du1*e2y - du2*e1y),
+                         s*(du1*e2z - du2*e1z));
+            }
+        }
+
+        intersection.dPdULength = dPdU.length();
+        intersection.dPdVLength = dPdV.length();
+        dPdU.normalize();
+        dPdV.normalize();
+    }
+
+    //------------------------------------------------------------------------
+    // Traversal
+
+    /** closest hit query: the BVH visitor used by intersect()
+     *
+     * Triangles are tested with the watertight algorithm of Woop, Benthin
+     * and Wald ("Watertight Ray/Triangle Intersection", JCGT 2013): the
+     * vertices are translated to the ray origin and sheared so that the
+     * ray runs along +z, and the edge functions are then evaluated in 2D,
+     * so that rays through an edge or vertex shared by several triangles
+     * hit at least one of them
+     */
+    static class ClosestHit extends Hit implements BVH.Visitor
+    {
+        TriangleMesh mesh;
+
+        // Permutation of the axes and shear that make the ray direction
+        // (0,0,1), and the ray origin (permuted)
+        int kx, ky, kz;
+        double sx, sy, sz;
+        double ox, oy, oz;
+
+        double minT;
+
+        // (the closest hit so far is kept in t, triangle, b1 and b2 --
+        // triangle is -1 if there is none)
+
+        int[] stack = new int[0];
+
+        void start(TriangleMesh m, Ray r, double tMin)
+        {
+            mesh = m;
+            minT = tMin;
+            triangle = -1;
+
+            Vector3d d = r.getDirection();
+            double ax = Math.abs(d.x), ay = Math.abs(d.y), az = Math.abs(d.z);
+            kz = ax > ay ? (ax > az ? 0 : 2) : (ay > az ? 1 : 2);
+            kx = (kz + 1) % 3;
+            ky = (kx + 1) % 3;
+
+            // (keep the winding of the triangles when z is flipped)
+            double dz = Tools.get(d, kz);
+            if (dz < 0) {
+                int k = kx; kx = ky; ky = k;
+            }
+
+            sx = Tools.get(d, kx) / dz;
+            sy = Tools.get(d, ky) / dz;
+            sz = 1.0 / dz;
+
+            Point3d o = r.getPoint();
+            ox = Tools.get(o, kx);
+            oy = Tools.get(o, ky);
+            oz = Tools.get(o, kz);
+        }
+
+        int[] stack(int size)
+        {
+            if (stack.length < size)
+                stack = new int[size];
+            return stack;
+        }
+
+        public double visit(int[] prims, int first, int count, double tMax)
+        {
+            float[] v = mesh.vertices;
+            int[] c = mesh.corners;
+
+            for (int k = first; k < first + count; k++) {
+                int tri = prims[k];
+                int a = 3*c[3*tri], b = 3*c[3*tri+1], cc = 3*c[3*tri+2];
+
+                // Vertices relative to the origin, sheared
+                double az = v[a+kz] - oz, bz = v[b+kz] - oz, cz = v[cc+kz] - oz;
+                double ax = v[a+kx] - ox - sx*az, ay = v[a+ky] - oy - sy*az;
+                double bx = v[b+kx] - ox - sx*bz, by = v[b+ky] - oy - sy*bz;
+                double cx = v[cc+kx] - ox - sx*cz, cy = v[cc+ky] - oy - sy*cz;
+
+                // Edge functions (all of one sign inside the triangle)
+                double u = cx*by - cy*bx;
+                double w1 = ax*cy - ay*cx;
+                double w2 = bx*ay - by*ax;
+                if ((u < 0 || w1 < 0 || w2 < 0) && (u > 0 || w1 > 0 || w2 > 0))
+                    continue;
+
+                double det = u + w1 + w2;
+                if (det == 0)
+                    continue;
+
+                double tHit = (u*az + w1*bz + w2*cz) * sz / det;
+                if (!(tHit > minT && tHit < tMax))
+                    continue;
+
+                tMax     = tHit;
+                t        = tHit;
+                triangle = tri;
+                b1       = w1 / det;
+                b2       = w2 / det;
+            }
+            return tMax;
+        }
+    }
+}
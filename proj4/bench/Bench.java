@@ -0,0 +1,226 @@
+/* class Bench
+ * Benchmark harness for the ray tracer: runs each benchmark for a number
+ * of warmup and measurement iterations, and reports the time and the
+ * memory allocated per operation; checks compare a measurement with a
+ * limit, and make the run exit with status 1 if it is over
+ */
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.regex.Pattern;
+
+class Bench
+{
+    /** one benchmarked operation, returning a value that is consumed so
+     *  that the computation is not optimized away
+     */
+    interface Op
+    {
+        double run() throws Exception;
+    }
+
+    /** measurements of one benchmark */
+    static class Result
+    {
+        String name;
+        double nsPerOp;
+        double nsError;
+        double bytesPerOp;
+    }
+
+    // Number of warmup and measurement iterations, and the length of each
+    // iteration (in milliseconds)
+    int  warmupIterations  = 3;
+    int  iterations        = 5;
+    long iterationMillis   = 500;
+
+    // Only run benchmarks whose name matches this (all if null)
+    Pattern filter         = null;
+
+    // Scene files are looked up relative to this directory
+    String sceneDir        = ".";
+
+    // Results are also appended to this file as tab separated values
+    // (if not null)
+    String csvFileName     = null;
+
+    // Sum of all values returned by benchmarked operations
+    static volatile double sink;
+
+    // Whether a check failed
+    boolean failed = false;
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    //------------------------------------------------------------------------
+
+    /** check if the benchmark called name should run */
+    boolean selected(String name)
+    {
+        return filter == null || filter.matcher(name).find();
+    }
+
+    /** run op as benchmark called name, print and return the result
+     *  (null if the benchmark was not selected)
+     */
+    Result run(String name, Op op) throws Exception
+    {
+        if (!selected(name))
+            return null;
+
+        // Find a number of operations per batch that takes at least a
+        // millisecond (so that reading the clock is negligible)
+        long batch = 1;
+        while (batch < (1L << 30)) {
+            long start = System.nanoTime();
+            loop(op, batch);
+            if (System.nanoTime() - start > 1000000)
+                break;
+            batch *= 2;
+        }
+
+        for (int w = 0; w < warmupIterations; w++)
+            iteration(op, batch);
+
+        double[] times = new double[iterations];
+        for (int k = 0; k < iterations; k++)
+            times[k] = iteration(op, batch);
+
+        // Allocation is measured separately, over a single batch
+        long before = threadBean.getCurrentThreadAllocatedBytes();
+        loop(op, batch);
+        long alloc = threadBean.getCurrentThreadAllocatedBytes() - before;
+
+        Result r = new Result();
+        r.name = name;
+        double sum = 0, sumSq = 0;
+        for (double t : times) {
+            sum   += t;
+            sumSq += t*t;
+        }
+        r.nsPerOp    = sum / iterations;
+        r.nsError    = iterations > 1 ?
+            Math.sqrt(Math.max(0, (sumSq - sum*sum/iterations) /
+                               (iterations - 1))) : 0;
+        r.bytesPerOp = (double)alloc / batch;
+
+        print(r);
+        return r;
+    }
+
+    /** run batches of op for iterationMillis, and return the time per
+     *  operation (in nanoseconds)
+     */
+    private double iteration(Op op, long batch) throws Exception
+    {
+        long end = System.nanoTime() + iterationMillis * 1000000;
+        long ops = 0, start = System.nanoTime(), now;
+        do {
+            loop(op, batch);
+            ops += batch;
+            now = System.nanoTime();
+        } while (now < end);
+
+        return (double)(now - start) / ops;
+    }
+
+    private static void loop(Op op, long count) throws Exception
+    {
+        double s = 0;
+        for (long i = 0; i < count; i++)
+            s += op.run();
+        sink += s;
+    }
+
+    //------------------------------------------------------------------------
+    // Output
+
+    void printHeader()
+    {
+        System.out.printf("%-36s %14s %12s %12s%n",
+                          "Benchmark", "ns/op", "error", "B/op");
+    }
+
+    void print(Result r) throws IOException
+    {
+        System.out.printf("%-36s %14.1f %12.1f %12.1f%n",
+                          r.name, r.nsPerOp, r.nsError, r.bytesPerOp);
+
+        if (csvFileName != null) {
+            PrintWriter out =
+                new PrintWriter(new FileWriter(csvFileName, true));
+            out.println(r.name + "\t" + r.nsPerOp + "\t" + r.nsError + "\t" +
+                        r.bytesPerOp);
+            out.close();
+        }
+    }
+
+    /** print a value derived from a result (e.g. time per pixel) */
+    void printDerived(String name, double value, String unit)
+    {
+        System.out.printf("  %-34s %14.1f %s%n", name, value, unit);
+    }
+
+    /** print a value that must not be over limit, and note the failure
+     *  if it is */
+    void check(String name, double value, double limit, String unit)
+    {
+        boolean ok = value <= limit;
+        System.out.printf("  %-34s %14.1f %s (limit %.1f) %s%n", name, value,
+                          unit, limit, ok ? "ok" : "FAILED");
+        if (!ok)
+            failed = true;
+    }
+
+    /** path of scene file name */
+    String scene(String name)
+    {
+        return new File(sceneDir, name).getPath();
+    }
+
+    //------------------------------------------------------------------------
+
+    public static void main(String arguments[]) throws Exception
+    {
+        Bench b = new Bench();
+
+        for (int i = 0; i < arguments.length; i++) {
+            if (arguments[i].compareTo("-wi")==0) {
+                b.warmupIterations = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-i")==0) {
+                b.iterations = Integer.parseInt(arguments[++i]);
+            } else if (arguments[i].compareTo("-time")==0) {
+                b.iterationMillis = Long.parseLong(arguments[++i]);
+            } else if (arguments[i].compareTo("-dir")==0) {
+                b.sceneDir = arguments[++i];
+            } else if (arguments[i].compareTo("-csv")==0) {
+                b.csvFileName = arguments[++i];
+            } else if (arguments[i].charAt(0) == '-') {
+                printUsage();
+                System.exit(0);
+            } else {
+                b.filter = Pattern.compile(arguments[i]);
+            }
+        }
+
+        // (materials print texture loading messages otherwise)
+        Trace.verbose = false;
+
+        b.printHeader();
+        KernelBench.run(b);
+        LoadBench.run(b);
+        RenderBench.run(b);
+
+        if (b.failed)
+            System.exit(1);
+    }
+
+    static void printUsage()
+    {
+        System.out.println("java Bench [<name regex>] [-wi <warmup iterations>]"+
+                           " [-i <iterations>]");
+        System.out.println("           [-time <ms per iteration>]"+
+                           " [-dir <scene directory>] [-csv <file>]");
+    }
+}
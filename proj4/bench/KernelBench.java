@@ -0,0 +1,177 @@
+/* class KernelBench
+ * Benchmarks of the intersection and shading kernels, run over fixed
+ * sets of random rays (the seeds are constant, so every run sees the
+ * same rays)
+ */
+import java.io.*;
+import java.util.*;
+import javax.vecmath.*;
+
+class KernelBench
+{
+    // Number of rays in each set (a power of 2)
+    static final int rays = 1024;
+
+    //------------------------------------------------------------------------
+
+    static void run(Bench b) throws Exception
+    {
+        shapes(b);
+        scene(b, "hard", Scenes.load(b.scene("hard")));
+        scene(b, "many", Scenes.load(Scenes.many(200, 1)));
+        camera(b);
+    }
+
+    /** Shape.hit() of each primitive (untransformed), with and without
+     *  computing all the intersection fields
+     */
+    static void shapes(Bench b) throws Exception
+    {
+        Shape[] shapes = { Scenes.shape("sphere"), Scenes.shape("box"),
+                           Scenes.shape("cone"), Scenes.shape("cylinder") };
+
+        // Rays from outside the unit cube, aimed at points inside it
+        // (most of them hit)
+        Ray[] set = aimedRays(new Random(1), rays, 4.0, 1.0);
+
+        for (final Shape s : shapes) {
+            for (final boolean all : new boolean[] { true, false }) {
+                final Ray   r     = new Ray();
+                final ISect isect = new ISect();
+                final int[] next  = new int[1];
+                b.run(s.getClass().getName() + ".hit/all=" + all, () -> {
+                    r.set(set[next[0]++ & (rays-1)]);
+                    return s.hit(r, isect, all, 1e-5) ? isect.getT() : 0;
+                });
+            }
+        }
+    }
+
+    /** closest hit and shadow queries, and shading, in a parsed scene */
+    static void scene(Bench b, String name, final Scene scene)
+        throws Exception
+    {
+        final RenderContext ctx = new RenderContext(scene);
+
+        // Primary rays through random points of the image
+        scene.camera.setup(1, 1);
+        Random random = new Random(2);
+        final Ray[] primary = new Ray[rays];
+        for (int k = 0; k < rays; k++) {
+            primary[k] = new Ray();
+            scene.camera.pixelRay(2*random.nextDouble() - 1,
+                                  2*random.nextDouble() - 1, primary[k]);
+        }
+
+        final Ray   r     = new Ray();
+        final ISect isect = new ISect();
+        final int[] next  = new int[1];
+        b.run("Scene.intersects/" + name, () -> {
+            r.set(primary[next[0]++ & (rays-1)]);
+            return scene.intersects(ctx, r, isect) ? isect.getT() : 0;
+        });
+
+        // Intersections of the primary rays that hit something (repeated
+        // to fill the set), for shadow and shading queries
+        List<ISect> hits = new ArrayList<ISect>();
+        List<Ray>   from = new ArrayList<Ray>();
+        for (int k = 0; k < rays; k++) {
+            r.set(primary[k]);
+            ISect h = new ISect();
+            if (scene.intersects(ctx, r, h)) {
+                hits.add(h);
+                from.add(new Ray(primary[k]));
+            }
+        }
+        if (hits.isEmpty() || scene.lights.isEmpty())
+            return;
+
+        final ISect[] hitSet  = new ISect[rays];
+        final Ray[]   raySet  = new Ray[rays];
+        final Ray[]   shadows = new Ray[rays];
+        final double[] maxT   = new double[rays];
+        final int[]   light   = new int[rays];
+        for (int k = 0; k < rays; k++) {
+            hitSet[k] = hits.get(k % hits.size());
+            raySet[k] = from.get(k % hits.size());
+
+            light[k] = k % scene.lights.size();
+            Light l = scene.lights.elementAt(light[k]);
+            Vector3d dir = new Vector3d();
+            if (l.getPosition() == null) {
+                dir.set(l.getDirection());
+            } else {
+                dir.set(l.getPosition());
+                dir.sub(hitSet[k].getHitPoint());
+            }
+            maxT[k] = l.isDirectional() ? Double.MAX_VALUE : dir.length();
+            dir.normalize();
+            shadows[k] = new Ray(new Point3d(hitSet[k].getHitPoint()), dir);
+        }
+
+        final Vector3d tint = new Vector3d();
+        b.run("Scene.shadowTint/" + name, () -> {
+            int k = next[0]++ & (rays-1);
+            r.set(shadows[k]);
+            scene.shadowTint(ctx, r, maxT[k], light[k], tint);
+            return tint.x;
+        });
+
+        final Vector3d color = new Vector3d();
+        final Vector3d full  = new Vector3d(1, 1, 1);
+        b.run("Light.compute/" + name, () -> {
+            int k = next[0]++ & (rays-1);
+            scene.lights.elementAt(light[k])
+                .compute(hitSet[k], full, raySet[k], color);
+            return color.x;
+        });
+    }
+
+    /** Camera.pixelRay() over random image positions */
+    static void camera(Bench b) throws Exception
+    {
+        final Camera camera = new Camera();
+        camera.setup(640, 480);
+
+        Random random = new Random(3);
+        final double[] xy = new double[2*rays];
+        for (int k = 0; k < 2*rays; k++)
+            xy[k] = 2*random.nextDouble() - 1;
+
+        final Ray   r    = new Ray();
+        final int[] next = new int[1];
+        b.run("Camera.pixelRay", () -> {
+            int k = 2*(next[0]++ & (rays-1));
+            camera.pixelRay(xy[k], xy[k+1], r);
+            return r.getDirection().x;
+        });
+    }
+
+    //------------------------------------------------------------------------
+
+    /** count rays starting at distance 'distance' from the origin (in
+     *  random directions), aimed at random points of the cube from
+     *  -size to size
+     */
+    static Ray[] aimedRays(Random random, int count,
+                           double distance, double size)
+    {
+        Ray[] set = new Ray[count];
+        for (int k = 0; k < count; k++) {
+            Vector3d o = new Vector3d(random.nextGaussian(),
+                                      random.nextGaussian(),
+                                      random.nextGaussian());
+            o.normalize();
+            o.scale(distance);
+
+            Vector3d d = new Vector3d(size*(2*random.nextDouble() - 1),
+                                      size*(2*random.nextDouble() - 1),
+                                      size*(2*random.nextDouble() - 1));
+            d.sub(o);
+            d.normalize();
+
+            set[k] = new Ray(new Point3d(o), d);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,72 @@
+/* class LoadBench
+ * Scene loading benchmarks: parse a generated scene file, and check the
+ * memory the objects take once set up
+ */
+import java.lang.management.*;
+
+class LoadBench
+{
+    // Most heap memory a set up sphere may retain (in bytes; about 550
+    // are used, with the scene hierarchy)
+    static double footprintLimit = 600;
+
+    static void run(Bench b) throws Exception
+    {
+        load(b, 10000);
+        footprint(b, 100000);
+    }
+
+    /** parse a generated scene of count objects */
+    static void load(Bench b, int count) throws Exception
+    {
+        if (!b.selected("parse/many" + count))
+            return;
+
+        final String fileName = Scenes.many(count, 4);
+
+        Bench.Result r = b.run("parse/many" + count, () -> {
+            Scene s = new Scene();
+            Parser p = new Parser(s);
+            p.readFile(fileName);
+            return s.objects.size();
+        });
+
+        if (r != null) {
+            b.printDerived("ns/object", r.nsPerOp / count, "ns");
+            b.printDerived("allocated/object", r.bytesPerOp / count, "B");
+        }
+    }
+
+    /** check the heap memory retained per shape by a parsed and set up
+     *  scene of count spheres (the smallest of a few measurements)
+     */
+    static void footprint(Bench b, int count) throws Exception
+    {
+        String name = "footprint/spheres" + count;
+        if (!b.selected(name))
+            return;
+
+        String fileName = Scenes.spheres(count, 5);
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        double best = Double.MAX_VALUE;
+        for (int k = 0; k < 3; k++) {
+            long before = usedHeap(memory);
+            Scene s = Scenes.load(fileName);
+            long after = usedHeap(memory);
+
+            best = Math.min(best, (double)(after - before) / count);
+            Bench.sink += s.objects.size();
+        }
+
+        System.out.printf("%-36s%n", name);
+        b.check("retained/object", best, footprintLimit, "B");
+    }
+
+    private static long usedHeap(MemoryMXBean memory)
+    {
+        for (int k = 0; k < 3; k++)
+            System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
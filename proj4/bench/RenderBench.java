@@ -0,0 +1,81 @@
+/* class RenderBench
+ * End to end benchmarks: parse, set up and render the bundled scenes, and
+ * check that rendering them allocates next to nothing
+ */
+import java.lang.management.ManagementFactory;
+
+class RenderBench
+{
+    // Image resolution of the renders
+    static int width  = 64;
+    static int height = 64;
+
+    // Most bytes a render may allocate per pixel: the image takes 12
+    // (three floats), and the rays and intersections reuse per-thread
+    // scratch space (see RenderContext), so one small object per pixel is
+    // enough to go over
+    static double allocLimit = 16;
+
+    //------------------------------------------------------------------------
+
+    static void run(Bench b) throws Exception
+    {
+        render(b, "easy");
+        render(b, "hard");
+        render(b, "easytex");
+
+        allocation(b, "easy");
+        allocation(b, "hard");
+        allocation(b, "easytex");
+    }
+
+    /** render scene file name on the calling thread */
+    static void render(Bench b, String name) throws Exception
+    {
+        final String fileName = b.scene(name);
+
+        Bench.Result r = b.run("render/" + name, () -> {
+            Scene s = Scenes.load(fileName);
+            RGBImage image = s.render(width, height, false);
+            return image.getData()[0];
+        });
+
+        if (r != null) {
+            int pixels = width * height;
+            b.printDerived("ns/pixel", r.nsPerOp / pixels, "ns");
+            b.printDerived("allocated/pixel", r.bytesPerOp / pixels, "B");
+        }
+    }
+
+    /** check the bytes allocated by rendering scene file name on the
+     *  calling thread (once set up, and after a first render, which
+     *  creates the scratch space of the thread)
+     */
+    static void allocation(Bench b, String name) throws Exception
+    {
+        String benchName = "alloc/" + name;
+        if (!b.selected(benchName))
+            return;
+
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+        Scene s = Scenes.load(b.scene(name));
+        s.render(width, height, false);
+
+        // (the smallest of a few renders)
+        long best = Long.MAX_VALUE;
+        for (int k = 0; k < 3; k++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            RGBImage image = s.render(width, height, false);
+            long after = threads.getCurrentThreadAllocatedBytes();
+
+            best = Math.min(best, after - before);
+            Bench.sink += image.getData()[0];
+        }
+
+        System.out.printf("%-36s%n", benchName);
+        b.check("allocated/pixel", (double)best / (width * height),
+                allocLimit, "B");
+    }
+}
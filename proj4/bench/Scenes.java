@@ -0,0 +1,119 @@
+/* class Scenes
+ * Scenes and objects used by the benchmarks
+ */
+import java.io.*;
+import java.util.*;
+import javax.vecmath.*;
+
+class Scenes
+{
+    /** parse and set up the scene in file fileName */
+    static Scene load(String fileName) throws Exception
+    {
+        Scene s = new Scene();
+        Parser p = new Parser(s);
+        p.readFile(fileName);
+        s.setup();
+        return s;
+    }
+
+    /** an untransformed shape with default parameters, given its keyword */
+    static Shape shape(String keyword) throws Exception
+    {
+        StreamTokenizer tokenizer = new StreamTokenizer(new StringReader("{}"));
+        tokenizer.ordinaryChar('{');
+        tokenizer.ordinaryChar('}');
+
+        Shape s;
+        if (keyword.equals("sphere"))
+          s = new Sphere(tokenizer);
+        else if (keyword.equals("box"))
+          s = new Box(tokenizer);
+        else if (keyword.equals("cone"))
+          s = new Cone(tokenizer);
+        else if (keyword.equals("cylinder"))
+          s = new Cylinder(tokenizer);
+        else
+          throw new IllegalArgumentException("Unknown shape " + keyword);
+
+        Matrix4d identity = new Matrix4d();
+        identity.setIdentity();
+        s.setMatrix(identity);
+        return s;
+    }
+
+    /** write a scene with count randomly placed objects (of every kind,
+     *  opaque and transparent, lit by a point and a directional light) to
+     *  a temporary file, and return its name
+     */
+    static String many(int count, long seed) throws IOException
+    {
+        String[] kinds = { "sphere", "box", "cone", "cylinder" };
+        Random random = new Random(seed);
+
+        File f = File.createTempFile("many", ".scene");
+        f.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(f));
+
+        out.println("translate { (0 0 -40) }");
+        out.println("material { name = red ka = (0.1 0.05 0.05) " +
+                    "kd = (0.8 0.2 0.2) ks = (0.2 0.2 0.2) shiny = 20 }");
+        out.println("material { name = glass ka = (0.01 0.01 0.01) " +
+                    "kd = (0 0 0) ks = (0.1 0.1 0.1) kt = (0.8 0.8 0.8) " +
+                    "index = 1.1 }");
+        out.println("material { name = flat ka = (0.1 0.1 0.1) " +
+                    "kd = (0.5 0.6 0.4) }");
+        out.println("light { position = (10 20 30) }");
+        out.println("light { direction = (1 2 3) color = (0.5 0.5 0.5) }");
+        out.println("push {} translate { (0 -12 0) } scale { (40 0.1 40) } " +
+                    "box { material = flat } pop {}");
+
+        for (int k = 0; k < count; k++) {
+            String s = number(0.3 + 0.5*random.nextDouble());
+            out.println("push {} translate { (" +
+                        number(40*random.nextDouble() - 20) + " " +
+                        number(40*random.nextDouble() - 20) + " " +
+                        number(40*random.nextDouble() - 20) + ") } " +
+                        "rotate { " + number(180*random.nextDouble()) +
+                        " (1 1 0) } scale { (" + s + " " + s + " " + s +
+                        ") } " + kinds[random.nextInt(kinds.length)] +
+                        " { material = " +
+                        (random.nextInt(3) == 0 ? "glass" : "red") +
+                        " } pop {}");
+        }
+        out.close();
+
+        return f.getPath();
+    }
+
+    /** write a scene of count randomly placed spheres (of one material)
+     *  to a temporary file, and return its name
+     */
+    static String spheres(int count, long seed) throws IOException
+    {
+        Random random = new Random(seed);
+
+        File f = File.createTempFile("spheres", ".scene");
+        f.deleteOnExit();
+        PrintWriter out = new PrintWriter(new FileWriter(f));
+
+        out.println("material { name = red kd = (0.8 0.2 0.2) }");
+        out.println("light { position = (10 20 30) }");
+        for (int k = 0; k < count; k++) {
+            out.println("push {} translate { (" +
+                        number(100*random.nextDouble() - 50) + " " +
+                        number(100*random.nextDouble() - 50) + " " +
+                        number(-100*random.nextDouble() - 10) + ") } " +
+                        "sphere { material = red } pop {}");
+        }
+        out.close();
+
+        return f.getPath();
+    }
+
+    /** x as the scene tokenizer reads it (no exponent) */
+    private static String number(double x)
+    {
+        return String.format(Locale.ROOT, "%.4f", x);
+    }
+}